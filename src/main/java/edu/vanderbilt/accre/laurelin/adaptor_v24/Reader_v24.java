@@ -5,7 +5,9 @@ import java.util.List;
 
 import org.apache.spark.SparkContext;
 import org.apache.spark.sql.sources.v2.reader.DataSourceReader;
+import org.apache.spark.sql.sources.Filter;
 import org.apache.spark.sql.sources.v2.reader.InputPartition;
+import org.apache.spark.sql.sources.v2.reader.SupportsPushDownFilters;
 import org.apache.spark.sql.sources.v2.reader.SupportsPushDownRequiredColumns;
 import org.apache.spark.sql.sources.v2.reader.SupportsScanColumnarBatch;
 import org.apache.spark.sql.types.StructType;
@@ -19,6 +21,7 @@ import edu.vanderbilt.accre.laurelin.spark_ttree.Reader;
 
 public class Reader_v24 implements DataSourceReader,
         SupportsScanColumnarBatch,
+        SupportsPushDownFilters,
         SupportsPushDownRequiredColumns {
     private Reader reader;
     LaurelinDSConfig options;
@@ -29,11 +32,28 @@ public class Reader_v24 implements DataSourceReader,
         reader = new Reader(paths, options, sparkContext, ioAccum);
     }
 
+    /**
+     * @return Rough number of bytes held by this reader
+     */
+    public long getEstimatedBytes() {
+        return reader.getEstimatedBytes();
+    }
+
     @Override
     public StructType readSchema() {
         return reader.readSchema();
     }
 
+    @Override
+    public Filter[] pushFilters(Filter[] filters) {
+        return reader.pushFilters(filters);
+    }
+
+    @Override
+    public Filter[] pushedFilters() {
+        return reader.pushedFilters();
+    }
+
     @Override
     public void pruneColumns(StructType requiredSchema) {
         reader.pruneColumns(requiredSchema);
@@ -45,14 +65,7 @@ public class Reader_v24 implements DataSourceReader,
         List<Partition> internalPartitions = reader.planBatchInputPartitions();
         List<InputPartition<ColumnarBatch>> ret = new ArrayList<InputPartition<ColumnarBatch>>(internalPartitions.size());
         for (Partition i: internalPartitions) {
-            Partition_v24 externalPartition = new Partition_v24(i.schema,
-                                                                i.entryStart,
-                                                                i.entryEnd,
-                                                                i.slimBranches,
-                                                                options,
-                                                                i.profileData,
-                                                                i.pid);
-            ret.add(externalPartition);
+            ret.add(new Partition_v24(i));
         }
         return ret;
     }
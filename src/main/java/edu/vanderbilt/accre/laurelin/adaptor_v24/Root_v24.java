@@ -1,5 +1,6 @@
 package edu.vanderbilt.accre.laurelin.adaptor_v24;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -20,6 +21,7 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
 import edu.vanderbilt.accre.laurelin.configuration.LaurelinDSConfig;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event;
 import edu.vanderbilt.accre.laurelin.spark_ttree.Reader;
@@ -39,14 +41,13 @@ public class Root_v24 implements DataSourceV2, ReadSupport, DataSourceRegister,
      * this is very unperformant
      *
      * <p>Utilize a cache where the key is the DataSourceOptions and the value
-     * is the actual reader object. Unfortunately, since the readers themselves
-     * are transient, we need to make these soft references so they're not
-     * eagerly garbage collected
+     * is the actual reader object. The readers themselves are transient, so
+     * they're held strongly here and dropped by the MemoryBudget instead of
+     * the garbage collector
      */
     private static LoadingCache<DataSourceReaderKey,
                                 DataSourceReader> dedupDataSource =
                                     CacheBuilder.newBuilder()
-                                    .softValues()
                                     .maximumSize(100)
                                     .build(
                                        new CacheLoader<DataSourceReaderKey,
@@ -66,6 +67,36 @@ public class Root_v24 implements DataSourceV2, ReadSupport, DataSourceRegister,
                                             }
                                             });
 
+    static {
+        // Readers are the most expensive to rebuild, since it means opening
+        // every file again
+        MemoryBudget.getBudget().register("reader cache", new MemoryBudget.Consumer() {
+            @Override
+            public long getUsedBytes() {
+                long ret = 0;
+                for (DataSourceReader reader: dedupDataSource.asMap().values()) {
+                    ret += sizeOf(reader);
+                }
+                return ret;
+            }
+
+            @Override
+            public long shrink(long bytes) {
+                long freed = 0;
+                Iterator<DataSourceReader> it = dedupDataSource.asMap().values().iterator();
+                while ((freed < bytes) && it.hasNext()) {
+                    freed += sizeOf(it.next());
+                    it.remove();
+                }
+                return freed;
+            }
+        }, 0.05, 40);
+    }
+
+    private static long sizeOf(DataSourceReader reader) {
+        return ((Reader_v24) reader).getEstimatedBytes();
+    }
+
     static class DataSourceReaderKey {
         @Override
         public int hashCode() {
@@ -111,7 +142,10 @@ public class Root_v24 implements DataSourceV2, ReadSupport, DataSourceRegister,
      */
     public DataSourceReader createReader(DataSourceOptions options, SparkContext context, boolean traceIO) {
         try {
-            return dedupDataSource.get(new DataSourceReaderKey(options, context, traceIO));
+            DataSourceReader ret = dedupDataSource.get(new DataSourceReaderKey(options, context, traceIO));
+            // Loading a reader doesn't go through a cache's put()
+            MemoryBudget.getBudget().reclaim();
+            return ret;
         } catch (ExecutionException e) {
             throw new RuntimeException("Could not load DataSourceReader", e);
         }
@@ -26,14 +26,7 @@ public class Batch_v30 implements Batch {
         InputPartition_v30 [] ret = new InputPartition_v30[internalPartitions.size()];
         int idx = 0;
         for (Partition i: internalPartitions) {
-            InputPartition_v30 externalPartition = new InputPartition_v30(i.schema,
-                                                                            i.entryStart,
-                                                                            i.entryEnd,
-                                                                            i.slimBranches,
-                                                                            config,
-                                                                            i.profileData,
-                                                                            i.pid);
-            ret[idx] = externalPartition;
+            ret[idx] = new InputPartition_v30(i);
             idx += 1;
         }
 
@@ -6,7 +6,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import edu.vanderbilt.accre.laurelin.spark_ttree.Partition;
-import edu.vanderbilt.accre.laurelin.spark_ttree.PartitionReader;
 
 public class PartitionReader_v30<T> implements org.apache.spark.sql.connector.read.PartitionReader<T> {
     // The only specialization from spark is ColumnarBatch
@@ -16,13 +15,7 @@ public class PartitionReader_v30<T> implements org.apache.spark.sql.connector.re
 
     public PartitionReader_v30(InputPartition_v30 partitionWrap) {
         Partition partition = partitionWrap.partition;
-        partitionReader = new PartitionReader(partition.schema,
-                                                partition.entryStart,
-                                                partition.entryEnd,
-                                                partition.slimBranches,
-                                                partitionWrap.getConfig(),
-                                                partition.profileData,
-                                                partition.pid);
+        partitionReader = partition.createPartitionReader();
     }
 
     @Override
@@ -3,10 +3,12 @@ package edu.vanderbilt.accre.laurelin.adaptor_v30;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.sql.connector.read.ScanBuilder;
+import org.apache.spark.sql.connector.read.SupportsPushDownFilters;
+import org.apache.spark.sql.sources.Filter;
 
 import edu.vanderbilt.accre.laurelin.spark_ttree.Reader;
 
-public class ScanBuilder_v30 implements ScanBuilder {
+public class ScanBuilder_v30 implements ScanBuilder, SupportsPushDownFilters {
     static final Logger logger = LogManager.getLogger();
 
     private Reader reader;
@@ -14,6 +16,16 @@ public class ScanBuilder_v30 implements ScanBuilder {
         this.reader = reader;
     }
 
+    @Override
+    public Filter[] pushFilters(Filter[] filters) {
+        return reader.pushFilters(filters);
+    }
+
+    @Override
+    public Filter[] pushedFilters() {
+        return reader.pushedFilters();
+    }
+
     @Override
     public Scan_v30 build() {
         return new Scan_v30(reader);
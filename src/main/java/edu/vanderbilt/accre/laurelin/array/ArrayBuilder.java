@@ -55,6 +55,71 @@ public class ArrayBuilder {
          * @return a RawArray with the decompressed bytes
          */
         public RawArray dataWithoutKey(int basketid);   // length must be fObjlen - fKeylen
+
+        /**
+         * Byte offset of the basket within its file. Used to order decoding
+         * jobs so reads proceed sequentially through the file.
+         * @param basketid the zero-indexed basket index for the given branch
+         * @return the basket's offset, or the basketid if no offset is known
+         */
+        public default long basketSeek(int basketid) {
+            return basketid;
+        }
+
+        /**
+         * Number of decompressed bytes in the basket, used to bound how much
+         * is decoded at once. An estimate is enough, so implementations
+         * shouldn't read the key just to answer this.
+         * @param basketid the zero-indexed basket index for the given branch
+         * @return the (possibly estimated) size of the basket's payload
+         */
+        public default int basketSize(int basketid) {
+            return basketkey(basketid).fObjlen;
+        }
+
+        /**
+         * Performs the I/O needed by dataWithoutKey ahead of time, without
+         * doing any of the CPU-heavy decompression, so the two can run on
+         * different threads. This is only a hint, failures should be left for
+         * dataWithoutKey to report.
+         * @param basketid the zero-indexed basket index for the given branch
+         */
+        public default void prefetch(int basketid) {
+        }
+
+        /**
+         * Looks up entries of a basket which were already decoded by an
+         * earlier query.
+         * @param basketid the zero-indexed basket index for the given branch
+         * @param interpretation how the entries were decoded
+         * @param start first entry, relative to the start of the basket
+         * @param stop one past the last entry
+         * @return the decoded entries, or null if they aren't cached
+         */
+        public default Array getDecoded(int basketid, Interpretation interpretation, int start, int stop) {
+            return null;
+        }
+
+        /**
+         * Offers freshly-decoded entries of a basket for reuse by later
+         * queries.
+         * @param basketid the zero-indexed basket index for the given branch
+         * @param interpretation how the entries were decoded
+         * @param start first entry, relative to the start of the basket
+         * @param stop one past the last entry
+         * @param decoded the decoded entries
+         */
+        public default void putDecoded(int basketid, Interpretation interpretation, int start, int stop, Array decoded) {
+        }
+
+        /**
+         * Called once nothing decoded from the basket's dataWithoutKey() is
+         * read anymore, since the data may be a view of a buffer which is
+         * reused afterwards.
+         * @param basketid the zero-indexed basket index for the given branch
+         */
+        public default void release(int basketid) {
+        }
     }
 
     /**
@@ -66,55 +131,123 @@ public class ArrayBuilder {
     BasketKey[] basketkeys;
     private Array array;
     Array output_relative;
-    Array output_whole;
-    ArrayList<FutureTask<Array>> tasks = new ArrayList<FutureTask<Array>>();
+
+    /**
+     * The decoded baskets, handed out directly instead of being copied into
+     * one contiguous array. Only requests spanning several baskets are copied
+     */
+    Array[] chunks;
+
+    /**
+     * Entry index of the start of each chunk relative to entrystart, plus one
+     * past the end of the last chunk
+     */
+    long[] chunkEntryStarts;
+
+    /**
+     * The decoding job of each chunk, null if the chunk was already decoded
+     */
+    FutureTask<Array>[] tasks;
+    private Executor executor;
     private long[] basketEntryOffsets;
-    int global_offset_whole;
+    private GetBasket getbasket;
 
-    private Array processBasket(long entryOffset, long itemOffset, Range<Long> entryRange, int basketId, GetBasket basketCallback, Array output) {
-        // Put entryRange from the given basketId into output, starting at entry/itemoffset in the destination
-        int entryStart = Math.toIntExact(entryRange.lowerEndpoint());
-        int entryStop = Math.toIntExact(entryRange.upperEndpoint());
-        int entries = entryStop - entryStart;
-        BasketKey basketKey = basketCallback.basketkey(basketId);;
-        int bytes = basketKey.fLast - basketKey.fKeylen;
-        int items = interpretation.numitems(bytes, entries);
+    /**
+     * The basket of each chunk, and whether it was decoded by this builder
+     * and so has to be released. Guarded by this
+     */
+    private int[] chunkBaskets;
+    private boolean[] decoded;
+    private boolean released = false;
 
+    /**
+     * Decodes only the entries in entryRange from a basket. The basket still
+     * has to be decompressed whole, but converting, compacting and counting
+     * is limited to the entries the partition actually returns
+     *
+     * @param entryRange Global entries to decode, within the basket
+     * @param basketId Basket to decode
+     * @param basketCallback Source of the basket
+     * @return The decoded entries
+     */
+    private Array processBasket(Range<Long> entryRange, int basketId, GetBasket basketCallback) {
+        int basketStart = Math.toIntExact(basketEntryOffsets[basketId]);
+        int basketEntries = Math.toIntExact(basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId]);
+        int start = Math.toIntExact(entryRange.lowerEndpoint()) - basketStart;
+        int stop = Math.toIntExact(entryRange.upperEndpoint()) - basketStart;
+        // Read the payload first, so a key which isn't known yet comes
+        // along with it instead of costing a request of its own
         RawArray basketdata = basketCallback.dataWithoutKey(basketId);
+        BasketKey basketKey = basketCallback.basketkey(basketId);
         Array source = null;
 
-
         int border = basketKey.fLast - basketKey.fKeylen;
         if (basketKey.fObjlen == border) {
+            // Fixed-size entries, so the wanted bytes can be found directly
+            int entrybytes = (basketEntries == 0) ? 0 : border / basketEntries;
+            basketdata = basketdata.slice(start * entrybytes, stop * entrybytes);
             basketdata = interpretation.convertBufferDiskToMemory(basketdata);
-            source = interpretation.fromroot(basketdata, null, 0, entryStop - entryStart);
+            source = interpretation.fromroot(basketdata, null, 0, stop - start);
         } else {
+            // Only convert the offsets of the wanted entries (plus the end of
+            // the last one). They still point into the whole content
             RawArray content = basketdata.slice(0, border);
-            RawArray offsets = basketdata.slice(border + 4, basketKey.fObjlen);
-            PrimitiveArray.Int4 testcontent = new PrimitiveArray.Int4(content);
-            PrimitiveArray.Int4 testoffsets = new PrimitiveArray.Int4(offsets);
+            RawArray offsets = basketdata.slice(border + 4 + start * 4, border + 4 + (stop + 1) * 4);
             PrimitiveArray.Int4 byteoffsets = new PrimitiveArray.Int4(offsets).add(true, -basketKey.fKeylen);
-            byteoffsets.put(byteoffsets.length() - 1, border);
+            if (stop == basketEntries) {
+                byteoffsets.put(byteoffsets.length() - 1, border);
+            }
             content = interpretation.subarray().convertBufferDiskToMemory(content);
             byteoffsets = interpretation.subarray().convertOffsetDiskToMemory(byteoffsets);
-            int start = (0);
-            int stop = (entryStop - entryStart);
-            source = interpretation.fromroot(content, byteoffsets, start, stop);
+            source = interpretation.fromroot(content, byteoffsets, 0, stop - start);
         }
+        basketCallback.putDecoded(basketId, interpretation, start, stop, source);
+        return source;
+    }
 
-        interpretation.fill(source,
-                output,
-                (int) itemOffset,
-                (int) (itemOffset + items),
-                (int) entryOffset,
-                (int) (entryOffset + entries));
-        return output;
+    /**
+     * Decodes a chunk, keeping track of its basket until release()
+     */
+    private Array decodeChunk(int chunkId, Range<Long> entryRange, int basketId) {
+        boolean ok = false;
+        try {
+            Array ret = processBasket(entryRange, basketId, getbasket);
+            ok = true;
+            return ret;
+        } finally {
+            synchronized (this) {
+                if (ok && !released) {
+                    decoded[chunkId] = true;
+                } else {
+                    getbasket.release(basketId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets go of the baskets of every decoded chunk. Nothing handed out by
+     * getArray() may be read afterwards. Chunks still being decoded are
+     * released once they're done
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (int i = 0; i < chunks.length; i += 1) {
+            if (decoded[i]) {
+                decoded[i] = false;
+                getbasket.release(chunkBaskets[i]);
+            }
+        }
     }
 
     public ArrayBuilder(GetBasket getbasket, Interpretation interpretation, long[] basketEntryOffsets, Executor executor, long entrystart, long entrystop) {
         this.basketEntryOffsets = basketEntryOffsets;
         this.interpretation = interpretation;
-        this.global_offset_whole = -1;
+        this.executor = executor;
+        this.getbasket = getbasket;
 
         if (basketEntryOffsets.length == 0  ||  basketEntryOffsets[0] != 0) {
             throw new IllegalArgumentException("basketEntryOffsets must start with zero");
@@ -138,71 +271,126 @@ public class ArrayBuilder {
         ImmutableRangeMap<Long, Integer> intersection = entryRangeMap.subRangeMap(Range.closedOpen(entrystart, entrystop));
         // This emits the entryRange and associated basketid we need to process
         ImmutableSet<Entry<Range<Long>, Integer>> intersectionEntries = intersection.asMapOfRanges().entrySet();
-        long entryOffset_whole = 0;
-        long itemOffset_whole = 0;
-
-        // Loop once to calculate the length of the output buffer
+        chunks = new Array[intersectionEntries.size()];
+        chunkEntryStarts = new long[chunks.length + 1];
+        chunkBaskets = new int[chunks.length];
+        decoded = new boolean[chunks.length];
+        @SuppressWarnings("unchecked")
+        FutureTask<Array>[] newTasks = new FutureTask[chunks.length];
+        tasks = newTasks;
+        long entryOffset = 0;
+        int chunk = 0;
         for (Entry<Range<Long>, Integer> entry: intersectionEntries) {
+            // Only the part of the basket inside [entrystart, entrystop)
             Range<Long> entryRange = entry.getKey();
             Integer basketId = entry.getValue();
-            BasketKey key = getbasket.basketkey(basketId);
-            int bytes = key.fLast - key.fKeylen;
-
-            // whole basket
-            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
-            Range<Long> entryRange_whole = Range.closedOpen(basketEntryOffsets[basketId], basketEntryOffsets[basketId + 1]);
-            long items_whole = interpretation.numitems(bytes, (int)entries_whole);
+            long entries = entryRange.upperEndpoint() - entryRange.lowerEndpoint();
+            int localStart = (int) (entryRange.lowerEndpoint() - basketEntryOffsets[basketId]);
 
+            final int chunkId = chunk;
+            chunkBaskets[chunkId] = basketId;
+            chunks[chunkId] = getbasket.getDecoded(basketId, interpretation, localStart, (int) (localStart + entries));
+            if (chunks[chunkId] != null) {
+                // Decoded by an earlier query, no need to even read the key
+            } else if (executor == null) {
+                chunks[chunkId] = decodeChunk(chunkId, entryRange, basketId);
+            } else {
+                FutureTask<Array> task = new FutureTask<Array>(() -> {
+                    chunks[chunkId] = decodeChunk(chunkId, entryRange, basketId);
+                    return chunks[chunkId];
+                });
+                if (executor instanceof DecodeScheduler.Batch) {
+                    // Give the scheduler enough info to order and bound the job
+                    ((DecodeScheduler.Batch) executor).execute(task, () -> getbasket.prefetch(basketId), getbasket.basketSeek(basketId), getbasket.basketSize(basketId));
+                } else {
+                    executor.execute(task);
+                }
+                tasks[chunkId] = task;
+            }
             // postlogue
-            entryOffset_whole += entries_whole;
-            itemOffset_whole += items_whole;
+            entryOffset += entries;
+            chunk += 1;
+            chunkEntryStarts[chunk] = entryOffset;
         }
-        output_whole = interpretation.destination((int)itemOffset_whole, (int)entryOffset_whole);
-        entryOffset_whole = 0;
-        itemOffset_whole = 0;
-        // Now loop again to do the actual filling
-        for (Entry<Range<Long>, Integer> entry: intersectionEntries) {
-            Range<Long> entryRange = entry.getKey();
-            Integer basketId = entry.getValue();
-            BasketKey key = getbasket.basketkey(basketId);
-            int bytes = key.fLast - key.fKeylen;
+    }
 
+    /**
+     * Waits for a chunk to finish decoding
+     * @param chunk Index of the chunk
+     * @return The decoded chunk
+     */
+    private Array getChunk(int chunk) {
+        if (tasks[chunk] == null) {
+            return chunks[chunk];
+        }
+        try {
+            return tasks[chunk].get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // whole basket
-            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
-            Range<Long> entryRange_whole = Range.closedOpen(basketEntryOffsets[basketId], basketEntryOffsets[basketId + 1]);
-            long items_whole = interpretation.numitems(bytes, (int)entries_whole);
+    /**
+     * @param entry Entry relative to the start of the first chunk
+     * @return The chunk holding that entry
+     */
+    private int findChunk(long entry) {
+        // Baskets are never empty, so the starts are strictly increasing
+        int idx = Arrays.binarySearch(chunkEntryStarts, entry);
+        if (idx < 0) {
+            idx = -idx - 2;
+        }
+        return Math.min(idx, chunks.length - 1);
+    }
 
-            if (global_offset_whole == -1) {
-                global_offset_whole = (int) (entrystart - basketEntryOffsets[basketId]);
-            }
-            if (executor == null) {
-                processBasket(entryOffset_whole, itemOffset_whole, entryRange_whole, basketId, getbasket, output_whole);
-            } else {
-                final long entryOffset_tmp = entryOffset_whole;
-                final long itemOffset_tmp = itemOffset_whole;
-                FutureTask<Array> task = new FutureTask<Array>(() ->
-                    processBasket(entryOffset_tmp, itemOffset_tmp, entryRange_whole, basketId, getbasket, output_whole));
-                executor.execute(task);
-                tasks.add(task);
-            }
-            // postlogue
-            entryOffset_whole += entries_whole;
-            itemOffset_whole += items_whole;
+    /**
+     * Copies entries spanning several chunks into a new array
+     * @param start First entry, relative to the start of the first chunk
+     * @param stop One past the last entry
+     * @return The concatenated entries
+     */
+    private Array concatenate(long start, long stop) {
+        int first = findChunk(start);
+        int last = findChunk(stop - 1);
+        Array[] parts = new Array[last - first + 1];
+        int items = 0;
+        for (int i = first; i <= last; i += 1) {
+            long chunkStart = chunkEntryStarts[i];
+            long partStart = Math.max(start, chunkStart) - chunkStart;
+            long partStop = Math.min(stop, chunkEntryStarts[i + 1]) - chunkStart;
+            parts[i - first] = getChunk(i).clip((int) partStart, (int) partStop);
+            items += interpretation.source_numitems(parts[i - first]);
         }
+        Array output = interpretation.destination(items, (int) (stop - start));
+        int itemOffset = 0;
+        int entryOffset = 0;
+        for (Array part: parts) {
+            int partItems = interpretation.source_numitems(part);
+            interpretation.fill(part, output, itemOffset, itemOffset + partItems, entryOffset, entryOffset + part.length());
+            itemOffset += partItems;
+            entryOffset += part.length();
+        }
+        return output;
     }
 
     public Array getArray(int rowId, int count) {
-        for (FutureTask<Array> task : tasks) {
-            try {
-                task.get();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
-            }
+        if (executor instanceof DecodeScheduler.Batch) {
+            // Don't deadlock if the consumer asks before the batch is handed off
+            ((DecodeScheduler.Batch) executor).submit();
+        }
+        long start = rowId;
+        long stop = start + count;
+        if (chunks.length == 0) {
+            return interpretation.destination(0, 0);
+        }
+        int chunk = findChunk(start);
+        if ((count == 0) || (stop <= chunkEntryStarts[chunk + 1])) {
+            // Fast path, hand out a view of the decoded basket
+            long chunkStart = chunkEntryStarts[chunk];
+            return getChunk(chunk).clip((int) (start - chunkStart), (int) (stop - chunkStart));
         }
-        Array x = output_whole.clip(global_offset_whole + rowId, global_offset_whole + rowId + count);
-        return x;
+        return concatenate(start, stop);
     }
 }
@@ -0,0 +1,307 @@
+package edu.vanderbilt.accre.laurelin.array;
+
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Executor-wide scheduler for basket decoding jobs.
+ *
+ * <p>Previously, each ArrayBuilder submitted its baskets one-by-one to a
+ * shared ThreadPoolExecutor whose size was rewritten by every PartitionReader.
+ * Instead, each partition collects all of its basket jobs into a Batch, which
+ * is handed to the scheduler at once. Within a batch, jobs are run in order of
+ * their byte offset in the file to keep the underlying reads sequential.
+ * Between batches (i.e. concurrent Spark tasks on the same executor), jobs are
+ * dispatched round-robin so one task can't starve the others.
+ *
+ * <p>To keep many concurrent tasks from decompressing the whole executor into
+ * memory, the total number of decompressed bytes being decoded at once is
+ * bounded. A single job larger than the bound is still allowed to run if
+ * nothing else is in-flight.
+ *
+ * <p>Jobs can optionally carry a separate fetch stage which does the I/O for
+ * the job. If the batch was given an I/O executor (e.g. virtual threads for
+ * remote reads), the fetch runs there first and the decode stage is handed to
+ * the bounded pool afterwards, so waiting on the network doesn't tie up a
+ * decode thread. A job's bytes count against the in-flight budget from the
+ * start of its fetch, which bounds the number of outstanding reads.
+ */
+public class DecodeScheduler {
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Work-stealing pool that actually runs the jobs. ForkJoinPool threads are
+     * daemon threads, so unlike the ThreadPoolExecutor this replaces, the pool
+     * doesn't need an explicit shutdown hook to let the JVM exit.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Upper bound of decompressed bytes being decoded at once
+     */
+    private final long maxInflightBytes;
+
+    /**
+     * Sum of the sizes of all currently-running jobs. Guarded by this
+     */
+    private long inflightBytes = 0;
+
+    /**
+     * Batches with jobs that haven't been dispatched yet, in round-robin
+     * order. Guarded by this
+     */
+    private final LinkedList<Batch> pending = new LinkedList<Batch>();
+
+    private static DecodeScheduler singleton = null;
+
+    /**
+     * Returns the executor-wide scheduler, creating it on first use. Since
+     * the pool is shared between every task in the JVM, the parameters of the
+     * first caller are the ones that stick.
+     *
+     * @param parallelism Number of worker threads, typically the number of
+     *                    cores given to this executor
+     * @param maxInflightBytes Upper bound of decompressed bytes in-flight
+     * @return The singleton DecodeScheduler
+     */
+    public static synchronized DecodeScheduler getScheduler(int parallelism, long maxInflightBytes) {
+        if (singleton == null) {
+            singleton = new DecodeScheduler(parallelism, maxInflightBytes);
+        }
+        return singleton;
+    }
+
+    public DecodeScheduler(int parallelism, long maxInflightBytes) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Decode scheduler needs at least one thread");
+        }
+        this.maxInflightBytes = maxInflightBytes;
+        this.pool = new ForkJoinPool(parallelism, new DecodeThreadFactory(), null, true);
+        logger.debug(String.format("Starting decode scheduler with %d threads and %d bytes in-flight", parallelism, maxInflightBytes));
+    }
+
+    /**
+     * Begins a new batch of jobs, typically one per partition.
+     * @return An empty batch
+     */
+    public Batch newBatch() {
+        return new Batch(null);
+    }
+
+    /**
+     * Begins a new batch of jobs whose fetch stages run on the given executor
+     * @param ioExecutor Executor for the fetch stages, or null to run them
+     *                   on the decode pool along with the rest of the job
+     * @return An empty batch
+     */
+    public Batch newBatch(Executor ioExecutor) {
+        return new Batch(ioExecutor);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public synchronized long getInflightBytes() {
+        return inflightBytes;
+    }
+
+    /**
+     * Moves jobs from the pending batches into the pool until either there's
+     * nothing left to do or the in-flight budget is exhausted
+     */
+    private void dispatch() {
+        synchronized (this) {
+            while (!pending.isEmpty()) {
+                Batch batch = pending.peekFirst();
+                Job job;
+                synchronized (batch) {
+                    job = batch.jobs.peek();
+                    if (job == null) {
+                        pending.removeFirst();
+                        continue;
+                    }
+                    if ((inflightBytes > 0) && (inflightBytes + job.bytes > maxInflightBytes)) {
+                        return;
+                    }
+                    batch.jobs.poll();
+                    pending.removeFirst();
+                    if (!batch.jobs.isEmpty()) {
+                        pending.addLast(batch);
+                    }
+                }
+                inflightBytes += job.bytes;
+                if ((job.fetch != null) && (batch.ioExecutor != null)) {
+                    batch.ioExecutor.execute(() -> {
+                        try {
+                            job.fetch.run();
+                        } catch (Throwable e) {
+                            // Fetching is only a hint, the decode stage
+                            // repeats any failed I/O and reports the error
+                            logger.debug("Fetch stage failed", e);
+                        }
+                        pool.execute(() -> runJob(job));
+                    });
+                } else {
+                    pool.execute(() -> runJob(job));
+                }
+            }
+        }
+    }
+
+    private void runJob(Job job) {
+        try {
+            job.task.run();
+        } finally {
+            complete(job);
+        }
+    }
+
+    private void complete(Job job) {
+        synchronized (this) {
+            inflightBytes -= job.bytes;
+        }
+        dispatch();
+    }
+
+    private synchronized void enqueue(Batch batch) {
+        if (!pending.contains(batch)) {
+            pending.addLast(batch);
+        }
+    }
+
+    private synchronized void dequeue(Batch batch) {
+        pending.remove(batch);
+    }
+
+    private static class Job {
+        private final Runnable task;
+        private final Runnable fetch;
+        private final long offset;
+        private final long bytes;
+        private final long sequence;
+
+        Job(Runnable task, Runnable fetch, long offset, long bytes, long sequence) {
+            this.task = task;
+            this.fetch = fetch;
+            this.offset = offset;
+            this.bytes = bytes;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Job> JOB_ORDER =
+            Comparator.comparingLong((Job j) -> j.offset).thenComparingLong(j -> j.sequence);
+
+    /**
+     * A group of jobs (usually every basket of every column of a partition)
+     * which are scheduled together. Jobs added before submit() are held until
+     * the whole batch is known so they can be properly ordered. Jobs added
+     * after submit() are dispatched immediately.
+     *
+     * <p>Batch implements Executor so it can be passed anywhere an Executor is
+     * accepted. Plain execute() calls don't carry an offset or size, so they
+     * are ordered by insertion.
+     */
+    public class Batch implements Executor {
+        private final PriorityQueue<Job> jobs = new PriorityQueue<Job>(JOB_ORDER);
+        private final Executor ioExecutor;
+        private long sequence = 0;
+        private boolean submitted = false;
+
+        private Batch(Executor ioExecutor) {
+            this.ioExecutor = ioExecutor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            execute(task, 0, 0);
+        }
+
+        /**
+         * Adds a job to this batch.
+         * @param task The decoding job to run
+         * @param offset Byte offset of the basket within its file
+         * @param bytes Number of decompressed bytes the job will produce
+         */
+        public void execute(Runnable task, long offset, long bytes) {
+            execute(task, null, offset, bytes);
+        }
+
+        /**
+         * Adds a job with a separate fetch stage to this batch.
+         * @param task The decoding job to run
+         * @param fetch I/O to perform before the decoding job, possibly on a
+         *              different executor. May be null
+         * @param offset Byte offset of the basket within its file
+         * @param bytes Number of decompressed bytes the job will produce
+         */
+        public void execute(Runnable task, Runnable fetch, long offset, long bytes) {
+            boolean dispatchNow;
+            synchronized (this) {
+                jobs.add(new Job(task, fetch, offset, bytes, sequence));
+                sequence += 1;
+                dispatchNow = submitted;
+            }
+            if (dispatchNow) {
+                enqueue(this);
+                dispatch();
+            }
+        }
+
+        /**
+         * Hands every job added so far to the scheduler. Calling submit() more
+         * than once is harmless.
+         */
+        public void submit() {
+            synchronized (this) {
+                if (submitted) {
+                    return;
+                }
+                submitted = true;
+            }
+            enqueue(this);
+            dispatch();
+        }
+
+        /**
+         * Drops every job in this batch that hasn't started yet. Futures
+         * belonging to dropped jobs are cancelled.
+         */
+        public void cancel() {
+            dequeue(this);
+            synchronized (this) {
+                for (Job job: jobs) {
+                    if (job.task instanceof Future) {
+                        ((Future<?>) job.task).cancel(false);
+                    }
+                }
+                jobs.clear();
+            }
+        }
+
+        public synchronized int getPendingCount() {
+            return jobs.size();
+        }
+    }
+
+    private static class DecodeThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread ret = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            ret.setName("laurelin-decode-" + count.getAndIncrement());
+            return ret;
+        }
+    }
+}
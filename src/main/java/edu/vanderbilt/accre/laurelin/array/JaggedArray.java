@@ -6,7 +6,9 @@ import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
 
 public class JaggedArray extends Array {
     PrimitiveArray.Int4 counts;
-    PrimitiveArray.Int4 offsets;
+    // Built on demand. Arrays can be shared between threads via the
+    // DecodedCache, so publish it safely
+    volatile PrimitiveArray.Int4 offsets;
     Array content;
 
     public JaggedArray(Interpretation interpretation, int length, PrimitiveArray.Int4 counts, Array content) {
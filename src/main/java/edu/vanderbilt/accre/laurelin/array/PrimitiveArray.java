@@ -76,6 +76,26 @@ public abstract class PrimitiveArray extends Array {
         return this.buffer;
     }
 
+    /**
+     * Makes an array which owns all of its backing buffer, so holding onto
+     * it doesn't keep a larger buffer alive (or read from a pooled buffer
+     * which has since been reused)
+     *
+     * @return This array if it already owns its whole buffer, otherwise a
+     *         copy
+     */
+    public PrimitiveArray detach() {
+        if (this.buffer.hasArray() && (this.buffer.arrayOffset() == 0) && (this.buffer.position() == 0)
+                && (this.buffer.limit() == this.buffer.array().length)) {
+            return this;
+        }
+        ByteBuffer src = this.buffer.duplicate();
+        ByteBuffer out = ByteBuffer.allocate(src.remaining());
+        out.put(src);
+        out.flip();
+        return (PrimitiveArray) this.make(out);
+    }
+
     protected abstract Array make(ByteBuffer out);
 
     /////////////////////////////////////////////////////////////////////////// Bool
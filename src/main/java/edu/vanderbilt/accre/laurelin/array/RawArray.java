@@ -30,6 +30,18 @@ public class RawArray extends PrimitiveArray {
         return new RawArray(tmp.slice());
     }
 
+    /**
+     * Copies the whole array into dst, starting at dst's position
+     *
+     * @param dst The destination, advanced by length() bytes
+     */
+    public void copyInto(ByteBuffer dst) {
+        ByteBuffer src = this.buffer.duplicate();
+        src.position(0);
+        src.limit(length());
+        dst.put(src);
+    }
+
     @Override
     public Array clip(int start, int stop) {
         ByteBuffer out = this.buffer.duplicate();
@@ -46,25 +58,60 @@ public class RawArray extends PrimitiveArray {
             return new RawArray(out);
         } else {
             ByteBuffer out = ByteBuffer.allocate(byteoffsets.get(local_entrystop) - byteoffsets.get(local_entrystart) - skipbytes * (local_entrystop - local_entrystart));
-            this.buffer.position(0);
-            for (int i = local_entrystart;  i < local_entrystop;  i++) {
-                int start = byteoffsets.get(i) + skipbytes;
-                int count = byteoffsets.get(i + 1) - start;
-                byte[] copy = new byte[count];
-                this.buffer.position(start);
-                this.buffer.get(copy);
-                out.put(copy);
-            }
-            this.buffer.position(0);
+            compactInto(byteoffsets, skipbytes, 1, local_entrystart, local_entrystop, out, null);
             out.position(0);
             return new RawArray(out);
         }
     }
 
+    /**
+     * Copies the entries [local_entrystart, local_entrystop) into content,
+     * dropping the first skipbytes of each entry (e.g. the std::vector
+     * header), and writes the number of items in each entry into counts.
+     * Both are done in a single pass without allocating per entry.
+     *
+     * @param byteoffsets Offset of each entry into this array
+     * @param skipbytes Bytes to drop from the start of each entry
+     * @param itemsize Size of one item, used to turn byte lengths into counts
+     * @param local_entrystart First entry to copy
+     * @param local_entrystop One past the last entry to copy
+     * @param content Destination of the items, sized to fit all of them
+     * @param counts Destination of the per-entry counts, or null
+     */
+    public void compactInto(PrimitiveArray.Int4 byteoffsets, int skipbytes, int itemsize, int local_entrystart, int local_entrystop, ByteBuffer content, ByteBuffer counts) {
+        // Don't move the position of our own buffer, other threads may be
+        // reading from it
+        ByteBuffer src = this.buffer.duplicate();
+        boolean arrays = src.hasArray() && content.hasArray();
+        int begin = byteoffsets.get(local_entrystart);
+        for (int i = local_entrystart; i < local_entrystop; i += 1) {
+            int end = byteoffsets.get(i + 1);
+            int from = begin + skipbytes;
+            int count = end - from;
+            if (count < 0) {
+                throw new IllegalStateException("Entry " + i + " is shorter than its " + skipbytes + " byte header");
+            }
+            if (arrays) {
+                int pos = content.position();
+                System.arraycopy(src.array(), src.arrayOffset() + from, content.array(), content.arrayOffset() + pos, count);
+                content.position(pos + count);
+            } else {
+                src.limit(end);
+                src.position(from);
+                content.put(src);
+            }
+            if (counts != null) {
+                counts.putInt(count / itemsize);
+            }
+            begin = end;
+        }
+    }
+
     @Override
     public Object toArray(boolean bigEndian) {
-        byte[] out = new byte[this.buffer.limit() - this.buffer.position()];
-        this.buffer.get(out);
+        ByteBuffer buf = this.buffer.duplicate();
+        byte[] out = new byte[buf.limit() - buf.position()];
+        buf.get(out);
         return out;
     }
 
@@ -1,68 +1,544 @@
 package edu.vanderbilt.accre.laurelin.cache;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import edu.vanderbilt.accre.laurelin.array.RawArray;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOFactory;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
 
+/**
+ * Executor-wide cache of decompressed baskets. Sized by the MemoryBudget
+ * rather than by the garbage collector, unless moved off-heap with
+ * ensureOffHeapLimit() or shared with the rest of the node with
+ * ensureShared().
+ *
+ * <p>The on-heap cache can also be split into two tiers with setTiered(): a
+ * large tier of baskets as stored on disk, and a small tier of decompressed
+ * ones. Compressed baskets are several times smaller, and decompressing
+ * them is much cheaper than reading them again from remote storage, so a
+ * tight budget holds many more baskets this way. A compressed tier hit is
+ * decompressed and promoted to the decompressed tier, which keeps the
+ * compressed bytes alongside. Baskets evicted from the decompressed tier are
+ * demoted by putting those bytes back into the compressed tier, even if the
+ * compressed copy was evicted in the meantime. Both tiers together get the
+ * quota of the untiered cache.
+ */
 public class BasketCache {
+    private static final Logger logger = LogManager.getLogger();
     private static BasketCache singleton = new BasketCache();
 
     public static synchronized BasketCache getCache() {
         return singleton;
     }
 
+    private static final double QUOTA = 0.4;
+    private static final double TIERED_QUOTA = 0.1;
+    private static final double COMPRESSED_QUOTA = QUOTA - TIERED_QUOTA;
+    private static final long AVERAGE_BASKET_BYTES = 32 * 1024;
+
     private BasketCache() {
-        cache = Collections.synchronizedMap(new WeakHashMap<ROOTFile, Map<Long, SoftReference<RawArray>>>());
+        cache = new LruByteCache<Key, Entry>(Entry::getBytes);
+        compressed = new LruByteCache<Key, ByteBuffer>(ByteBuffer::limit);
+        cache.setEvictionListener((key, value) -> {
+            if (tiered && (value.raw != null)) {
+                // The compressed tier can't be touched while this one is
+                // locked, so demote once the eviction is over
+                synchronized (demoted) {
+                    demoted.add(new AbstractMap.SimpleImmutableEntry<Key, ByteBuffer>(key, value.raw));
+                }
+            }
+        });
+        MemoryBudget.getBudget().register("basket cache", cache, QUOTA, 20);
+        // Costs a remote read to refill, so outlives decompressed baskets
+        MemoryBudget.getBudget().register("compressed basket cache", compressed, 0, 25);
     }
 
-    Map<ROOTFile, Map<Long, SoftReference<RawArray>>> cache;
-    int totalCount = 0;
-    int hitCount = 0;
-    int missCount = 0;
+    /**
+     * Baskets are identified by their offset, which is unique within a file.
+     * Use the path instead of the ROOTFile so re-opened files hit the cache
+     */
+    private static class Key {
+        String path;
+        long offset;
+
+        Key(String path, long offset) {
+            this.path = path;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            return (offset == ((Key) o).offset) && path.equals(((Key) o).path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, offset);
+        }
+    }
+
+    /**
+     * A decompressed basket, and its compressed bytes if it came through the
+     * compressed tier
+     */
+    private static class Entry {
+        RawArray data;
+        ByteBuffer raw;
+
+        Entry(RawArray data, ByteBuffer raw) {
+            this.data = data;
+            this.raw = raw;
+        }
+
+        long getBytes() {
+            return data.length() + ((raw == null) ? 0 : raw.limit());
+        }
+    }
+
+    LruByteCache<Key, Entry> cache;
+    LruByteCache<Key, ByteBuffer> compressed;
+    private List<Map.Entry<Key, ByteBuffer>> demoted = new ArrayList<Map.Entry<Key, ByteBuffer>>();
+    private volatile OffHeapCache<Key> offHeap;
+    private volatile SharedBasketCache shared;
+    private volatile boolean tiered = false;
+    private String admissionPolicy = "lru";
+
+    /**
+     * Admission policy asked for by the first configureAdmission() which
+     * didn't want the default, or null
+     */
+    private String configuredAdmission = null;
+
+    /**
+     * Whether a task already turned on the compressed tier
+     */
+    private boolean configuredTiered = false;
+    long totalCount = 0;
+    long hitCount = 0;
+    long missCount = 0;
     long putBytes = 0;
     long getBytes = 0;
+    long compressedHitCount = 0;
+    long compressedMissCount = 0;
+    long compressedGetBytes = 0;
+    long prefetchHitCount = 0;
+    long prefetchMissCount = 0;
 
-    public RawArray get(ROOTFile backingFile, long offset) {
-        totalCount += 1;
-        Map<Long, SoftReference<RawArray>> fileMap = cache.get(backingFile);
-        if (fileMap == null) {
-            missCount += 1;
-            return null;
+    /**
+     * Stores baskets in native memory instead of the heap, which keeps large
+     * caches from lengthening GC pauses. Can only be turned on, and the limit
+     * only grows, since other readers in this JVM may rely on it.
+     *
+     * @param bytes Native memory to use, which has to fit within
+     *              -XX:MaxDirectMemorySize
+     */
+    public synchronized void ensureOffHeapLimit(long bytes) {
+        if (offHeap == null) {
+            offHeap = new OffHeapCache<Key>(bytes);
+            if (admissionPolicy.equals("tinylfu")) {
+                offHeap.setAdmission(newSketch(bytes));
+            }
+            cache.clear();
+        } else if (offHeap.getLimit() < bytes) {
+            offHeap.setLimit(bytes);
         }
-        synchronized (fileMap) {
-            SoftReference<RawArray> ref = fileMap.get(offset);
-            if (ref == null) {
-                missCount += 1;
-                return null;
+    }
+
+    /**
+     * Stores baskets in a cache shared with the other JVMs on this node
+     * instead of in this JVM. Falls back to the local cache if the shared one
+     * can't be opened.
+     *
+     * @param path File backing the shared cache, e.g. under /dev/shm
+     * @param bytes Size of the shared cache, if this JVM creates it
+     */
+    public synchronized void ensureShared(Path path, long bytes) {
+        if ((shared != null) && shared.getPath().equals(path)) {
+            return;
+        }
+        try {
+            shared = SharedBasketCache.open(path, bytes);
+            cache.clear();
+        } catch (IOException e) {
+            logger.warn("Couldn't open shared basket cache " + path + ", using the local one", e);
+        }
+    }
+
+    public boolean isShared() {
+        return shared != null;
+    }
+
+    private static TinyLfu newSketch(long bytes) {
+        return new TinyLfu((int) Math.min(Integer.MAX_VALUE, bytes / AVERAGE_BASKET_BYTES));
+    }
+
+    /**
+     * Chooses which baskets are let into a full cache. "lru" admits
+     * everything. "tinylfu" only admits baskets requested more often than
+     * the one they would evict, so large scans don't flush frequently reused
+     * baskets. With tinylfu the on-heap cache is held to its share of the
+     * memory budget, since admission needs a fixed capacity to compare
+     * against. The node-shared cache always admits everything.
+     *
+     * @param policy "lru" or "tinylfu"
+     */
+    public synchronized void setAdmission(String policy) {
+        if (policy.equals(admissionPolicy)) {
+            return;
+        }
+        if (policy.equals("tinylfu")) {
+            long budget = MemoryBudget.getBudget().getBudgetBytes();
+            cache.setAdmission(newSketch((long) (budget * QUOTA)));
+            compressed.setAdmission(newSketch((long) (budget * COMPRESSED_QUOTA)));
+            if (offHeap != null) {
+                offHeap.setAdmission(newSketch(offHeap.getLimit()));
+            }
+        } else if (policy.equals("lru")) {
+            cache.setAdmission(null);
+            compressed.setAdmission(null);
+            if (offHeap != null) {
+                offHeap.setAdmission(null);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown basketAdmission: " + policy);
+        }
+        admissionPolicy = policy;
+        applyLimits();
+    }
+
+    /**
+     * Sets the admission policy from a task's options. Every task in the JVM
+     * shares the cache, and changing the policy throws away the frequency
+     * history, so the first task asking for something other than "lru" sets
+     * it and later ones can't change it
+     *
+     * @param policy "lru" or "tinylfu"
+     */
+    public synchronized void configureAdmission(String policy) {
+        if (!policy.equals("lru") && !policy.equals("tinylfu")) {
+            throw new IllegalArgumentException("Unknown basketAdmission: " + policy);
+        }
+        if (policy.equals("lru")) {
+            return;
+        }
+        if (configuredAdmission == null) {
+            configuredAdmission = policy;
+            setAdmission(policy);
+        } else if (!policy.equals(configuredAdmission)) {
+            logger.debug("Keeping basket admission " + configuredAdmission + ", ignoring " + policy);
+        }
+    }
+
+    /**
+     * Splits the on-heap cache into a compressed and a decompressed tier.
+     * Has no effect while the cache is off-heap or shared
+     *
+     * @param enable true to use two tiers
+     */
+    public synchronized void setTiered(boolean enable) {
+        if (enable == tiered) {
+            return;
+        }
+        tiered = enable;
+        if (!enable) {
+            compressed.clear();
+            synchronized (demoted) {
+                demoted.clear();
             }
-            hitCount += 1;
-            RawArray ret = ref.get();
+        }
+        MemoryBudget.getBudget().setQuota(cache, enable ? TIERED_QUOTA : QUOTA);
+        MemoryBudget.getBudget().setQuota(compressed, enable ? COMPRESSED_QUOTA : 0);
+        applyLimits();
+    }
+
+    /**
+     * Turns on the compressed tier from a task's options. Every task in the
+     * JVM shares the cache, so the tier stays on once a task asks for it
+     * instead of being cleared whenever a task without it starts
+     *
+     * @param enable true if the task wants two tiers
+     */
+    public synchronized void configureTiered(boolean enable) {
+        if (enable && !configuredTiered) {
+            configuredTiered = true;
+            setTiered(true);
+        }
+    }
+
+    /**
+     * Whether compressed baskets should be stored with putCompressed()
+     *
+     * @return true if the compressed tier is in use
+     */
+    public boolean isTiered() {
+        return tiered && (offHeap == null) && (shared == null);
+    }
+
+    private void applyLimits() {
+        long budget = MemoryBudget.getBudget().getBudgetBytes();
+        boolean bounded = admissionPolicy.equals("tinylfu");
+        if (tiered) {
+            cache.setLimit((long) (budget * TIERED_QUOTA));
+        } else {
+            cache.setLimit(bounded ? (long) (budget * QUOTA) : Long.MAX_VALUE);
+        }
+        compressed.setLimit(bounded ? (long) (budget * COMPRESSED_QUOTA) : Long.MAX_VALUE);
+    }
+
+    /**
+     * The node-shared cache outlives this JVM, so its entries are tied to
+     * the version of the file they came from
+     *
+     * @return The file's length and modification time, or null if unknown
+     */
+    private static IOFactory.KnownStatus getFileStatus(ROOTFile backingFile) {
+        try {
+            return IOFactory.getFileStatus(backingFile.getPath());
+        } catch (IOException e) {
+            logger.debug("Can't identify " + backingFile.getPath() + ", bypassing the shared cache", e);
+            return null;
+        }
+    }
+
+    public boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    public RawArray get(ROOTFile backingFile, long offset) {
+        return get(backingFile, offset, (shared == null) ? null : getFileStatus(backingFile));
+    }
+
+    /**
+     * Looks up a decompressed basket
+     *
+     * @param backingFile File holding the basket
+     * @param offset Offset of the basket's key in the file
+     * @param status The file's length and modification time, which callers
+     *               looking up many baskets should only get once. Only
+     *               needed by the shared cache, which is skipped if null
+     * @return The basket, or null if not cached
+     */
+    public RawArray get(ROOTFile backingFile, long offset, IOFactory.KnownStatus status) {
+        SharedBasketCache tmpShared = shared;
+        OffHeapCache<Key> tmpOffHeap = offHeap;
+        RawArray ret;
+        if (tmpShared != null) {
+            ret = (status == null) ? null : tmpShared.get(backingFile.getPath(), status.getLength(), status.getModificationTime(), offset);
+        } else if (tmpOffHeap != null) {
+            ret = tmpOffHeap.get(new Key(backingFile.getPath(), offset));
+        } else {
+            Entry entry = cache.get(new Key(backingFile.getPath(), offset));
+            ret = (entry == null) ? null : entry.data;
+        }
+        synchronized (this) {
+            totalCount += 1;
             if (ret == null) {
                 missCount += 1;
-                return null;
+            } else {
+                hitCount += 1;
+                getBytes += ret.length();
             }
-            getBytes += ret.length();
-            return ret;
         }
+        return ret;
+    }
+
+    /**
+     * Lets go of a basket returned by get(). Off-heap baskets are views of a
+     * pooled buffer, which is only reused once every view is released
+     *
+     * @param data The basket
+     */
+    public void release(RawArray data) {
+        OffHeapCache<Key> tmpOffHeap = offHeap;
+        if (tmpOffHeap != null) {
+            tmpOffHeap.release(data);
+        }
+    }
+
+    /**
+     * @param data A basket returned by get()
+     * @return true if data has to be passed to release() once it's unused
+     */
+    public boolean needsRelease(RawArray data) {
+        OffHeapCache<Key> tmpOffHeap = offHeap;
+        return (tmpOffHeap != null) && tmpOffHeap.isView(data);
     }
 
     public RawArray put(ROOTFile backingFile, long offset, RawArray data) {
-        Map<Long, SoftReference<RawArray>> fileMap = null;
-        while (fileMap == null) {
-            fileMap = cache.get(backingFile);
-            if (fileMap == null) {
-                cache.putIfAbsent(backingFile, Collections.synchronizedMap(new HashMap<Long, SoftReference<RawArray>>()));
+        return put(backingFile, offset, data, (shared == null) ? null : getFileStatus(backingFile));
+    }
+
+    /**
+     * Stores a decompressed basket
+     *
+     * @param backingFile File holding the basket
+     * @param offset Offset of the basket's key in the file
+     * @param data The decompressed basket
+     * @param status The file's length and modification time, as for get()
+     * @return data
+     */
+    public RawArray put(ROOTFile backingFile, long offset, RawArray data, IOFactory.KnownStatus status) {
+        SharedBasketCache tmpShared = shared;
+        OffHeapCache<Key> tmpOffHeap = offHeap;
+        if (tmpShared != null) {
+            if (status != null) {
+                tmpShared.put(backingFile.getPath(), status.getLength(), status.getModificationTime(), offset, data);
             }
+        } else if (tmpOffHeap != null) {
+            tmpOffHeap.put(new Key(backingFile.getPath(), offset), data);
+        } else {
+            Key key = new Key(backingFile.getPath(), offset);
+            ByteBuffer raw = isTiered() ? compressed.peek(key) : null;
+            cache.put(key, new Entry(data, raw));
+            demote();
         }
-        synchronized (fileMap) {
-            fileMap.put(offset, new SoftReference<RawArray>(data));
+        synchronized (this) {
             putBytes += data.length();
-            return data;
         }
+        return data;
+    }
+
+    /**
+     * Moves baskets evicted from the decompressed tier into the compressed
+     * one
+     */
+    private void demote() {
+        List<Map.Entry<Key, ByteBuffer>> tmp;
+        synchronized (demoted) {
+            if (demoted.isEmpty()) {
+                return;
+            }
+            tmp = new ArrayList<Map.Entry<Key, ByteBuffer>>(demoted);
+            demoted.clear();
+        }
+        if (isTiered()) {
+            for (Map.Entry<Key, ByteBuffer> e: tmp) {
+                compressed.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Looks up the on-disk bytes of a basket in the compressed tier
+     *
+     * @param backingFile File holding the basket
+     * @param offset Offset of the basket's key in the file
+     * @return The key and compressed payload, or null if not cached
+     */
+    public ByteBuffer getCompressed(ROOTFile backingFile, long offset) {
+        if (!isTiered()) {
+            return null;
+        }
+        demote();
+        ByteBuffer ret = compressed.get(new Key(backingFile.getPath(), offset));
+        synchronized (this) {
+            if (ret == null) {
+                compressedMissCount += 1;
+            } else {
+                compressedHitCount += 1;
+                compressedGetBytes += ret.limit();
+            }
+        }
+        return (ret == null) ? null : ret.duplicate();
+    }
+
+    /**
+     * Checks whether prefetching a basket's on-disk bytes can be skipped.
+     * Counted apart from getCompressed(), since prefetches aren't requests
+     *
+     * @param backingFile File holding the basket
+     * @param offset Offset of the basket's key in the file
+     * @return true if the compressed tier holds the basket
+     */
+    public boolean containsCompressed(ROOTFile backingFile, long offset) {
+        if (!isTiered()) {
+            return false;
+        }
+        boolean ret = compressed.peek(new Key(backingFile.getPath(), offset)) != null;
+        synchronized (this) {
+            if (ret) {
+                prefetchHitCount += 1;
+            } else {
+                prefetchMissCount += 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stores the on-disk bytes of a basket in the compressed tier
+     *
+     * @param backingFile File holding the basket
+     * @param offset Offset of the basket's key in the file
+     * @param raw The key and compressed payload
+     */
+    public void putCompressed(ROOTFile backingFile, long offset, ByteBuffer raw) {
+        if (isTiered()) {
+            compressed.put(new Key(backingFile.getPath(), offset), raw);
+        }
+    }
+
+    /**
+     * Drops every basket held in this JVM
+     */
+    public void clear() {
+        cache.clear();
+        compressed.clear();
+        synchronized (demoted) {
+            demoted.clear();
+        }
+        OffHeapCache<Key> tmpOffHeap = offHeap;
+        if (tmpOffHeap != null) {
+            tmpOffHeap.clear();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getCompressedHitCount() {
+        return compressedHitCount;
+    }
+
+    public synchronized long getCompressedMissCount() {
+        return compressedMissCount;
+    }
+
+    public synchronized long getPrefetchHitCount() {
+        return prefetchHitCount;
+    }
+
+    public synchronized long getPrefetchMissCount() {
+        return prefetchMissCount;
+    }
+
+    /**
+     * @return Human-readable hit statistics of each tier
+     */
+    public synchronized String getStatistics() {
+        return String.format("Basket cache: decompressed %d hits (%d bytes) %d misses %d evictions %d bytes held;"
+                + " compressed %d hits (%d bytes) %d misses %d evictions %d bytes held;"
+                + " prefetch %d already cached %d fetched",
+                hitCount, getBytes, missCount, cache.getEvictCount(), cache.getUsedBytes(),
+                compressedHitCount, compressedGetBytes, compressedMissCount, compressed.getEvictCount(), compressed.getUsedBytes(),
+                prefetchHitCount, prefetchMissCount);
     }
 }
@@ -0,0 +1,189 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage.TypeEnum;
+
+/**
+ * Replays a trace of reads through the basket cache with different
+ * admission policies, to compare hit rates without rerunning the job.
+ *
+ * <p>Traces come from the IOProfile events gathered in the profiling
+ * accumulator. Each basket event is a request for the decompressed basket
+ * at (file, offset), which is what the basket cache holds. Convert the events on the
+ * driver with fromProfile(), save them with writeTrace(), then run
+ *
+ * <pre>
+ * java -cp laurelin.jar edu.vanderbilt.accre.laurelin.cache.CacheSimulator trace.txt 100000000 1000000000
+ * </pre>
+ *
+ * <p>to print the hit rate of every policy at each cache size.
+ */
+public class CacheSimulator {
+    public static final String[] POLICIES = {"lru", "tinylfu"};
+
+    /**
+     * One request in a trace
+     */
+    public static class Access {
+        public String key;
+        public int bytes;
+
+        public Access(String key, int bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Outcome of replaying a trace with one policy and size
+     */
+    public static class Result {
+        public String policy;
+        public long capacityBytes;
+        public long hits = 0;
+        public long misses = 0;
+        public long hitBytes = 0;
+        public long missBytes = 0;
+
+        Result(String policy, long capacityBytes) {
+            this.policy = policy;
+            this.capacityBytes = capacityBytes;
+        }
+
+        public double getHitRate() {
+            return (hits + misses == 0) ? 0 : ((double) hits) / (hits + misses);
+        }
+
+        public double getByteHitRate() {
+            return (hitBytes + missBytes == 0) ? 0 : ((double) hitBytes) / (hitBytes + missBytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %14d %8.4f %8.4f", policy, capacityBytes, getHitRate(), getByteHitRate());
+        }
+    }
+
+    /**
+     * Turns profiling events into cache requests, in the order they started.
+     * File ids are only unique within an executor, so requests are keyed by
+     * file name where the trace recorded it
+     *
+     * @param events Events from the profiling accumulator
+     * @return The requests
+     */
+    public static List<Access> fromProfile(List<Storage> events) {
+        Map<String, String> names = new HashMap<String, String>();
+        List<Storage> reads = new ArrayList<Storage>();
+        for (Storage event: events) {
+            if (event.fileName != null) {
+                names.put(event.eid + ":" + event.fid, event.fileName);
+            } else if ((event.type == TypeEnum.BASKET) && (event.len > 0)) {
+                reads.add(event);
+            }
+        }
+        reads.sort(Comparator.comparingLong((Storage e) -> e.startTime).thenComparingInt(e -> e.count));
+        List<Access> ret = new ArrayList<Access>(reads.size());
+        for (Storage event: reads) {
+            String file = names.getOrDefault(event.eid + ":" + event.fid, event.eid + ":" + event.fid);
+            ret.add(new Access(file + "@" + event.offset, event.len));
+        }
+        return ret;
+    }
+
+    /**
+     * Writes requests one per line as "bytes key"
+     *
+     * @param trace The requests
+     * @param writer Destination
+     * @throws IOException The write failed
+     */
+    public static void writeTrace(List<Access> trace, Writer writer) throws IOException {
+        for (Access access: trace) {
+            writer.write(access.bytes + " " + access.key + "\n");
+        }
+    }
+
+    /**
+     * Reads requests written by writeTrace()
+     *
+     * @param reader Source
+     * @return The requests
+     * @throws IOException The read failed
+     */
+    public static List<Access> readTrace(BufferedReader reader) throws IOException {
+        List<Access> ret = new ArrayList<Access>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int split = line.indexOf(' ');
+            ret.add(new Access(line.substring(split + 1), Integer.parseInt(line.substring(0, split))));
+        }
+        return ret;
+    }
+
+    /**
+     * Replays a trace through a basket cache
+     *
+     * @param trace The requests
+     * @param policy One of POLICIES
+     * @param capacityBytes Size of the cache
+     * @return Hit statistics
+     */
+    public static Result replay(List<Access> trace, String policy, long capacityBytes) {
+        LruByteCache<String, Integer> cache = new LruByteCache<String, Integer>(v -> v);
+        cache.setLimit(capacityBytes);
+        if (policy.equals("tinylfu")) {
+            long distinct = trace.stream().map(a -> a.key).distinct().count();
+            long averageBytes = trace.stream().mapToLong(a -> a.bytes).sum() / Math.max(1, trace.size());
+            int expected = (int) Math.min(distinct, capacityBytes / Math.max(1, averageBytes));
+            cache.setAdmission(new TinyLfu(expected));
+        } else if (!policy.equals("lru")) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        Result ret = new Result(policy, capacityBytes);
+        for (Access access: trace) {
+            if (cache.get(access.key) != null) {
+                ret.hits += 1;
+                ret.hitBytes += access.bytes;
+            } else {
+                ret.misses += 1;
+                ret.missBytes += access.bytes;
+                cache.put(access.key, access.bytes);
+            }
+        }
+        return ret;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CacheSimulator <trace> <capacity bytes>...");
+            System.exit(1);
+        }
+        List<Access> trace;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            trace = readTrace(reader);
+        }
+        System.out.println(String.format("%-8s %14s %8s %8s", "policy", "capacity", "hits", "bytes"));
+        for (int i = 1; i < args.length; i += 1) {
+            for (String policy: POLICIES) {
+                System.out.println(replay(trace, policy, Long.parseLong(args[i])));
+            }
+        }
+    }
+}
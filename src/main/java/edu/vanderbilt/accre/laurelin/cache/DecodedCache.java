@@ -0,0 +1,178 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
+
+/**
+ * Executor-wide LRU cache of decoded basket chunks, bounded by bytes.
+ *
+ * <p>Unlike BasketCache, which holds decompressed bytes, entries here are the
+ * final arrays handed to Spark, so a repeated query over the same columns
+ * skips decompression and decoding entirely. Entries are keyed by the file
+ * and basket (not the query), so different projections of the same dataset
+ * share them. Disabled until a reader asks for it with decodedCacheBytes, and
+ * also bounded by the MemoryBudget.
+ */
+public class DecodedCache {
+    private static final Logger logger = LogManager.getLogger();
+    private static DecodedCache singleton = new DecodedCache();
+
+    public static synchronized DecodedCache getCache() {
+        return singleton;
+    }
+
+    private LruByteCache<Key, Array> cache = new LruByteCache<Key, Array>(DecodedCache::sizeOf);
+    private long limitBytes = 0;
+    long hitCount = 0;
+    long missCount = 0;
+
+    private DecodedCache() {
+        cache.setLimit(0);
+        // Decoded chunks are the most expensive thing to rebuild
+        MemoryBudget.getBudget().register("decoded column cache", cache, 0.3, 30);
+    }
+
+    /**
+     * Identifies the decoded entries [start, stop) of a basket
+     */
+    public static class Key {
+        private String path;
+        private long fileLength;
+        private long modificationTime;
+        private long basketOffset;
+        private Interpretation interpretation;
+        private int start;
+        private int stop;
+
+        /**
+         * @param path File holding the basket
+         * @param fileLength Length of the file, which along with the
+         *                   modification time tells a rewritten file apart
+         * @param modificationTime Modification time of the file
+         * @param basketOffset Offset of the basket in the file, which is unique
+         *                     across every branch in the file
+         * @param interpretation How the basket was decoded
+         * @param start First entry decoded, relative to the basket
+         * @param stop One past the last entry decoded
+         */
+        public Key(String path, long fileLength, long modificationTime, long basketOffset, Interpretation interpretation, int start, int stop) {
+            this.path = path;
+            this.fileLength = fileLength;
+            this.modificationTime = modificationTime;
+            this.basketOffset = basketOffset;
+            this.interpretation = interpretation;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return (basketOffset == other.basketOffset) && (start == other.start)
+                    && (stop == other.stop) && (fileLength == other.fileLength)
+                    && (modificationTime == other.modificationTime) && path.equals(other.path)
+                    && interpretation.equals(other.interpretation);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, fileLength, modificationTime, basketOffset, interpretation, start, stop);
+        }
+    }
+
+    /**
+     * Raises the size of the cache to at least the given number of bytes. The
+     * cache is shared by every reader in the executor, so it is as large as
+     * the largest request
+     * @param bytes Requested size
+     */
+    public synchronized void ensureLimit(long bytes) {
+        if (bytes > limitBytes) {
+            logger.debug("Decoded cache limit is now " + bytes + " bytes");
+            limitBytes = bytes;
+            cache.setLimit(bytes);
+        }
+    }
+
+    /**
+     * Sets the size of the cache, evicting entries if it shrinks. Zero
+     * disables the cache
+     * @param bytes New size
+     */
+    public synchronized void setLimit(long bytes) {
+        limitBytes = bytes;
+        cache.setLimit(bytes);
+    }
+
+    public synchronized boolean isEnabled() {
+        return limitBytes > 0;
+    }
+
+    public long getCurrentBytes() {
+        return cache.getUsedBytes();
+    }
+
+    public Array get(Key key) {
+        Array ret = cache.get(key);
+        synchronized (this) {
+            if (ret == null) {
+                missCount += 1;
+            } else {
+                hitCount += 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stores a decoded array. Arrays which are views into a larger buffer
+     * (e.g. a slice of a whole decompressed basket, or of a pooled direct
+     * buffer) are copied first, so an entry only keeps alive the bytes it is
+     * charged for
+     */
+    public void put(Key key, Array data) {
+        cache.put(key, detach(data));
+    }
+
+    /**
+     * @param data A decoded array
+     * @return The array, with every part backed by its own buffer
+     */
+    static Array detach(Array data) {
+        if (data instanceof JaggedArray) {
+            JaggedArray jagged = (JaggedArray) data;
+            PrimitiveArray.Int4 counts = (PrimitiveArray.Int4) jagged.counts().detach();
+            Array content = detach(jagged.content());
+            if ((counts == jagged.counts()) && (content == jagged.content())) {
+                return data;
+            }
+            return new JaggedArray(jagged.interpretation(), jagged.length(), counts, content);
+        } else if (data instanceof PrimitiveArray) {
+            return ((PrimitiveArray) data).detach();
+        }
+        throw new IllegalArgumentException("Can't detach " + data.getClass());
+    }
+
+    /**
+     * @param data A decoded array
+     * @return Number of bytes it holds
+     */
+    static long sizeOf(Array data) {
+        if (data instanceof JaggedArray) {
+            return sizeOf(((JaggedArray) data).counts()) + sizeOf(((JaggedArray) data).content());
+        } else if (data instanceof PrimitiveArray) {
+            return ((PrimitiveArray) data).rawarray().length();
+        }
+        throw new IllegalArgumentException("Can't size " + data.getClass());
+    }
+}
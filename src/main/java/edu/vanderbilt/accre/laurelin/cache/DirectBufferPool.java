@@ -0,0 +1,136 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out direct (off-heap) buffers carved from large slabs, so that
+ * frequently replaced cache entries don't each need their own
+ * allocateDirect(), whose memory is only returned once the GC notices the
+ * buffer is gone.
+ *
+ * <p>Blocks come in power-of-two size classes. Each slab is dedicated to one
+ * class and is never given back, so the pool holds at most limitBytes of
+ * native memory for the life of the JVM. Requests larger than a slab get a
+ * buffer of their own.
+ */
+public class DirectBufferPool {
+    static final int MIN_SHIFT = 12;
+    static final int DEFAULT_SLAB_BYTES = 16 * 1024 * 1024;
+
+    private long limitBytes;
+    private int slabBytes;
+    private long reservedBytes = 0;
+    private long allocatedBytes = 0;
+    private ArrayDeque<ByteBuffer>[] free;
+
+    /**
+     * @param limitBytes Maximum native memory to reserve
+     * @param slabBytes Size of each slab, must be a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long limitBytes, int slabBytes) {
+        if (Integer.bitCount(slabBytes) != 1 || slabBytes < (1 << MIN_SHIFT)) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least " + (1 << MIN_SHIFT));
+        }
+        this.limitBytes = limitBytes;
+        this.slabBytes = slabBytes;
+        free = new ArrayDeque[sizeClass(slabBytes) + 1];
+        for (int i = 0; i < free.length; i += 1) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    public DirectBufferPool(long limitBytes) {
+        this(limitBytes, DEFAULT_SLAB_BYTES);
+    }
+
+    private static int sizeClass(int bytes) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static int classBytes(int sizeClass) {
+        return 1 << (sizeClass + MIN_SHIFT);
+    }
+
+    /**
+     * Gets a buffer with room for at least the given number of bytes
+     *
+     * @param bytes Number of bytes needed
+     * @return A buffer with position 0 and limit bytes, or null if the pool
+     *         is out of room
+     */
+    public synchronized ByteBuffer allocate(int bytes) {
+        ByteBuffer ret;
+        if (bytes > slabBytes) {
+            if (reservedBytes + bytes > limitBytes) {
+                return null;
+            }
+            ret = ByteBuffer.allocateDirect(bytes);
+            reservedBytes += bytes;
+        } else {
+            int cls = sizeClass(bytes);
+            if (free[cls].isEmpty()) {
+                if (reservedBytes + slabBytes > limitBytes) {
+                    return null;
+                }
+                carveSlab(cls);
+            }
+            ret = free[cls].pop();
+        }
+        allocatedBytes += ret.capacity();
+        ret.clear();
+        ret.limit(bytes);
+        return ret;
+    }
+
+    private void carveSlab(int cls) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+        reservedBytes += slabBytes;
+        int blockBytes = classBytes(cls);
+        for (int off = 0; off < slabBytes; off += blockBytes) {
+            slab.limit(off + blockBytes);
+            slab.position(off);
+            free[cls].push(slab.slice());
+        }
+    }
+
+    /**
+     * Returns a buffer from allocate() to the pool. Nothing else may be using
+     * it afterwards
+     *
+     * @param buf The buffer
+     */
+    public synchronized void release(ByteBuffer buf) {
+        allocatedBytes -= buf.capacity();
+        if (buf.capacity() > slabBytes) {
+            // Dedicated buffer, freed whenever the GC collects it
+            reservedBytes -= buf.capacity();
+        } else {
+            free[sizeClass(buf.capacity())].push(buf);
+        }
+    }
+
+    public synchronized void setLimit(long bytes) {
+        limitBytes = bytes;
+    }
+
+    public synchronized long getLimit() {
+        return limitBytes;
+    }
+
+    /**
+     * @return Native memory held by the pool, whether in use or not
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return Bytes in blocks currently handed out
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+}
@@ -0,0 +1,171 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least-recently-used map whose size is measured in bytes. It has an
+ * optional limit of its own, and is otherwise shrunk by the MemoryBudget it
+ * was registered with.
+ */
+public class LruByteCache<K, V> implements MemoryBudget.Consumer {
+    private LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private ToLongFunction<V> sizer;
+    private long usedBytes = 0;
+    private long limitBytes = Long.MAX_VALUE;
+    private long evictCount = 0;
+    private long rejectCount = 0;
+    private TinyLfu admission;
+    private BiConsumer<K, V> evictionListener;
+
+    /**
+     * @param sizer Returns the number of bytes held by a value
+     */
+    public LruByteCache(ToLongFunction<V> sizer) {
+        this.sizer = sizer;
+    }
+
+    public synchronized V get(K key) {
+        if (admission != null) {
+            admission.increment(key.hashCode());
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Looks up a value without counting it as a request
+     *
+     * @param key The key
+     * @return The value, or null
+     */
+    public synchronized V peek(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Only admit new entries into a full cache if they are requested more
+     * often than the entry they would evict
+     *
+     * @param admission The filter, or null to admit everything
+     */
+    public synchronized void setAdmission(TinyLfu admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Adds a value, evicting older ones if this cache or the memory budget
+     * is now too large
+     * @param key The key
+     * @param value The value
+     */
+    public void put(K key, V value) {
+        long size = sizer.applyAsLong(value);
+        synchronized (this) {
+            if (size > limitBytes) {
+                return;
+            }
+            if ((admission != null) && (usedBytes + size > limitBytes) && !map.containsKey(key)) {
+                K victim = map.keySet().iterator().next();
+                if (!admission.admit(key.hashCode(), victim.hashCode())) {
+                    rejectCount += 1;
+                    return;
+                }
+            }
+            V old = map.put(key, value);
+            if (old != null) {
+                usedBytes -= sizer.applyAsLong(old);
+            }
+            usedBytes += size;
+            evict(usedBytes - limitBytes);
+        }
+        MemoryBudget.getBudget().reclaim();
+    }
+
+    /**
+     * Marks an entry as recently used without counting it as a request
+     *
+     * @param key The key
+     */
+    public synchronized void touch(K key) {
+        map.get(key);
+    }
+
+    /**
+     * Called with every entry evicted for space, while this cache is locked.
+     * It must not call back into this cache
+     *
+     * @param listener The listener
+     */
+    public synchronized void setEvictionListener(BiConsumer<K, V> listener) {
+        evictionListener = listener;
+    }
+
+    public synchronized void remove(K key) {
+        V old = map.remove(key);
+        if (old != null) {
+            usedBytes -= sizer.applyAsLong(old);
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Sets this cache's own limit, independent of the memory budget
+     * @param bytes The limit
+     */
+    public synchronized void setLimit(long bytes) {
+        limitBytes = bytes;
+        evict(usedBytes - limitBytes);
+    }
+
+    public synchronized long getLimit() {
+        return limitBytes;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    /**
+     * @return Number of puts turned away by the admission filter
+     */
+    public synchronized long getRejectCount() {
+        return rejectCount;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized long shrink(long bytes) {
+        return evict(bytes);
+    }
+
+    private long evict(long bytes) {
+        long freed = 0;
+        Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        while ((freed < bytes) && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            freed += sizer.applyAsLong(eldest.getValue());
+            it.remove();
+            evictCount += 1;
+            if (evictionListener != null) {
+                evictionListener.accept(eldest.getKey(), eldest.getValue());
+            }
+        }
+        usedBytes -= freed;
+        return freed;
+    }
+}
@@ -0,0 +1,198 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shares one byte budget between every cache in this JVM.
+ *
+ * <p>Each cache registers with a quota (a fraction of the budget it may use
+ * even when others want memory) and a priority (how expensive its contents
+ * are to rebuild). When a cache grows, it calls reclaim(), which also runs
+ * when a cache registers or the budget changes. If the total is
+ * then over budget, caches above their quota are shrunk first and then
+ * everything else, lowest priority first. This replaces per-cache limits
+ * and soft references, so memory is released in a predictable order instead
+ * of whenever the GC gets desperate.
+ */
+public class MemoryBudget {
+    private static final Logger logger = LogManager.getLogger();
+    private static MemoryBudget singleton = new MemoryBudget();
+
+    public static synchronized MemoryBudget getBudget() {
+        return singleton;
+    }
+
+    /**
+     * A cache whose size is managed by the budget
+     */
+    public interface Consumer {
+        /**
+         * @return Bytes currently held by the cache. Should be cheap to call
+         */
+        long getUsedBytes();
+
+        /**
+         * Evicts entries, least valuable first
+         * @param bytes Number of bytes to try to free
+         * @return Number of bytes actually freed
+         */
+        long shrink(long bytes);
+    }
+
+    private static class Registration {
+        String name;
+        Consumer consumer;
+        double quota;
+        int priority;
+
+        Registration(String name, Consumer consumer, double quota, int priority) {
+            this.name = name;
+            this.consumer = consumer;
+            this.quota = quota;
+            this.priority = priority;
+        }
+    }
+
+    private List<Registration> consumers = new ArrayList<Registration>();
+    private volatile long budgetBytes = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Budget asked for by the first configureBudgetBytes(), or zero
+     */
+    private long configuredBytes = 0;
+
+    MemoryBudget() {
+        // Only constructed directly by tests
+    }
+
+    /**
+     * Adds a cache to the budget
+     * @param name Name used in log messages
+     * @param consumer The cache
+     * @param quota Fraction of the budget the cache can hold on to when other
+     *              caches are short on memory
+     * @param priority Caches with lower priorities are shrunk first
+     */
+    public synchronized void register(String name, Consumer consumer, double quota, int priority) {
+        consumers.add(new Registration(name, consumer, quota, priority));
+        consumers.sort(Comparator.comparingInt(r -> r.priority));
+        checkQuotas();
+        // The cache may already hold something
+        reclaim();
+    }
+
+    /**
+     * Changes the quota of a registered cache, e.g. when a cache hands part
+     * of its share to another one
+     * @param consumer The cache
+     * @param quota The new quota
+     */
+    public synchronized void setQuota(Consumer consumer, double quota) {
+        for (Registration r: consumers) {
+            if (r.consumer == consumer) {
+                r.quota = quota;
+            }
+        }
+        checkQuotas();
+        reclaim();
+    }
+
+    public synchronized double getTotalQuota() {
+        double ret = 0;
+        for (Registration r: consumers) {
+            ret += r.quota;
+        }
+        return ret;
+    }
+
+    /**
+     * Quotas are only guarantees if they fit in the budget together
+     */
+    private void checkQuotas() {
+        if (getTotalQuota() > 1.0) {
+            logger.warn("Cache quotas add up to " + getTotalQuota() + " of the memory budget");
+        }
+    }
+
+    public synchronized void unregister(Consumer consumer) {
+        consumers.removeIf(r -> r.consumer == consumer);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Changes the budget, shrinking caches if needed
+     * @param bytes The new budget
+     */
+    public void setBudgetBytes(long bytes) {
+        budgetBytes = bytes;
+        reclaim();
+    }
+
+    /**
+     * Sets the budget from a task's options. Every task in the JVM shares the
+     * budget, so the first one asking for a budget sets it and later ones
+     * can't shrink the caches out from under each other
+     * @param bytes The budget asked for, or zero for no preference
+     */
+    public synchronized void configureBudgetBytes(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        if (configuredBytes == 0) {
+            configuredBytes = bytes;
+            if (bytes != budgetBytes) {
+                setBudgetBytes(bytes);
+            }
+        } else if (bytes != configuredBytes) {
+            logger.debug(String.format("Keeping cache budget of %d bytes, ignoring %d", configuredBytes, bytes));
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        long ret = 0;
+        for (Registration r: consumers) {
+            ret += r.consumer.getUsedBytes();
+        }
+        return ret;
+    }
+
+    /**
+     * Brings the caches back under budget. Callers must not hold the lock of
+     * any cache, since other caches will be shrunk from this thread
+     */
+    public synchronized void reclaim() {
+        long over = getUsedBytes() - budgetBytes;
+        if (over <= 0) {
+            return;
+        }
+        // First take memory from caches using more than their share
+        for (Registration r: consumers) {
+            long excess = r.consumer.getUsedBytes() - (long) (r.quota * budgetBytes);
+            if (excess > 0) {
+                long freed = r.consumer.shrink(Math.min(excess, over));
+                logger.debug("Shrunk " + r.name + " by " + freed + " bytes (over quota)");
+                over -= freed;
+                if (over <= 0) {
+                    return;
+                }
+            }
+        }
+        // Then from everyone, cheapest to rebuild first
+        for (Registration r: consumers) {
+            long freed = r.consumer.shrink(over);
+            logger.debug("Shrunk " + r.name + " by " + freed + " bytes");
+            over -= freed;
+            if (over <= 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+
+/**
+ * Least-recently-used cache of byte arrays stored in a DirectBufferPool, so
+ * the cached bytes are invisible to the garbage collector no matter how
+ * large the cache gets.
+ *
+ * <p>Lookups return a read-only view of the pooled buffer rather than a
+ * copy. Slices and duplicates of a view reference the underlying slab rather
+ * than the view, so the GC can't tell when the last of them is gone. Instead
+ * every view pins its block until it's handed back to release(), and an
+ * evicted block only returns to the pool once no view of it is left.
+ */
+public class OffHeapCache<K> {
+    private static class Block {
+        ByteBuffer buf;
+        int views = 0;
+        boolean evicted = false;
+
+        Block(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    private DirectBufferPool pool;
+    private LinkedHashMap<K, Block> map = new LinkedHashMap<K, Block>(16, 0.75f, true);
+    private IdentityHashMap<RawArray, Block> views = new IdentityHashMap<RawArray, Block>();
+    private long usedBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictCount = 0;
+    private long rejectCount = 0;
+    private TinyLfu admission;
+
+    /**
+     * @param limitBytes Native memory the cache may use
+     */
+    public OffHeapCache(long limitBytes) {
+        this.pool = new DirectBufferPool(limitBytes);
+    }
+
+    public OffHeapCache(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Looks up an entry. The returned view, and anything sliced or decoded
+     * from it, stays valid until it's passed to release()
+     *
+     * @param key The key
+     * @return A read-only view of the cached bytes, or null if not present
+     */
+    public synchronized RawArray get(K key) {
+        if (admission != null) {
+            admission.increment(key.hashCode());
+        }
+        Block block = map.get(key);
+        if (block == null) {
+            missCount += 1;
+            return null;
+        }
+        hitCount += 1;
+        block.views += 1;
+        RawArray ret = new RawArray(block.buf.asReadOnlyBuffer());
+        views.put(ret, block);
+        return ret;
+    }
+
+    /**
+     * Unpins the block of a view returned by get(). Neither the view nor
+     * anything derived from it may be read afterwards
+     *
+     * @param view The view, anything else is ignored
+     */
+    public synchronized void release(RawArray view) {
+        Block block = views.remove(view);
+        if (block == null) {
+            return;
+        }
+        block.views -= 1;
+        if (block.evicted && (block.views == 0)) {
+            pool.release(block.buf);
+        }
+    }
+
+    /**
+     * @param data Any array
+     * @return true if data is a view from get() which wasn't released yet
+     */
+    public synchronized boolean isView(RawArray data) {
+        return views.containsKey(data);
+    }
+
+    /**
+     * Copies a value into the cache, evicting the least recently used
+     * entries to make room. If there still isn't room, it isn't cached
+     *
+     * @param key The key
+     * @param data The bytes to store
+     * @return true if the value was stored
+     */
+    public boolean put(K key, RawArray data) {
+        int length = data.length();
+        ByteBuffer buf;
+        synchronized (this) {
+            if (map.containsKey(key)) {
+                return true;
+            }
+            buf = pool.allocate(length);
+            if ((buf == null) && (admission != null) && !map.isEmpty()) {
+                K victim = map.keySet().iterator().next();
+                if (!admission.admit(key.hashCode(), victim.hashCode())) {
+                    rejectCount += 1;
+                    return false;
+                }
+            }
+            while ((buf == null) && evictOne()) {
+                buf = pool.allocate(length);
+            }
+            if (buf == null) {
+                return false;
+            }
+        }
+
+        // Copy outside the lock, other threads can keep reading meanwhile
+        data.copyInto(buf.duplicate());
+
+        synchronized (this) {
+            if (map.containsKey(key)) {
+                pool.release(buf);
+                return true;
+            }
+            map.put(key, new Block(buf));
+            usedBytes += length;
+        }
+        return true;
+    }
+
+    private boolean evictOne() {
+        Iterator<Map.Entry<K, Block>> it = map.entrySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Block block = it.next().getValue();
+        it.remove();
+        evictCount += 1;
+        usedBytes -= block.buf.limit();
+        block.evicted = true;
+        if (block.views == 0) {
+            pool.release(block.buf);
+        }
+        // The block may still be viewed, but another one could be freed by
+        // the next eviction
+        return true;
+    }
+
+    /**
+     * Evicts every entry
+     */
+    public synchronized void clear() {
+        while (evictOne()) {
+            // Blocks still viewed return to the pool once released
+        }
+    }
+
+    /**
+     * Only admit new entries into a full cache if they are requested more
+     * often than the entry they would evict
+     *
+     * @param admission The filter, or null to admit everything
+     */
+    public synchronized void setAdmission(TinyLfu admission) {
+        this.admission = admission;
+    }
+
+    public synchronized void setLimit(long bytes) {
+        pool.setLimit(bytes);
+    }
+
+    public synchronized long getLimit() {
+        return pool.getLimit();
+    }
+
+    /**
+     * @return Bytes of cached values
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return Native memory held, including evicted blocks still viewed
+     *         and free blocks in the pool
+     */
+    public synchronized long getReservedBytes() {
+        return pool.getReservedBytes();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public synchronized long getRejectCount() {
+        return rejectCount;
+    }
+}
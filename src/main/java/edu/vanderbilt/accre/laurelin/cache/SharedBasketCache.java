@@ -0,0 +1,435 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.hash.Hashing;
+
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+
+/**
+ * Basket cache shared by every JVM on a node, stored in a memory-mapped file
+ * (e.g. in /dev/shm or on a local SSD). Executors reading the same files
+ * then hold one copy of each decompressed basket between them.
+ *
+ * <p>The file holds a header, a hash index and a data region. The data
+ * region is a ring: space is handed out by bumping a cursor that counts
+ * every byte ever allocated, so an entry written at cursor c has been
+ * overwritten once the cursor passes c + dataBytes. Nobody frees anything.
+ *
+ * <p>The index is split into stripes of slots, each guarded by a lock on one
+ * byte of the file (plus an in-JVM lock, since file locks are held per JVM).
+ * The cursor has a lock of its own. The operating system drops the locks of
+ * a killed JVM, so it can't block the others. Entries are keyed by the
+ * file's path, length and modification time as well as the basket's offset,
+ * so a rewritten file misses instead of returning stale baskets.
+ *
+ * <p>Writers mark a slot odd while filling it in and even once done. Since
+ * nobody else can hold the stripe's lock meanwhile, a slot found odd was
+ * left by a JVM which died mid-write, and is reclaimed on the spot. Values
+ * are copied out of the mapping and checked afterwards, since a writer in
+ * another stripe may wrap the ring over them at any time.
+ *
+ * <p>A mapping is limited to 2 GiB, so that is the largest usable cache.
+ */
+public class SharedBasketCache {
+    private static final Logger logger = LogManager.getLogger();
+
+    static final long MAGIC = 0x4c41555242435332L;
+
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_SLOTS = 8;
+    private static final int HDR_DATA_BYTES = 16;
+    private static final int HDR_CURSOR = 24;
+    private static final int HEADER_BYTES = 128;
+
+    private static final int SLOT_SEQ = 0;
+    private static final int SLOT_PATH = 8;
+    private static final int SLOT_FILE_LENGTH = 16;
+    private static final int SLOT_FILE_MTIME = 24;
+    private static final int SLOT_OFFSET = 32;
+    private static final int SLOT_CURSOR = 40;
+    private static final int SLOT_LENGTH = 48;
+    private static final int SLOT_BYTES = 56;
+
+    /**
+     * File bytes locked to initialize the cache, to move the cursor and to
+     * access each stripe. Locks are advisory, so these don't stop anyone
+     * from reading the header
+     */
+    private static final int LOCK_INIT = 0;
+    private static final int LOCK_CURSOR = 1;
+    private static final int LOCK_STRIPES = 2;
+    private static final int STRIPES = 64;
+
+    private static final int MAX_PROBES = 16;
+    private static final long AVERAGE_ENTRY_BYTES = 16 * 1024;
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * In-JVM locks of each cache file, shared by every mapping of it, since
+     * a JVM can't take overlapping file locks twice
+     */
+    private static ConcurrentHashMap<Path, ReentrantLock[]> jvmLocks = new ConcurrentHashMap<Path, ReentrantLock[]>();
+
+    private Path path;
+    private FileChannel channel;
+    private ReentrantLock[] locks;
+    // Never released, since the mapping goes away once this is collected
+    private MappedByteBuffer mapping;
+    private long numSlots;
+    private long slotsPerStripe;
+    private long dataBytes;
+    private long dataBase;
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong putCount = new AtomicLong();
+    private AtomicLong reclaimCount = new AtomicLong();
+
+    /**
+     * Maps the shared cache, creating it if no other JVM has yet. If it
+     * already exists, its size wins over the requested one
+     *
+     * @param path File backing the cache
+     * @param bytes Requested size of the file
+     * @return The cache
+     * @throws IOException The file couldn't be created or mapped
+     */
+    public static SharedBasketCache open(Path path, long bytes) throws IOException {
+        return new SharedBasketCache(path, Math.min(bytes, MAX_FILE_BYTES));
+    }
+
+    private static long layoutBytes(long slots, long data) {
+        return HEADER_BYTES + slots * SLOT_BYTES + data;
+    }
+
+    private SharedBasketCache(Path path, long bytes) throws IOException {
+        this.path = path;
+        locks = jvmLocks.computeIfAbsent(path.toAbsolutePath().normalize(), k -> {
+            ReentrantLock[] ret = new ReentrantLock[LOCK_STRIPES + STRIPES];
+            for (int i = 0; i < ret.length; i += 1) {
+                ret[i] = new ReentrantLock();
+            }
+            return ret;
+        });
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean valid = false;
+        try (Locked init = new Locked(LOCK_INIT)) {
+            // Only one JVM at a time gets to decide whether to initialize
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (channel.size() >= HEADER_BYTES) {
+                channel.read(header, 0);
+                if (header.getLong(HDR_MAGIC) == MAGIC) {
+                    numSlots = header.getLong(HDR_SLOTS);
+                    dataBytes = header.getLong(HDR_DATA_BYTES);
+                    valid = channel.size() >= layoutBytes(numSlots, dataBytes);
+                }
+            }
+            if (!valid) {
+                numSlots = Long.highestOneBit(Math.max(STRIPES * MAX_PROBES, bytes / AVERAGE_ENTRY_BYTES));
+                dataBytes = bytes - HEADER_BYTES - numSlots * SLOT_BYTES;
+                if (dataBytes <= 0) {
+                    throw new IOException("Shared basket cache of " + bytes + " bytes is too small");
+                }
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(1), layoutBytes(numSlots, dataBytes) - 1);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, layoutBytes(numSlots, dataBytes));
+            if (!valid) {
+                mapping.putLong(HDR_SLOTS, numSlots);
+                mapping.putLong(HDR_DATA_BYTES, dataBytes);
+                mapping.putLong(HDR_CURSOR, 0);
+                mapping.putLong(HDR_MAGIC, MAGIC);
+                logger.info("Created shared basket cache " + path + " with " + numSlots + " slots and " + dataBytes + " data bytes");
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        slotsPerStripe = numSlots / STRIPES;
+        dataBase = HEADER_BYTES + numSlots * SLOT_BYTES;
+    }
+
+    /**
+     * Holds one of the locks, released by close()
+     */
+    private class Locked implements AutoCloseable {
+        private ReentrantLock jvmLock;
+        private FileLock fileLock;
+
+        Locked(int idx) throws IOException {
+            jvmLock = locks[idx];
+            jvmLock.lock();
+            try {
+                fileLock = channel.lock(idx, 1, false);
+            } catch (IOException | RuntimeException e) {
+                jvmLock.unlock();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                fileLock.release();
+            } finally {
+                jvmLock.unlock();
+            }
+        }
+    }
+
+    private static long hashPath(String path) {
+        return Hashing.murmur3_128().hashString(path, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static long mix(long pathHash, long offset) {
+        long h = pathHash ^ (offset * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int stripeOf(long hash) {
+        return (int) ((hash & (numSlots - 1)) / slotsPerStripe);
+    }
+
+    /**
+     * Probes stay within the stripe of the first slot, so one lock covers
+     * all of them
+     */
+    private int slotIndex(long hash, int probe) {
+        long home = hash & (numSlots - 1);
+        long stripeStart = home - (home % slotsPerStripe);
+        long idx = stripeStart + ((home + probe) % slotsPerStripe);
+        return Math.toIntExact(HEADER_BYTES + idx * SLOT_BYTES);
+    }
+
+    private long readCursor() throws IOException {
+        try (Locked l = new Locked(LOCK_CURSOR)) {
+            return mapping.getLong(HDR_CURSOR);
+        }
+    }
+
+    /**
+     * @param cursor Where an entry was allocated
+     * @return true if the ring hasn't wrapped over the entry yet
+     */
+    private boolean isLive(long cursor) throws IOException {
+        return readCursor() - cursor <= dataBytes;
+    }
+
+    private ByteBuffer dataView(long cursor) {
+        ByteBuffer ret = mapping.duplicate();
+        ret.position(Math.toIntExact(dataBase + (cursor % dataBytes)));
+        return ret;
+    }
+
+    /**
+     * Reserves contiguous space in the ring
+     *
+     * @param bytes Space needed
+     * @return The cursor of the space, whose position in the ring is
+     *         cursor % dataBytes
+     */
+    private long allocate(long bytes) throws IOException {
+        long aligned = (bytes + 7) & ~7L;
+        try (Locked l = new Locked(LOCK_CURSOR)) {
+            long cursor = mapping.getLong(HDR_CURSOR);
+            long pos = cursor % dataBytes;
+            long start = cursor;
+            if (pos + aligned > dataBytes) {
+                // Doesn't fit before the end, skip to the start of the ring
+                start = cursor + (dataBytes - pos);
+            }
+            mapping.putLong(HDR_CURSOR, start + aligned);
+            return start;
+        }
+    }
+
+    /**
+     * Empties a slot left half-written by a JVM which died. Must hold the
+     * slot's stripe lock
+     */
+    private void reclaim(int slot) {
+        logger.debug("Reclaiming half-written slot " + slot + " of " + path);
+        mapping.putLong(slot + SLOT_SEQ, mapping.getLong(slot + SLOT_SEQ) + 1);
+        mapping.putLong(slot + SLOT_CURSOR, Long.MIN_VALUE / 2);
+        reclaimCount.incrementAndGet();
+    }
+
+    private boolean matches(int slot, long pathHash, long fileLength, long modificationTime, long offset) {
+        return (mapping.getLong(slot + SLOT_PATH) == pathHash)
+                && (mapping.getLong(slot + SLOT_OFFSET) == offset)
+                && (mapping.getLong(slot + SLOT_FILE_LENGTH) == fileLength)
+                && (mapping.getLong(slot + SLOT_FILE_MTIME) == modificationTime);
+    }
+
+    /**
+     * @param filePath File holding the basket
+     * @param fileLength Length of the file
+     * @param modificationTime Modification time of the file
+     * @param offset Offset of the basket in the file
+     * @return A private copy of the basket, or null if not cached
+     */
+    public RawArray get(String filePath, long fileLength, long modificationTime, long offset) {
+        long pathHash = hashPath(filePath);
+        long hash = mix(pathHash, offset);
+        try (Locked l = new Locked(LOCK_STRIPES + stripeOf(hash))) {
+            for (int probe = 0; probe < MAX_PROBES; probe += 1) {
+                int slot = slotIndex(hash, probe);
+                long seq = mapping.getLong(slot + SLOT_SEQ);
+                if (seq == 0) {
+                    break;
+                } else if ((seq & 1) != 0) {
+                    reclaim(slot);
+                    continue;
+                }
+                if (!matches(slot, pathHash, fileLength, modificationTime, offset)) {
+                    continue;
+                }
+                long cursor = mapping.getLong(slot + SLOT_CURSOR);
+                int length = mapping.getInt(slot + SLOT_LENGTH);
+                if (!isLive(cursor)) {
+                    break;
+                }
+                byte[] out = new byte[length];
+                dataView(cursor).get(out);
+                if (!isLive(cursor)) {
+                    // Overwritten while we were copying
+                    break;
+                }
+                hitCount.incrementAndGet();
+                return new RawArray(ByteBuffer.wrap(out));
+            }
+        } catch (IOException e) {
+            logger.debug("Shared basket cache lookup failed", e);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a basket, unless it is already present or too large. An entry for
+     * an older version of the file is replaced, otherwise the slot holding
+     * the oldest data among the probed ones
+     *
+     * @param filePath File holding the basket
+     * @param fileLength Length of the file
+     * @param modificationTime Modification time of the file
+     * @param offset Offset of the basket in the file
+     * @param data Decompressed basket
+     */
+    public void put(String filePath, long fileLength, long modificationTime, long offset, RawArray data) {
+        int length = data.length();
+        if (length > dataBytes / 4) {
+            return;
+        }
+        long pathHash = hashPath(filePath);
+        long hash = mix(pathHash, offset);
+        try (Locked l = new Locked(LOCK_STRIPES + stripeOf(hash))) {
+            int victim = -1;
+            long victimCursor = Long.MAX_VALUE;
+            long current = readCursor();
+            for (int probe = 0; probe < MAX_PROBES; probe += 1) {
+                int slot = slotIndex(hash, probe);
+                long seq = mapping.getLong(slot + SLOT_SEQ);
+                if ((seq & 1) != 0) {
+                    reclaim(slot);
+                    seq = mapping.getLong(slot + SLOT_SEQ);
+                }
+                if (seq == 0) {
+                    victim = slot;
+                    break;
+                }
+                long cursor = mapping.getLong(slot + SLOT_CURSOR);
+                boolean live = current - cursor <= dataBytes;
+                boolean sameBasket = (mapping.getLong(slot + SLOT_PATH) == pathHash)
+                        && (mapping.getLong(slot + SLOT_OFFSET) == offset);
+                if (sameBasket && live && matches(slot, pathHash, fileLength, modificationTime, offset)) {
+                    return;
+                }
+                if (sameBasket) {
+                    // An older version of the file, or wrapped over
+                    victim = slot;
+                    break;
+                } else if (!live) {
+                    cursor = Long.MIN_VALUE;
+                }
+                if (cursor < victimCursor) {
+                    victim = slot;
+                    victimCursor = cursor;
+                }
+            }
+            if (victim < 0) {
+                return;
+            }
+            long seq = mapping.getLong(victim + SLOT_SEQ);
+            mapping.putLong(victim + SLOT_SEQ, seq + 1);
+            long cursor = allocate(length);
+            data.copyInto(dataView(cursor));
+            mapping.putLong(victim + SLOT_PATH, pathHash);
+            mapping.putLong(victim + SLOT_FILE_LENGTH, fileLength);
+            mapping.putLong(victim + SLOT_FILE_MTIME, modificationTime);
+            mapping.putLong(victim + SLOT_OFFSET, offset);
+            mapping.putLong(victim + SLOT_CURSOR, cursor);
+            mapping.putInt(victim + SLOT_LENGTH, length);
+            mapping.putLong(victim + SLOT_SEQ, seq + 2);
+            putCount.incrementAndGet();
+        } catch (IOException e) {
+            // Caching is best-effort
+            logger.debug("Shared basket cache insert failed", e);
+        }
+    }
+
+    /**
+     * Leaves the slot a basket would go in half-written, as if the JVM had
+     * died while writing it. Only for tests
+     */
+    void corruptForTest(String filePath, long offset) throws IOException {
+        long hash = mix(hashPath(filePath), offset);
+        try (Locked l = new Locked(LOCK_STRIPES + stripeOf(hash))) {
+            int slot = slotIndex(hash, 0);
+            mapping.putLong(slot + SLOT_SEQ, mapping.getLong(slot + SLOT_SEQ) | 1);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getPutCount() {
+        return putCount.get();
+    }
+
+    /**
+     * @return Number of half-written slots found and emptied
+     */
+    public long getReclaimCount() {
+        return reclaimCount.get();
+    }
+}
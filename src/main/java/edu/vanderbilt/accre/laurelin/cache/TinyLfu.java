@@ -0,0 +1,105 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+/**
+ * TinyLFU admission filter: a count-min sketch of how often each key has
+ * been asked for recently. A full cache only admits a new entry if it has
+ * been requested more often than the entry it would evict, so a one-pass
+ * scan over a whole dataset can't flush baskets that are read over and
+ * over (e.g. small trigger branches used by every query).
+ *
+ * <p>Counters are 4 bits, sixteen to a long, with four counters per key.
+ * After 10 increments per tracked key every counter is halved, so old
+ * popularity fades. See Einziger et al., "TinyLFU: A Highly Efficient Cache
+ * Admission Policy".
+ */
+public class TinyLfu {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int mask;
+    private int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries Roughly how many entries the cache holds
+     */
+    public TinyLfu(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+        size = Math.min(size, 1 << 24);
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    private static long spread(int hash) {
+        long h = hash * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    private int indexOf(long hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+
+    /**
+     * Records a request for a key
+     *
+     * @param keyHash hashCode() of the key
+     */
+    public synchronized void increment(int keyHash) {
+        long hash = spread(keyHash);
+        // Each depth uses its own nibble within the long it lands in
+        int start = (int) (hash & 3) << 2;
+        boolean added = false;
+        for (int depth = 0; depth < 4; depth += 1) {
+            int index = indexOf(hash, depth);
+            int shift = (start + depth) << 2;
+            if (((table[index] >>> shift) & 0xfL) != 0xfL) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added) {
+            additions += 1;
+            if (additions >= sampleSize) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * @param keyHash hashCode() of the key
+     * @return Estimated number of recent requests, at most 15
+     */
+    public synchronized int frequency(int keyHash) {
+        long hash = spread(keyHash);
+        int start = (int) (hash & 3) << 2;
+        int ret = Integer.MAX_VALUE;
+        for (int depth = 0; depth < 4; depth += 1) {
+            int index = indexOf(hash, depth);
+            int shift = (start + depth) << 2;
+            ret = Math.min(ret, (int) ((table[index] >>> shift) & 0xfL));
+        }
+        return ret;
+    }
+
+    /**
+     * @param candidateHash hashCode() of the key being added
+     * @param victimHash hashCode() of the key that would be evicted
+     * @return true if the candidate is worth more than the victim
+     */
+    public boolean admit(int candidateHash, int victimHash) {
+        return frequency(candidateHash) > frequency(victimHash);
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i += 1) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
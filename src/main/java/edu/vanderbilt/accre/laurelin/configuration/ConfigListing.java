@@ -124,6 +124,20 @@ public class ConfigListing implements Serializable {
         }
     }
 
+    /**
+     * Ensures the stored value is either "true" or "false"
+     */
+    public static class BooleanValueType extends ConfigValueType implements Serializable {
+        private static final long serialVersionUID = 1L;
+        @Override
+        Optional<String> validate(String val) {
+            if (val.equalsIgnoreCase("true") || val.equalsIgnoreCase("false")) {
+                return Optional.empty();
+            }
+            return Optional.of("Could not convert " + val + " to a boolean");
+        }
+    }
+
     /**
      * Ensures the stored value is a string. This is trivially true since we get
      * Strings from the Spark config map
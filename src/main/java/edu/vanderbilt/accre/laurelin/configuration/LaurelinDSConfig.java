@@ -116,6 +116,15 @@ public class LaurelinDSConfig implements Serializable {
         }
     }
 
+    /**
+     * Returns the boolean value associated with the provided key
+     * @param key Configuration option we're interested in
+     * @return The value associated with this key
+     */
+    public boolean getBoolean(String key) {
+        return Boolean.parseBoolean(getString(key));
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(listing, map);
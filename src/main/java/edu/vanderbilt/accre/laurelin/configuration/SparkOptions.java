@@ -1,10 +1,12 @@
 package edu.vanderbilt.accre.laurelin.configuration;
 
 
+import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.BooleanValueType;
 import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.ConfigBuilder;
 import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.ConfigOption;
 import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.ConfigValueType;
 import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.IntegerValueType;
+import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.LongValueType;
 import edu.vanderbilt.accre.laurelin.configuration.ConfigListing.StringValueType;
 
 /**
@@ -16,7 +18,112 @@ public class SparkOptions {
                 newConfig("threadCount")
                     .type(INTEGER_TYPE)
                     .literalDefault("16")
-                    .description("Number of (system-wide) threads to use for background I/O and decompression")
+                    .description("Set to zero to decompress baskets synchronously. Otherwise, baskets are decompressed in the background by an executor-wide pool sized to the executor's cores")
+                    .build(),
+                newConfig("decodeInflightBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault(Long.toString(512L * 1024 * 1024))
+                    .description("Upper bound on the (executor-wide) number of decompressed bytes being decoded at once")
+                    .build(),
+                newConfig("lazyDecode")
+                    .type(BOOLEAN_TYPE)
+                    .literalDefault("false")
+                    .description("If true, each column's baskets are only read and decoded the first time the column is accessed, so columns that a filter never reaches aren't decompressed. If false, every column starts decoding in the background as soon as the partition is opened")
+                    .build(),
+                newConfig("filterPushdown")
+                    .type(BOOLEAN_TYPE)
+                    .literalDefault("true")
+                    .description("If true, simple comparisons Spark pushes into the scan are evaluated first, and baskets of other columns without any passing rows are never read")
+                    .build(),
+                newConfig("decodedCacheBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("Size in bytes of the executor-wide cache of decoded columns, which lets repeated queries over the same columns skip decompression and decoding. Zero disables the cache")
+                    .build(),
+                newConfig("cacheBudgetBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("Total bytes shared by every laurelin cache in the JVM (file pages, baskets, decompressed buffers, decoded columns and metadata). When over budget, caches above their quota are shrunk first, then the ones cheapest to rebuild. The first task in the JVM with a nonzero value sets it, later values are ignored. Zero uses a quarter of the maximum heap")
+                    .build(),
+                newConfig("offHeapCacheBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("If nonzero, keep decompressed baskets in this many bytes of native (direct) memory instead of on the heap, so large caches don't lengthen GC pauses. Must fit within -XX:MaxDirectMemorySize. Zero keeps the cache on-heap")
+                    .build(),
+                newConfig("sharedCachePath")
+                    .type(STRING_TYPE)
+                    .literalDefault("")
+                    .description("If set, keep decompressed baskets in a memory-mapped file at this path (e.g. /dev/shm/laurelin-baskets) shared by every executor on the node, instead of in each executor. Takes precedence over offHeapCacheBytes")
+                    .build(),
+                newConfig("sharedCacheBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("1073741824")
+                    .description("Size of the shared basket cache file, at most 2GiB. Only used by the first executor on a node to create it")
+                    .build(),
+                newConfig("basketAdmission")
+                    .type(STRING_TYPE)
+                    .literalDefault("lru")
+                    .description("Which baskets enter a full basket cache. \"lru\" admits every basket. \"tinylfu\" only admits baskets requested more often than the one they would evict, which keeps frequently reused baskets cached through large one-off scans. Executor-wide, so once a task asks for \"tinylfu\" it stays in effect")
+                    .build(),
+                newConfig("compressedTier")
+                    .type(BOOLEAN_TYPE)
+                    .literalDefault("false")
+                    .description("Split the on-heap basket cache into a large tier of baskets as stored on disk and a small tier of decompressed baskets. Holds several times more baskets in the same memory, at the cost of decompressing them again on a compressed tier hit. Executor-wide, so once a task turns it on it stays on")
+                    .build(),
+                newConfig("readAheadMinBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("65536")
+                    .description("Read-ahead window used once sequential reads of a file are detected. The window doubles with every further sequential read, up to readAheadMaxBytes")
+                    .build(),
+                newConfig("readAheadMaxBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("Largest read-ahead window per file stream, fetched in the background to hide the latency of remote storage. Executor-wide: the first task with a nonzero value sets both window sizes, and later values are ignored. Zero disables read-ahead")
+                    .build(),
+                newConfig("eagerBasketMetadata")
+                    .type(BOOLEAN_TYPE)
+                    .literalDefault("false")
+                    .description("Read every basket's key while planning and ship the lengths to the executors, so they go straight to payload reads and cached baskets need no I/O at all. Costs one small read per basket at planning time")
+                    .build(),
+                newConfig("broadcastMetadata")
+                    .type(BOOLEAN_TYPE)
+                    .literalDefault("true")
+                    .description("Send the branch metadata of each file to executors once as a broadcast variable (one per file), instead of embedding it in every partition. Shrinks tasks considerably for wide trees")
+                    .build(),
+                newConfig("packTargetBytes")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("Packs consecutive small partitions (e.g. whole small files) into one task, until the baskets it reads add up to this many bytes. Avoids scheduling a task per file for datasets of many small files. Zero disables packing")
+                    .build(),
+                newConfig("listingThreads")
+                    .type(INTEGER_TYPE)
+                    .literalDefault("16")
+                    .description("Number of directory listings and glob expansions the driver runs at once while resolving the input paths")
+                    .build(),
+                newConfig("listingCacheMillis")
+                    .type(LONG_TYPE)
+                    .literalDefault("0")
+                    .description("How long, in milliseconds, the driver reuses the listing of a directory when resolving input paths, e.g. across repeated queries of the same dataset. Zero lists the directories every time")
+                    .build(),
+                newConfig("preOpenFiles")
+                    .type(INTEGER_TYPE)
+                    .literalDefault("2")
+                    .description("Number of upcoming files (e.g. the next files of a packed partition) opened in the background while the current one is read, so slow opens overlap with decoding. Zero disables")
+                    .build(),
+                newConfig("fileLingerMillis")
+                    .type(LONG_TYPE)
+                    .literalDefault("60000")
+                    .description("How long, in milliseconds, a file handle nobody is using is kept open in case the file is read again. Executor-wide: the first task with a non-default value sets it, and later values are ignored")
+                    .build(),
+                newConfig("maxOpenFiles")
+                    .type(INTEGER_TYPE)
+                    .literalDefault("0")
+                    .description("Most file handles kept open per JVM. Past this, the least recently used idle handles are closed early. Handles in use are never closed. Executor-wide: the first task with a nonzero value sets it, and later values are ignored. Zero for no limit")
+                    .build(),
+                newConfig("ioMode")
+                    .type(STRING_TYPE)
+                    .literalDefault("inline")
+                    .description("How basket reads are performed. \"inline\" reads each basket on the decode thread. \"virtual\" fetches each basket on its own virtual thread (JDK 21+, otherwise falls back to inline) and only decompresses on the decode pool, which helps with high-latency remote storage")
                     .build(),
                 newConfig("tree")
                     .type(STRING_TYPE)
@@ -34,6 +141,8 @@ public class SparkOptions {
         return new ConfigBuilder(name);
     }
 
+    private static final ConfigValueType BOOLEAN_TYPE = new BooleanValueType();
     private static final ConfigValueType INTEGER_TYPE = new IntegerValueType();
+    private static final ConfigValueType LONG_TYPE = new LongValueType();
     private static final ConfigValueType STRING_TYPE = new StringValueType();
 }
\ No newline at end of file
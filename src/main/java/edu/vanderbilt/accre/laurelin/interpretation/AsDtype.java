@@ -48,6 +48,19 @@ public class AsDtype implements Interpretation {
         this.dims = Collections.unmodifiableList(dims);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AsDtype)) {
+            return false;
+        }
+        return (dtype == ((AsDtype) o).dtype) && dims.equals(((AsDtype) o).dims);
+    }
+
+    @Override
+    public int hashCode() {
+        return dtype.hashCode() * 31 + dims.hashCode();
+    }
+
     public int multiplicity() {
         int out = 1;
         for (Integer i : this.dims) {
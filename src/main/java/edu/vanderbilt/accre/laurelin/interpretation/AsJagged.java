@@ -30,6 +30,19 @@ public class AsJagged implements Interpretation {
         return this.content;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AsJagged)) {
+            return false;
+        }
+        return (skipbytes == ((AsJagged) o).skipbytes) && content.equals(((AsJagged) o).content);
+    }
+
+    @Override
+    public int hashCode() {
+        return content.hashCode() * 31 + skipbytes;
+    }
+
     @Override
     public int disk_itemsize() {
         return this.content.disk_itemsize();
@@ -57,29 +70,31 @@ public class AsJagged implements Interpretation {
 
     @Override
     public Array fromroot(RawArray bytedata, PrimitiveArray.Int4 byteoffsets, int local_entrystart, int local_entrystop) {
-        RawArray compact = bytedata.compact(byteoffsets, this.skipbytes, local_entrystart, local_entrystop);
-
         int innersize_memory = ((AsDtype)this.content).memory_itemsize() * ((AsDtype)this.content).multiplicity();
-        ByteBuffer countsbuf = ByteBuffer.allocate((local_entrystop - local_entrystart) * 4);
+        int numentries = local_entrystop - local_entrystart;
+        ByteBuffer countsbuf = ByteBuffer.allocate(numentries * 4);
 
         int start = (byteoffsets.get(local_entrystart) - local_entrystart * this.skipbytes) / innersize_memory;
         int stop = (byteoffsets.get(local_entrystop) - local_entrystop * this.skipbytes) / innersize_memory;
 
-        for (int i = local_entrystart;  i < local_entrystop;  ++i) {
-            int count = ((byteoffsets.get(i + 1) - byteoffsets.get(i)) - this.skipbytes) / innersize_memory;
-            countsbuf.putInt(count);
-        }
-        countsbuf.position(0);
-        PrimitiveArray.Int4 counts = new PrimitiveArray.Int4(new RawArray(countsbuf));
-
         Array content;
-        // Array content = this.content.fromroot(compact, null, start, stop);
         if (this.skipbytes > 0) {
-            content = this.content.fromroot(compact, null, 0, stop - start);
+            // Strip the headers and count the items in the same pass
+            ByteBuffer contentbuf = ByteBuffer.allocate(byteoffsets.get(local_entrystop) - byteoffsets.get(local_entrystart) - this.skipbytes * numentries);
+            bytedata.compactInto(byteoffsets, this.skipbytes, innersize_memory, local_entrystart, local_entrystop, contentbuf, countsbuf);
+            contentbuf.position(0);
+            content = this.content.fromroot(new RawArray(contentbuf), null, 0, stop - start);
         } else {
+            RawArray compact = bytedata.compact(byteoffsets, this.skipbytes, local_entrystart, local_entrystop);
+            for (int i = local_entrystart;  i < local_entrystop;  ++i) {
+                int count = (byteoffsets.get(i + 1) - byteoffsets.get(i)) / innersize_memory;
+                countsbuf.putInt(count);
+            }
             content = this.content.fromroot(compact, null, start, stop);
         }
-        return new JaggedArray(this, local_entrystop - local_entrystart, counts, content);
+        countsbuf.position(0);
+        PrimitiveArray.Int4 counts = new PrimitiveArray.Int4(new RawArray(countsbuf));
+        return new JaggedArray(this, numentries, counts, content);
     }
 
     @Override
@@ -77,6 +77,13 @@ public class TBasket {
         return key.KeyLen;
     }
 
+    /**
+     * @return Length of the payload as stored on disk
+     */
+    public int getCompressedLen() {
+        return key.Nbytes - key.KeyLen;
+    }
+
     /**
      *
      * @return last event number
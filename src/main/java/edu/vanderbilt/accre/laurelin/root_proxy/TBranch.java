@@ -71,6 +71,14 @@ public class TBranch {
             return fixedLength;
         }
 
+        /**
+         * @return Name of the branch holding the length of each entry, or an
+         *          empty string if the lengths are stored with the array
+         */
+        public String getBranchName() {
+            return branchName;
+        }
+
         public int getSkipBytes() {
             return skipBytes;
         }
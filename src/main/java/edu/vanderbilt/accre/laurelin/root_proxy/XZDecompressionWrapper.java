@@ -115,7 +115,7 @@ public class XZDecompressionWrapper implements FileInterface {
     }
 
     @Override
-    public Future<ByteBuffer> readAsync(int offset, int len) throws IOException {
+    public Future<ByteBuffer> readAsync(long offset, int len) throws IOException {
         return null;
     }
 
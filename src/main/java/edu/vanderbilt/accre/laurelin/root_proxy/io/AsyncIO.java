@@ -0,0 +1,112 @@
+package edu.vanderbilt.accre.laurelin.root_proxy.io;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executors for latency-bound I/O, i.e. reads that spend most of their time
+ * waiting on a remote server rather than using the CPU.
+ *
+ * <p>On JDK 21+, each read gets its own virtual thread, so thousands of
+ * outstanding reads cost next to nothing. We're compiled against Java 8, so
+ * the virtual thread executor is looked up reflectively. On older JVMs, reads
+ * fall back to a cached pool of daemon platform threads.
+ */
+public class AsyncIO {
+    private static final Logger logger = LogManager.getLogger();
+
+    private static boolean virtualChecked = false;
+    private static ExecutorService virtualExecutor = null;
+    private static ExecutorService platformExecutor = null;
+
+    /**
+     * Returns an executor which starts a new virtual thread for every task
+     *
+     * @return The executor, or null if this JVM doesn't have virtual threads
+     */
+    public static synchronized Executor getVirtualThreadExecutor() {
+        if (!virtualChecked) {
+            virtualChecked = true;
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualExecutor = (ExecutorService) factory.invoke(null);
+                logger.debug("Using virtual threads for async I/O");
+            } catch (ReflectiveOperationException e) {
+                logger.debug("Virtual threads are unavailable in JVM " + System.getProperty("java.version"));
+            }
+        }
+        return virtualExecutor;
+    }
+
+    /**
+     * Returns the executor used to service asynchronous reads. Prefers
+     * virtual threads if they're available
+     *
+     * @return The I/O executor
+     */
+    public static synchronized Executor getIOExecutor() {
+        Executor ret = getVirtualThreadExecutor();
+        if (ret != null) {
+            return ret;
+        }
+        if (platformExecutor == null) {
+            platformExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setNameFormat("laurelin-io-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        return platformExecutor;
+    }
+
+    /**
+     * Performs a read from the given file in the background
+     *
+     * @param fh The file to read from
+     * @param offset Offset into the file
+     * @param len Number of bytes to read
+     * @return Future which is completed with the bytes, or the exception
+     *          thrown by the read
+     */
+    public static Future<ByteBuffer> readAsync(FileInterface fh, long offset, long len) {
+        CompletableFuture<ByteBuffer> ret = new CompletableFuture<ByteBuffer>();
+        getIOExecutor().execute(() -> {
+            try {
+                ret.complete(fh.read(offset, len));
+            } catch (Throwable e) {
+                ret.completeExceptionally(e);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Performs several reads from the given file in the background, each
+     * one independently of the others
+     *
+     * @param fh The file to read from
+     * @param offsets Offsets into the file
+     * @param lens Number of bytes to read at each offset
+     * @return One future per requested read
+     */
+    public static Future<ByteBuffer>[] readvAsync(FileInterface fh, int[] offsets, int[] lens) {
+        if (offsets.length != lens.length) {
+            throw new IllegalArgumentException("Mismatched offset and length counts");
+        }
+        @SuppressWarnings("unchecked")
+        Future<ByteBuffer>[] ret = new Future[offsets.length];
+        for (int i = 0; i < offsets.length; i += 1) {
+            ret[i] = readAsync(fh, offsets[i], lens[i]);
+        }
+        return ret;
+    }
+}
@@ -108,6 +108,17 @@ public class Cursor {
         return buf.getLimit();
     }
 
+    /**
+     * @return The file this cursor reads directly from, or null if it reads
+     *         from e.g. a decompressed buffer
+     */
+    ROOTFile getFile() {
+        if (buf instanceof ROOTFile.FileBackedBuf) {
+            return ((ROOTFile.FileBackedBuf) buf).fh;
+        }
+        return null;
+    }
+
     /*
      * Stolen from uproot
      */
@@ -9,7 +9,7 @@ public interface FileInterface extends AutoCloseable {
 
     public ByteBuffer[] readv(int[] offsets, int[] lens) throws IOException;
 
-    public Future<ByteBuffer> readAsync(int offset, int len) throws IOException;
+    public Future<ByteBuffer> readAsync(long offset, int len) throws IOException;
 
     public Future<ByteBuffer>[] readvAsync(int[] offsets, int[] lens) throws IOException;
 
@@ -9,22 +9,42 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 public class HadoopFile implements FileInterface {
     FSDataInputStream fd;
-    long limit;
+    FileSystem fileSystem;
+    Path path;
+    long limit = -1;
+
+    /**
+     * The status the planner listed, or null if we have to ask ourselves
+     */
+    IOFactory.KnownStatus known;
 
     public HadoopFile(String pathStr) throws IOException {
-        Configuration conf = new Configuration();
-	URI uri = URI.create(pathStr);
-        FileSystem fileSystem = FileSystem.get(uri, conf);
-        Path path = new Path(uri);
+        this(pathStr, null);
+    }
+
+    /**
+     * @param pathStr The file
+     * @param known Status of the file from the planner, which is trusted
+     *              instead of asking the filesystem. Null to ask on the first
+     *              call to getLimit()
+     */
+    public HadoopFile(String pathStr, IOFactory.KnownStatus known) throws IOException {
+        URI uri = URI.create(pathStr);
+        // FileSystem.get() is cached, so this is only expensive per scheme
+        fileSystem = FileSystem.get(uri, IOFactory.getHadoopConfiguration());
+        path = new Path(uri);
         fd = fileSystem.open(path, 'r');
-        limit = fileSystem.getFileStatus(path).getLen();
+        this.known = known;
+        if (known != null) {
+            limit = known.getLength();
+        }
     }
 
     /*
@@ -36,23 +56,43 @@ public class HadoopFile implements FileInterface {
             throw new RuntimeException("Cannot perform a single read > 2GB");
         }
         ByteBuffer ret = ByteBuffer.allocate((int)len);
-        fd.read(offset, ret.array(), 0, (int)len);
+        int pos = 0;
+        while (pos < len) {
+            int count = fd.read(offset + pos, ret.array(), pos, (int) len - pos);
+            if (count < 0) {
+                break;
+            }
+            pos += count;
+        }
+        if ((pos < len) && (known != null) && (offset + len <= known.getLength())) {
+            // Only now is it worth a round trip to see if the planner was
+            // looking at a different version of this file
+            checkUnchanged();
+        }
         return ret;
     }
 
+    private void checkUnchanged() throws IOException {
+        FileStatus status = fileSystem.getFileStatus(path);
+        if ((status.getLen() != known.getLength()) || (status.getModificationTime() != known.getModificationTime())) {
+            throw new IOException("File " + path + " changed since it was planned (length "
+                    + known.getLength() + " -> " + status.getLen() + ")");
+        }
+    }
+
     @Override
     public ByteBuffer[] readv(int[] offsets, int[] lens) throws IOException {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Future<ByteBuffer> readAsync(int offset, int len) throws IOException {
-        throw new UnsupportedOperationException();
+    public Future<ByteBuffer> readAsync(long offset, int len) throws IOException {
+        return AsyncIO.readAsync(this, offset, len);
     }
 
     @Override
     public Future<ByteBuffer>[] readvAsync(int[] offsets, int[] lens) throws IOException {
-        throw new UnsupportedOperationException();
+        return AsyncIO.readvAsync(this, offsets, lens);
     }
 
     @Override
@@ -61,7 +101,10 @@ public class HadoopFile implements FileInterface {
     }
 
     @Override
-    public long getLimit() throws IOException {
+    public synchronized long getLimit() throws IOException {
+        if (limit < 0) {
+            limit = fileSystem.getFileStatus(path).getLen();
+        }
         return limit;
     }
 }
\ No newline at end of file
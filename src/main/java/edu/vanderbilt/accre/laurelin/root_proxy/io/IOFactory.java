@@ -5,12 +5,25 @@
 package edu.vanderbilt.accre.laurelin.root_proxy.io;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
@@ -19,10 +32,16 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.spark.SparkEnv;
 import org.apache.spark.deploy.SparkHadoopUtil;
 import org.apache.spark.sql.SparkSession;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import edu.vanderbilt.accre.laurelin.root_proxy.XZDecompressionWrapper;
+import scala.Option;
 import scala.collection.JavaConverters;
 import scala.collection.Seq;
 
@@ -46,7 +65,7 @@ public class IOFactory {
             ret = new XZDecompressionWrapper(path);
 
         } else if (Pattern.matches(hadoopPattern, path)) {
-            ret = new HadoopFile(path);
+            ret = new HadoopFile(path, knownStatus.getIfPresent(path));
         } else {
             ret = new NIOFile(path);
         }
@@ -54,6 +73,108 @@ public class IOFactory {
         return ret;
     }
 
+    /**
+     * Length and modification time of a file as listed while planning
+     */
+    public static class KnownStatus implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long length;
+        private final long modificationTime;
+
+        public KnownStatus(long length, long modificationTime) {
+            this.length = length;
+            this.modificationTime = modificationTime;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getModificationTime() {
+            return modificationTime;
+        }
+    }
+
+    /**
+     * Statuses handed to this JVM by the planner, so opening a file doesn't
+     * need another round trip to learn its length
+     */
+    private static Cache<String, KnownStatus> knownStatus = CacheBuilder.newBuilder().maximumSize(100 * 1000).build();
+
+    /**
+     * Records the status of a file, which later opens of the exact same path
+     * trust instead of asking the filesystem
+     *
+     * @param path The path, as it will be opened
+     * @param length Length of the file in bytes
+     * @param modificationTime Modification time reported by the filesystem
+     */
+    public static void setKnownStatus(String path, long length, long modificationTime) {
+        knownStatus.put(path, new KnownStatus(length, modificationTime));
+    }
+
+    /**
+     * Identifies the current contents of a file, so caches outliving a query
+     * don't serve data from a file which has since been rewritten. Remote
+     * files use the status handed over by the planner (which lists them
+     * again for every query), or ask the filesystem once. Local files are
+     * cheap to check, so they're looked at every time
+     *
+     * @param path The path, as it will be opened
+     * @return The file's length and modification time
+     * @throws IOException If the file can't be looked at
+     */
+    public static KnownStatus getFileStatus(String path) throws IOException {
+        String local = path.replace("$$XZ$$", "");
+        if (Pattern.matches(hadoopPattern, local)) {
+            KnownStatus ret = knownStatus.getIfPresent(local);
+            if (ret == null) {
+                Path hadoopPath = new Path(local);
+                FileStatus status = getFileSystemFromPath(hadoopPath, getHadoopConfiguration()).getFileStatus(hadoopPath);
+                ret = new KnownStatus(status.getLen(), status.getModificationTime());
+                knownStatus.put(local, ret);
+            }
+            return ret;
+        }
+        java.nio.file.Path nioPath = Paths.get(local);
+        return new KnownStatus(Files.size(nioPath), Files.getLastModifiedTime(nioPath).toMillis());
+    }
+
+    /**
+     * Hadoop configuration to open files with. The driver's session has the
+     * authoritative one. Executors never have a session, so they build one
+     * once from the Spark configuration, since loading a fresh Configuration
+     * parses every *-site.xml on the classpath
+     *
+     * @return The configuration
+     */
+    public static Configuration getHadoopConfiguration() {
+        SparkEnv env = SparkEnv.get();
+        // Spark names the driver's (and local mode's) executor "driver"
+        boolean executor = (env != null) && !env.executorId().equals("driver");
+        if (!executor) {
+            Option<SparkSession> session = SparkSession.getActiveSession();
+            if (session.isEmpty()) {
+                session = SparkSession.getDefaultSession();
+            }
+            if (session.isDefined()) {
+                return session.get().sparkContext().hadoopConfiguration();
+            }
+        }
+        synchronized (IOFactory.class) {
+            if (executorConf == null) {
+                if (env != null) {
+                    executorConf = SparkHadoopUtil.get().newConfiguration(env.conf());
+                } else {
+                    executorConf = new Configuration();
+                }
+            }
+            return executorConf;
+        }
+    }
+
+    private static Configuration executorConf;
+
     private static FileSystem getFileSystemFromPath(Path path, Configuration hadoopConf) throws IOException {
         FileSystem ret;
         if (Pattern.matches(hadoopPattern, path.toString())) {
@@ -64,6 +185,59 @@ public class IOFactory {
         return ret;
     }
 
+    /**
+     * Looks up each scheme and authority's FileSystem once per resolution,
+     * rather than once per path
+     */
+    private static class FileSystems {
+        private Configuration hadoopConf;
+        private Map<String, FileSystem> cache = new ConcurrentHashMap<String, FileSystem>();
+
+        FileSystems(Configuration hadoopConf) {
+            this.hadoopConf = hadoopConf;
+        }
+
+        FileSystem get(Path path) throws IOException {
+            String key = "";
+            if (Pattern.matches(hadoopPattern, path.toString())) {
+                key = path.toUri().getScheme() + "://" + path.toUri().getAuthority();
+            }
+            FileSystem ret = cache.get(key);
+            if (ret == null) {
+                ret = getFileSystemFromPath(path, hadoopConf);
+                cache.put(key, ret);
+            }
+            return ret;
+        }
+    }
+
+    private static volatile int listingThreads = 16;
+    private static long listingCacheMillis = 0;
+    private static volatile Cache<Path, FileStatus[]> listingCache;
+    private static volatile Cache<Path, List<FileStatus>> recursiveListingCache;
+
+    /**
+     * Sets how directories are listed while resolving paths
+     *
+     * @param threads Number of directories or globs to list at once
+     * @param cacheMillis How long a directory's listing is reused for, or
+     *                    zero to always list again
+     */
+    public static synchronized void configureListing(int threads, long cacheMillis) {
+        listingThreads = Math.max(1, threads);
+        if (cacheMillis == listingCacheMillis) {
+            return;
+        }
+        listingCacheMillis = cacheMillis;
+        if (cacheMillis > 0) {
+            listingCache = CacheBuilder.newBuilder().expireAfterWrite(cacheMillis, TimeUnit.MILLISECONDS).build();
+            recursiveListingCache = CacheBuilder.newBuilder().expireAfterWrite(cacheMillis, TimeUnit.MILLISECONDS).build();
+        } else {
+            listingCache = null;
+            recursiveListingCache = null;
+        }
+    }
+
     /**
      * Perform glob-expansion on a list of paths, then recursively expand any
      * directories listed in the list.
@@ -73,13 +247,19 @@ public class IOFactory {
      * @throws IOException If any globs don't resolve or paths don't exist
      */
     public static List<Path> resolvePathList(List<String> paths) throws IOException {
-        Configuration hadoopConf;
-        try {
-            hadoopConf = SparkSession.active().sparkContext().hadoopConfiguration();
-        } catch (IllegalStateException e) {
-            hadoopConf = new Configuration();
-        }
-        return resolvePathList(paths, hadoopConf);
+        return resolvePathList(paths, getHadoopConfiguration());
+    }
+
+    /**
+     * Like resolvePathList, but keeps the status of each file, which the
+     * listings already returned
+     *
+     * @param paths Paths to be expanded
+     * @return Status of every ROOT file
+     * @throws IOException If any globs don't resolve or paths don't exist
+     */
+    public static List<FileStatus> resolveStatusList(List<String> paths) throws IOException {
+        return resolveStatusList(paths, getHadoopConfiguration());
     }
 
     /**
@@ -93,15 +273,38 @@ public class IOFactory {
      * @throws IOException If any globs don't resolve or paths don't exist
      */
     public static List<Path> resolvePathList(List<String> paths, Configuration hadoopConf) throws IOException {
-        List<Path> globResolved = new ArrayList<Path>(paths.size());
+        List<FileStatus> statuses = resolveStatusList(paths, hadoopConf);
+        List<Path> ret = new ArrayList<Path>(statuses.size());
+        for (FileStatus status: statuses) {
+            ret.add(status.getPath());
+        }
+        return ret;
+    }
+
+    /**
+     * Like resolvePathList, but keeps the status of each file
+     *
+     * @param paths Paths to be expanded
+     * @param hadoopConf hadoop configuration to use.
+     * @return Status of every ROOT file
+     * @throws IOException If any globs don't resolve or paths don't exist
+     */
+    public static List<FileStatus> resolveStatusList(List<String> paths, Configuration hadoopConf) throws IOException {
+        FileSystems fileSystems = new FileSystems(hadoopConf);
+
         // First perform any globbing
+        List<Callable<List<Path>>> globTasks = new ArrayList<Callable<List<Path>>>(paths.size());
         for (String path: paths) {
             if (isGlob(path)) {
-                globResolved.addAll(resolveGlob(path, hadoopConf));
+                globTasks.add(() -> resolveGlob(path, fileSystems));
             } else {
-                globResolved.add(new Path(path));
+                globTasks.add(() -> Collections.singletonList(new Path(path)));
             }
         }
+        List<Path> globResolved = new ArrayList<Path>(paths.size());
+        for (List<Path> resolved: runAll(globTasks)) {
+            globResolved.addAll(resolved);
+        }
 
         /*
          * Now, with globs turned into concrete paths, we want to walk through
@@ -119,7 +322,8 @@ public class IOFactory {
          * directly, request the directory listing of each path's parent
          * directory to discover the types of each entry. This way, the number
          * of FS calls scales by the number of parent directories and not the
-         * number of paths.
+         * number of paths. The listings are also requested concurrently, so
+         * thousands of parents cost a few round trips rather than thousands.
          *
          * It should also be noted that the hadoop-xrootd connector unrolls
          * the multi-arg form of listStatus to individual calls, so that doesn't
@@ -127,26 +331,23 @@ public class IOFactory {
          */
 
         // Loop over all the paths and keep the unique parents of them all
-        // TODO: Is repeatedly instantiating FileSystem objects slow over WAN?
-        Map<Path, List<FileStatus>> parentDirectories = new HashMap<Path, List<FileStatus>>();
-        Map<Path, Path> childToParentMap = new HashMap<Path, Path>();
-        Map<Path, Path> qualifiedChildToParentMap = new HashMap<Path, Path>();
+        Set<Path> parentDirectories = new LinkedHashSet<Path>();
+        Map<Path, Path> qualifiedChildToParentMap = new LinkedHashMap<Path, Path>();
         for (Path path: globResolved) {
             Path parent = path.getParent();
-            parentDirectories.put(parent, null);
-            childToParentMap.put(path, parent);
-            FileSystem fs = getFileSystemFromPath(parent, hadoopConf);
+            parentDirectories.add(parent);
+            FileSystem fs = fileSystems.get(parent);
             Path qualifiedChild = path.makeQualified(fs.getUri(), fs.getWorkingDirectory());
             qualifiedChildToParentMap.put(qualifiedChild, parent);
         }
 
         // Retrieve the listing for all the parent dirs
-        Map<Path, List<FileStatus>> parentToStatusMap = new HashMap<Path, List<FileStatus>>();
+        List<Callable<FileStatus[]>> listTasks = new ArrayList<Callable<FileStatus[]>>(parentDirectories.size());
+        for (Path parent: parentDirectories) {
+            listTasks.add(() -> listStatus(parent, fileSystems));
+        }
         Map<Path, FileStatus> qualifiedListingToStatusMap = new HashMap<Path, FileStatus>();
-        for (Path parent: parentDirectories.keySet()) {
-            FileSystem fs = getFileSystemFromPath(parent, hadoopConf);
-            FileStatus[] listing = fs.listStatus(parent);
-            parentToStatusMap.put(parent, Arrays.asList(listing));
+        for (FileStatus[] listing: runAll(listTasks)) {
             for (FileStatus s: listing) {
                 assert qualifiedListingToStatusMap.containsKey(s.getPath()) == false;
                 qualifiedListingToStatusMap.put(s.getPath(), s);
@@ -157,52 +358,131 @@ public class IOFactory {
 
         /*
          *  At this point, we have a list of post-globbing URIs and lists of
-         *  FileStatus for every parent of those URIs. Use this to make a map of
-         *  Globbed path -> FileStatus
+         *  FileStatus for every parent of those URIs. Use this to sort between
+         *  files and directories
          */
-        Map<Path, FileStatus> clientRequestedPathToStatusMap = new HashMap<Path, FileStatus>();
-        for (Entry<Path, Path> e: qualifiedChildToParentMap.entrySet()) {
-            if (!qualifiedListingToStatusMap.containsKey(e.getKey())) {
-                throw new IOException("Path not found: " + e.getKey());
+        List<Callable<List<FileStatus>>> expandTasks = new ArrayList<Callable<List<FileStatus>>>(qualifiedChildToParentMap.size());
+        for (Path qualifiedChild: qualifiedChildToParentMap.keySet()) {
+            if (!qualifiedListingToStatusMap.containsKey(qualifiedChild)) {
+                throw new IOException("Path not found: " + qualifiedChild);
             }
-            FileStatus status = qualifiedListingToStatusMap.get(e.getKey());
-            clientRequestedPathToStatusMap.put(e.getKey(), status);
-        }
-
-        // Walk the statuses to sort between files and directories
-        List<Path> ret = new ArrayList<Path>(globResolved.size());
-        for (FileStatus status: clientRequestedPathToStatusMap.values()) {
+            FileStatus status = qualifiedListingToStatusMap.get(qualifiedChild);
             Path path = status.getPath();
             if (status.isDirectory()) {
                 // We were given a directory, add everything recursively
-                FileSystem fs = getFileSystemFromPath(status.getPath(), hadoopConf);
-                RemoteIterator<LocatedFileStatus> fileList = fs.listFiles(status.getPath(), true);
-                while (fileList.hasNext()) {
-                    LocatedFileStatus file = fileList.next();
-                    if (file.isFile() && (file.getPath().getName().endsWith(".root"))) {
-                        ret.add(file.getPath());
-                    }
-                }
+                expandTasks.add(() -> listRootFiles(path, fileSystems));
             } else if (status.isFile()) {
-                ret.add(status.getPath());
+                expandTasks.add(() -> Collections.singletonList(status));
             } else {
                 throw new IOException("File '" + path + "' is an unknown type");
             }
         }
+        List<FileStatus> ret = new ArrayList<FileStatus>(globResolved.size());
+        for (List<FileStatus> expanded: runAll(expandTasks)) {
+            ret.addAll(expanded);
+        }
 
         return ret;
     }
 
+    /**
+     * Lists a directory, or reuses a recent listing of it
+     */
+    private static FileStatus[] listStatus(Path dir, FileSystems fileSystems) throws IOException {
+        FileSystem fs = fileSystems.get(dir);
+        Path qualified = dir.makeQualified(fs.getUri(), fs.getWorkingDirectory());
+        Cache<Path, FileStatus[]> cache = listingCache;
+        FileStatus[] ret = (cache == null) ? null : cache.getIfPresent(qualified);
+        if (ret == null) {
+            ret = fs.listStatus(dir);
+            if (cache != null) {
+                cache.put(qualified, ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Recursively finds the ROOT files in a directory, or reuses a recent
+     * search of it
+     */
+    private static List<FileStatus> listRootFiles(Path dir, FileSystems fileSystems) throws IOException {
+        Cache<Path, List<FileStatus>> cache = recursiveListingCache;
+        List<FileStatus> ret = (cache == null) ? null : cache.getIfPresent(dir);
+        if (ret != null) {
+            return ret;
+        }
+        ret = new ArrayList<FileStatus>();
+        RemoteIterator<LocatedFileStatus> fileList = fileSystems.get(dir).listFiles(dir, true);
+        while (fileList.hasNext()) {
+            LocatedFileStatus file = fileList.next();
+            if (file.isFile() && (file.getPath().getName().endsWith(".root"))) {
+                ret.add(file);
+            }
+        }
+        if (cache != null) {
+            cache.put(dir, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the given listings on a bounded pool
+     *
+     * @param tasks Listings to run
+     * @return Their results, in the same order
+     * @throws IOException If any of the listings failed
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        List<T> ret = new ArrayList<T>(tasks.size());
+        int threads = Math.min(listingThreads, tasks.size());
+        if (threads <= 1) {
+            for (Callable<T> task: tasks) {
+                try {
+                    ret.add(task.call());
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return ret;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("laurelin-listing-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            for (Future<T> future: pool.invokeAll(tasks)) {
+                ret.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing paths");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return ret;
+    }
+
     /**
      * Perform glob expansion on a path
      * @param path Glob to expand
-     * @param hadoopConf configuration to use
+     * @param fileSystems filesystems to use
      * @return List of paths that match the given glob
      * @throws IOException Nothing matches the given glob
      */
-    private static List<Path> resolveGlob(String path, Configuration hadoopConf) throws IOException {
+    private static List<Path> resolveGlob(String path, FileSystems fileSystems) throws IOException {
         Path hdfsPath = new Path(path);
-        FileSystem fs = getFileSystemFromPath(hdfsPath, hadoopConf);
+        FileSystem fs = fileSystems.get(hdfsPath);
         Path qualified = hdfsPath.makeQualified(fs.getUri(), fs.getWorkingDirectory());
         Seq<Path> globPath = SparkHadoopUtil.get().globPathIfNecessary(fs, qualified);
         if (globPath.isEmpty()) {
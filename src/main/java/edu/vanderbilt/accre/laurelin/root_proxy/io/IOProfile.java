@@ -47,13 +47,17 @@ public class IOProfile {
 
             public enum TypeEnum {
                 LOWER,
-                UPPER
+                UPPER,
+                BASKET
             }
 
             /**
              * There are two types of IO we care about - "Upper" IO, is IO from
              * the application before any caching/prefetching/etc occurs.
              * "Lower" IO is a request that reaches an actual filesystem call.
+             * "Basket" events are a reader asking for one decompressed basket,
+             * whether or not it was cached: offset is where the basket starts
+             * in the file and len is its decompressed size.
              */
             public TypeEnum type;
 
@@ -105,6 +109,8 @@ public class IOProfile {
 
         public Event startUpperOp(long offset, int len);
 
+        public Event startBasketOp(long offset, int len);
+
         public Function<Event, Integer> getCallback();
     }
 
@@ -122,6 +128,11 @@ public class IOProfile {
             return null;
         }
 
+        @Override
+        public Event startBasketOp(long offset, int len) {
+            return null;
+        }
+
         @Override
         public Function<Event, Integer> getCallback() {
             return null;
@@ -176,6 +187,11 @@ public class IOProfile {
             return Event.startOp(this, offset, len, eventID.addAndGet(1), fid, eid, TypeEnum.UPPER);
         }
 
+        @Override
+        public Event startBasketOp(long offset, int len) {
+            return Event.startOp(this, offset, len, eventID.addAndGet(1), fid, eid, TypeEnum.BASKET);
+        }
+
         @Override
         public Function<Event, Integer> getCallback() {
             return callback;
@@ -0,0 +1,43 @@
+package edu.vanderbilt.accre.laurelin.root_proxy.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BackingBuf for bytes which were already read into memory, e.g. a basket
+ * that was fetched ahead of being decompressed. Offsets are relative to the
+ * start of the buffer.
+ */
+public class InMemoryBuf implements BackingBuf {
+    private ByteBuffer buf;
+
+    public InMemoryBuf(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    @Override
+    public ByteBuffer read(long off, long len) throws IOException {
+        if ((off < 0) || (len < 0) || (off + len > buf.limit())) {
+            throw new IOException("Read of " + len + " bytes at " + off + " outside in-memory buffer of " + buf.limit() + " bytes");
+        }
+        ByteBuffer ret = buf.duplicate();
+        ret.position((int) off);
+        ret.limit((int) (off + len));
+        return ret.slice();
+    }
+
+    @Override
+    public boolean hasLimit() throws IOException {
+        return true;
+    }
+
+    @Override
+    public long getLimit() throws IOException {
+        return buf.limit();
+    }
+
+    @Override
+    public BackingBuf duplicate() {
+        return new InMemoryBuf(buf);
+    }
+}
@@ -39,13 +39,13 @@ public class NIOFile implements FileInterface {
     }
 
     @Override
-    public Future<ByteBuffer> readAsync(int offset, int len) throws IOException {
-        throw new UnsupportedOperationException();
+    public Future<ByteBuffer> readAsync(long offset, int len) throws IOException {
+        return AsyncIO.readAsync(this, offset, len);
     }
 
     @Override
     public Future<ByteBuffer>[] readvAsync(int[] offsets, int[] lens) throws IOException {
-        throw new UnsupportedOperationException();
+        return AsyncIO.readvAsync(this, offsets, lens);
     }
 
     @Override
@@ -1,41 +1,128 @@
 package edu.vanderbilt.accre.laurelin.root_proxy.io;
 
 import java.io.IOException;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import edu.vanderbilt.accre.laurelin.cache.LruByteCache;
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
 
 public class PossiblyCompressedBuf implements BackingBuf {
+    /**
+     * Decompressed contents of every buffer, shared between duplicates. The
+     * MemoryBudget drops the least-recently used ones when memory is tight
+     */
+    private static LruByteCache<BlockKey, ByteBuffer> decompressedCache = new LruByteCache<BlockKey, ByteBuffer>(ByteBuffer::capacity);
+
+    /**
+     * Fraction of the memory budget decompressed buffers may use. This is
+     * enforced even if the budget isn't full, since the same bytes are
+     * usually also held by the basket cache
+     */
+    private static final double DECOMPRESSED_QUOTA = 0.1;
+
+    static {
+        // Usually also held by the basket cache, so drop these first
+        MemoryBudget.getBudget().register("decompressed buffers", decompressedCache, DECOMPRESSED_QUOTA, 0);
+    }
+
     private Cursor parent;
     private long base;
     private int compressedLen;
     private int uncompressedLen;
-    private Reference<ByteBuffer> decompressed;
+
+    /**
+     * Identifies a compressed block by where it is in which file, so every
+     * reader of the block shares one decompressed copy. The file's length
+     * and modification time tell a rewritten file apart
+     */
+    private static class BlockKey {
+        private final String path;
+        private final long length;
+        private final long modificationTime;
+        private final long offset;
+
+        BlockKey(String path, IOFactory.KnownStatus status, long offset) {
+            this.path = path;
+            this.length = status.getLength();
+            this.modificationTime = status.getModificationTime();
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return (offset == other.offset) && (length == other.length)
+                    && (modificationTime == other.modificationTime) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, modificationTime, offset);
+        }
+    }
+
+    /**
+     * Key of our decompressed bytes in decompressedCache, looked up on first
+     * read and shared between duplicates
+     */
+    private BlockKey decompressed;
+
+    /**
+     * The decompressed bytes, if they can't be shared through
+     * decompressedCache because the block isn't read straight from a file
+     */
+    private ByteBuffer uncached;
 
     public PossiblyCompressedBuf(Cursor parent, long base, int compressedLen, int uncompressedLen) {
         this.parent = parent;
         this.base = base; // + parent.getBase();
         this.compressedLen = compressedLen;
         this.uncompressedLen = uncompressedLen;
-        this.decompressed = new SoftReference<ByteBuffer>(null);
     }
 
-    private PossiblyCompressedBuf(Cursor parent, long base, int compressedLen, int uncompressedLen, Reference<ByteBuffer> decompressed) {
+    private PossiblyCompressedBuf(Cursor parent, long base, int compressedLen, int uncompressedLen, BlockKey decompressed) {
         this(parent, base, compressedLen, uncompressedLen);
         this.decompressed = decompressed;
     }
 
+    /**
+     * @return Where decompressedCache keeps this block, or null if it can't
+     */
+    private BlockKey getKey() throws IOException {
+        if (decompressed == null) {
+            ROOTFile file = parent.getFile();
+            if (file == null) {
+                return null;
+            }
+            decompressed = new BlockKey(file.getPath(), IOFactory.getFileStatus(file.getPath()), parent.base + base);
+        }
+        return decompressed;
+    }
+
     @Override
     public ByteBuffer read(long off, long len) throws IOException {
         if (compressedLen == uncompressedLen) {
             // not compressed
             return parent.readBuffer(base + off, len);
         } else {
-            ByteBuffer tmp = decompressed.get();
+            BlockKey key = getKey();
+            ByteBuffer tmp = (key == null) ? uncached : decompressedCache.get(key);
             if (tmp == null) {
                 ByteBuffer parentBytes = parent.readBuffer(base, compressedLen);
                 tmp = Compression.decompressBytes(parentBytes, compressedLen, uncompressedLen);
-                decompressed = new SoftReference<ByteBuffer>(tmp);
+                if (key == null) {
+                    uncached = tmp;
+                } else {
+                    decompressedCache.put(key, tmp);
+                }
+                long excess = decompressedCache.getUsedBytes() - (long) (DECOMPRESSED_QUOTA * MemoryBudget.getBudget().getBudgetBytes());
+                if (excess > 0) {
+                    decompressedCache.shrink(excess);
+                }
             }
 
             // Make a copy first to prevent mutating the decompresed buffer
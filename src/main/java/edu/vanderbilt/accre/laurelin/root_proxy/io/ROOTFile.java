@@ -6,6 +6,9 @@ package edu.vanderbilt.accre.laurelin.root_proxy.io;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.logging.log4j.LogManager;
@@ -15,6 +18,7 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.FileProfiler;
 
@@ -91,6 +95,24 @@ public class ROOTFile implements AutoCloseable {
             cache = CacheBuilder.newBuilder()
                 .maximumSize(CACHE_PAGE_COUNT)
                 .build(loader);
+            MemoryBudget.getBudget().register("file page cache", new MemoryBudget.Consumer() {
+                @Override
+                public long getUsedBytes() {
+                    return cache.size() * CACHE_PAGE_SIZE;
+                }
+
+                @Override
+                public long shrink(long bytes) {
+                    long freed = 0;
+                    Iterator<CacheKey> it = cache.asMap().keySet().iterator();
+                    while ((freed < bytes) && it.hasNext()) {
+                        it.next();
+                        it.remove();
+                        freed += CACHE_PAGE_SIZE;
+                    }
+                    return freed;
+                }
+            }, 0.05, 10);
         }
 
         protected FileBackedBuf(ROOTFile fh) {
@@ -153,6 +175,7 @@ public class ROOTFile implements AutoCloseable {
     private FileInterface fh;
     private String path;
     protected FileProfiler profile;
+    private volatile ReadAhead readAhead;
 
     /* Hide constructor */
     private ROOTFile(String path) {
@@ -181,6 +204,41 @@ public class ROOTFile implements AutoCloseable {
      * we couldn't change the contents without breaking the users
      */
     private ByteBuffer readUnsafe(long offset, long l) throws IOException {
+        ReadAhead tmpReadAhead = ReadAhead.isEnabled() ? getReadAhead() : null;
+        if (tmpReadAhead != null) {
+            ByteBuffer ret = tmpReadAhead.read(offset, l);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        return readDirect(offset, l);
+    }
+
+    /**
+     * Created on first use, so files opened before read-ahead was configured
+     * pick it up too. Only creating it takes the lock, since every read of
+     * the file comes through here
+     */
+    private ReadAhead getReadAhead() throws IOException {
+        ReadAhead ret = readAhead;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (readAhead == null) {
+                readAhead = new ReadAhead((off, len) -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return readDirect(off, len);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, AsyncIO.getIOExecutor()), fh.getLimit());
+            }
+            return readAhead;
+        }
+    }
+
+    private ByteBuffer readDirect(long offset, long l) throws IOException {
         /*
          * This bytebuffer can be a copy of the internal cache
          */
@@ -196,6 +254,24 @@ public class ROOTFile implements AutoCloseable {
         return ret;
     }
 
+    /**
+     * Records that a reader asked for a decompressed basket, whether or not
+     * it came from a cache
+     *
+     * @param offset Where the basket starts in the file
+     * @param len Decompressed size of the basket
+     */
+    public void profileBasket(long offset, int len) {
+        Event event = profile.startBasketOp(offset, len);
+        if (event != null) {
+            try {
+                event.close();
+            } catch (Exception e) {
+                logger.debug("Couldn't record basket read", e);
+            }
+        }
+    }
+
     public ByteBuffer read(long offset, long len) throws IOException {
         /*
          * TODO:
@@ -4,8 +4,19 @@ import java.io.IOException;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.fs.Path;
@@ -13,6 +24,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.TFile;
 
 /**
  * Tracks the lifetime of ROOTFiles and their underlying FileInterface
@@ -25,10 +41,59 @@ public class ROOTFileCache {
     private static final Logger logger = LogManager.getLogger();
 
     /**
-     * Holds weak references to ROOTFile objects -- enforces a one-to-one
-     * mapping from a path to a given ROOTFile
+     * How often the singleton's reaper thread runs
+     */
+    private static final long REAPER_PERIOD_MS = 1000;
+
+    /**
+     * Everything known about one path. Transitions between the states in the
+     * design doc happen while holding the lock of the path's PathState, so
+     * opens of different paths never wait on each other
+     */
+    private static class PathState {
+        /**
+         * Enforces a one-to-one mapping from a path to a given ROOTFile
+         */
+        WeakReference<ROOTFile> ref;
+
+        /**
+         * Notices when the current ROOTFile becomes unreachable
+         */
+        ROOTFileFinalizer phantom;
+
+        /**
+         * The underlying handle, held while Open or TimedClose
+         */
+        FileInterface file;
+
+        /**
+         * Whether the handle is in TimedClose, and which visit to TimedClose
+         * this is, so stale expiries can be told apart
+         */
+        boolean lingering;
+        long lingerStamp;
+
+        /**
+         * Set once this state is dropped from the map. Whoever finds it
+         * afterwards has to look the path up again
+         */
+        boolean removed;
+
+        /**
+         * How many times getROOTFile() handed out the current ROOTFile, so a
+         * pre-open can tell whether someone took the file while it was busy
+         */
+        long takes;
+
+        ROOTFile get() {
+            return (ref == null) ? null : ref.get();
+        }
+    }
+
+    /**
+     * State of every path with a ROOTFile or a handle
      */
-    private HashMap<String, WeakReference<ROOTFile>> fileCache = new HashMap<String, WeakReference<ROOTFile>>();
+    private ConcurrentHashMap<String, PathState> states = new ConcurrentHashMap<String, PathState>();
 
     /**
      * Default constructor, hidden for singleton.
@@ -49,6 +114,7 @@ public class ROOTFileCache {
     public static synchronized ROOTFileCache getCache() {
         if (singleton == null) {
             singleton = new ROOTFileCache();
+            singleton.startReaper();
         }
         return singleton;
     }
@@ -59,55 +125,215 @@ public class ROOTFileCache {
     private ReferenceQueue<ROOTFile> phantomQueue = new ReferenceQueue<ROOTFile>();
 
     /**
-     * Hold onto our phantom references so they themselves don't get GCd
+     * Only one thread cleans up at a time. The others skip it rather than
+     * wait, since whoever holds this is doing their work too
      */
-    private HashMap<String, ROOTFileFinalizer> phantomMap = new HashMap<String, ROOTFileFinalizer>();
+    private ReentrantLock cleanupLock = new ReentrantLock();
 
     /**
-     * Hold onto our FileInterfaces so they themselves don't get GCd
+     * Orders the unused FileInterface objects by when they're able to be
+     * reaped
      */
-    private HashMap<String, FileInterface> interfaceMap = new HashMap<String, FileInterface>();
+    private TimedCache timedCache;
 
     /**
-     * Lock used to prevent races
+     * A file opened ahead of time by preOpen(), and when
      */
-    private ReentrantLock lock = new ReentrantLock();
+    private static class PreOpen {
+        /**
+         * The file, or null while it's still being opened
+         */
+        final ROOTFile file;
+        final long time;
+
+        PreOpen(ROOTFile file, long time) {
+            this.file = file;
+            this.time = time;
+        }
+    }
 
     /**
-     * Holds references to unused FileInterface objects. These are able to be
-     * reaped after the end of the timeout.
+     * Files being opened or opened ahead of time by preOpen(), held strongly
+     * until someone asks for them or they time out
      */
-    private TimedCache timedCache;
+    private ConcurrentHashMap<String, PreOpen> preOpened = new ConcurrentHashMap<String, PreOpen>();
+    private Ticker ticker;
+
+    /**
+     * Most FileInterfaces to keep open at once, or zero for no limit. Only
+     * idle ones (in TimedClose) can be closed to make room, so this is
+     * exceeded if more files than this are in use. Pre-opened files don't
+     * count, but no more than this many are pre-opened at once
+     */
+    private volatile int maxOpenFiles = 0;
+
+    /**
+     * Number of FileInterfaces currently open
+     */
+    private AtomicInteger openHandles = new AtomicInteger();
+
+    /**
+     * Paths whose handles were closed recently, to count reopens
+     */
+    private Cache<String, Boolean> recentlyClosed = CacheBuilder.newBuilder().maximumSize(10 * 1000).build();
+
+    private AtomicLong openCount = new AtomicLong();
+    private AtomicLong reopenCount = new AtomicLong();
+    private AtomicLong reviveCount = new AtomicLong();
+    private AtomicLong timeoutCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
 
     /**
      * Constructor which accepts a Ticker object, used for testing.
      * @param ticker Time source to use for this ROOTFileCache
      */
     public ROOTFileCache(Ticker ticker) {
-        timedCache = new TimedCache(phantomMap, ticker);
+        this.ticker = ticker;
+        timedCache = new TimedCache(ticker);
     }
 
     /**
-     * Instead of using a background thread, cleanup tasks are manually
-     * executed from time to time.
+     * Sets how file handles are kept around. Neither setting affects files
+     * which are in use
+     *
+     * @param lingerMillis How long an unused handle is kept open in case the
+     *                     file is needed again
+     * @param maxOpenFiles Most handles to keep open, closing the least
+     *                     recently used idle handles past that. Zero for no
+     *                     limit
      */
-    public void incrementalCleanup() {
-        try {
-            lock.lock();
+    public void configure(long lingerMillis, int maxOpenFiles) {
+        timedCache.setLinger(TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+        this.maxOpenFiles = maxOpenFiles;
+        evictIfOverLimit();
+    }
 
-            // First, release stale ROOTFile references in fileCache
-            LinkedList<String> staleRefs = new LinkedList<String>();
-            for (String key: fileCache.keySet()) {
-                if (fileCache.get(key).get() == null) {
-                    staleRefs.add(key);
-                }
+    /**
+     * Whether a task already chose the linger or the limit
+     */
+    private boolean lingerConfigured = false;
+    private boolean limitConfigured = false;
+
+    /**
+     * Sets how file handles are kept around from a task's options. Every task
+     * in the JVM shares the handles, so each setting is taken from the first
+     * task which doesn't use its default, and later tasks can't change it.
+     * Otherwise a task without a limit would lift another task's
+     *
+     * @param lingerMillis How long an unused handle is kept open
+     * @param maxOpenFiles Most handles to keep open, zero for no limit
+     */
+    public synchronized void configureOnce(long lingerMillis, int maxOpenFiles) {
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        if (!lingerConfigured && (lingerNanos != TimedCache.DEFAULT_TIMEOUT)) {
+            lingerConfigured = true;
+            timedCache.setLinger(lingerNanos);
+        }
+        if (!limitConfigured && (maxOpenFiles > 0)) {
+            limitConfigured = true;
+            this.maxOpenFiles = maxOpenFiles;
+            evictIfOverLimit();
+        }
+    }
+
+    /**
+     * Periodically cleans up in the background, so handles time out even if
+     * no more files are opened
+     */
+    private void startReaper() {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("laurelin-file-reaper")
+                .setDaemon(true)
+                .build());
+        reaper.scheduleWithFixedDelay(() -> {
+            try {
+                incrementalCleanup();
+            } catch (RuntimeException e) {
+                logger.warn("File cache cleanup failed", e);
+            }
+        }, REAPER_PERIOD_MS, REAPER_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens files which will be needed soon in the background, so their
+     * (possibly very slow) opens overlap with whatever the caller is doing.
+     * The TFile header, directory and streamers are parsed as well, which
+     * fills the page cache of the ROOTFile later handed out by getROOTFile().
+     * Files nobody asks for are let go after the usual timeout
+     *
+     * @param paths Files to open, in the order they'll be needed
+     */
+    public void preOpen(List<String> paths) {
+        Executor executor = AsyncIO.getIOExecutor();
+        for (String path: paths) {
+            PathState state = states.get(path);
+            if ((state != null) && (state.get() != null)) {
+                continue;
+            }
+            int limit = maxOpenFiles;
+            if ((limit > 0) && (preOpened.size() >= limit)) {
+                break;
             }
-            for (String key: staleRefs) {
-                fileCache.remove(key);
+            // Claim the path first, so it's only opened once
+            PreOpen pending = new PreOpen(null, ticker.read());
+            if (preOpened.putIfAbsent(path, pending) != null) {
+                continue;
             }
+            executor.execute(() -> {
+                try {
+                    incrementalCleanup();
+                    ROOTFile file = getOrLoad(path, false);
+                    evictIfOverLimit();
+                    TFile.getFromFile(file);
+                    // Holding the file keeps its state in the map
+                    PathState loaded = states.get(path);
+                    synchronized (loaded) {
+                        // Pinning a file somebody is using would keep it open
+                        // for another whole linger once they're done. Taking
+                        // it also drops the pending entry, so this can't
+                        // bring it back
+                        if ((loaded.takes == 0) && preOpened.replace(path, pending, new PreOpen(file, ticker.read()))) {
+                            logger.trace("Pre-opened " + path);
+                        } else {
+                            preOpened.remove(path, pending);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    preOpened.remove(path, pending);
+                    // Whoever needs the file will get the error themselves
+                    logger.debug("Couldn't pre-open " + path, e);
+                }
+            });
+        }
+    }
 
+    /**
+     * Return the number of files opened by preOpen() which haven't been asked
+     * for yet
+     * @return The number of pre-opened files
+     */
+    public long getPreOpenCount() {
+        long ret = 0;
+        for (PreOpen entry: preOpened.values()) {
+            if (entry.file != null) {
+                ret += 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Moves unreachable ROOTFiles to TimedClose and closes the handles whose
+     * time is up. Cheap enough to call often, since it only looks at the
+     * queued phantom references and the front of the timed queue
+     */
+    public void incrementalCleanup() {
+        if (!cleanupLock.tryLock()) {
+            return;
+        }
+        try {
             /*
-             * Next, resolve any stale PhantomReferences to ROOTFiles. The
+             * First, resolve any stale PhantomReferences to ROOTFiles. The
              * referents have already been finalize()d by the JVM and have no
              * other references pointing to them (except for other PhantomRefs)
              */
@@ -117,30 +343,112 @@ public class ROOTFileCache {
                  *  A ROOTFile is gone, let's queue the underlying FileInterface
                  *  for deletion
                  */
-
-                /*
-                 *  There should be no way a file can exist in the file cache
-                 *  and the timedCache at the same time
-                 */
-                logger.trace("Finalizing " + ref.getPath() + " " + ref.getFile());
-                timedCache.insert(ref.getPath(), ref.getFile());
-                phantomMap.remove(ref.getPath());
-                fileCache.remove(ref.getPath());
-                interfaceMap.remove(ref.getPath());
+                PathState state = states.get(ref.getPath());
+                if (state != null) {
+                    synchronized (state) {
+                        // A newer ROOTFile has its own phantom reference
+                        if (state.phantom == ref) {
+                            logger.trace("Finalizing " + ref.getPath() + " " + ref.getFile());
+                            state.phantom = null;
+                            state.ref = null;
+                            state.lingering = true;
+                            state.lingerStamp += 1;
+                            timedCache.insert(ref.getPath(), state.lingerStamp);
+                        }
+                    }
+                }
                 ref.clear();
             }
 
             /*
-             * Then, remove FileInterface values that expired from the
-             * timedCache. This will trigger a close() to the underlying file.
-             * We remove the final reference which is held by the interfaceMap
-             * which will additionally allow the GC to reap the object itself.
+             * Then, close the FileInterfaces that expired from the timedCache.
+             * We remove the final reference which is held by the state, which
+             * will additionally allow the GC to reap the object itself.
              */
-            for (String key: timedCache.cleanUp()) {
-                interfaceMap.remove(key);
+            for (TimedCache.Expiry expiry: timedCache.pollExpired()) {
+                if (closeIdle(expiry)) {
+                    timeoutCount.incrementAndGet();
+                }
+            }
+
+            // Finally, let go of pre-opened files nobody asked for. Pending
+            // ones are dropped by their opener once it's done
+            long now = ticker.read();
+            for (Entry<String, PreOpen> e: preOpened.entrySet()) {
+                PreOpen entry = e.getValue();
+                if ((entry.file != null) && ((now - entry.time) > timedCache.getLinger())) {
+                    preOpened.remove(e.getKey(), entry);
+                }
+            }
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the least recently used idle handles until there are no more
+     * than maxOpenFiles open, or no idle ones are left. Pre-opened files
+     * aren't counted, since they can't be closed until they time out
+     */
+    private void evictIfOverLimit() {
+        int limit = maxOpenFiles;
+        if ((limit <= 0) || ((openHandles.get() - getPreOpenCount()) <= limit)) {
+            return;
+        }
+        cleanupLock.lock();
+        try {
+            while ((openHandles.get() - getPreOpenCount()) > limit) {
+                TimedCache.Expiry expiry = timedCache.pollLeastRecent();
+                if (expiry == null) {
+                    logger.debug(String.format("All %d open files are in use, can't close any", openHandles.get()));
+                    break;
+                }
+                if (closeIdle(expiry)) {
+                    evictionCount.incrementAndGet();
+                }
             }
         } finally {
-            lock.unlock();
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Closes a handle in TimedClose, unless it was revived since
+     *
+     * @param expiry The handle's entry in the timedCache
+     * @return true if the handle was closed
+     */
+    private boolean closeIdle(TimedCache.Expiry expiry) {
+        PathState state = states.get(expiry.path);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            if (!state.lingering || (state.lingerStamp != expiry.stamp)) {
+                // Revived since
+                return false;
+            }
+            try {
+                state.file.close();
+            } catch (IOException e) {
+                logger.debug("Error closing " + expiry.path, e);
+            }
+            openHandles.decrementAndGet();
+            recentlyClosed.put(expiry.path, true);
+            state.file = null;
+            state.lingering = false;
+            removeIfUnused(expiry.path, state);
+            return true;
+        }
+    }
+
+    /**
+     * Drops a path which is back to Unassigned. Must hold the state's lock
+     */
+    private void removeIfUnused(String path, PathState state) {
+        if ((state.ref == null) && (state.phantom == null) && (state.file == null)) {
+            state.removed = true;
+            states.remove(path, state);
         }
     }
 
@@ -153,12 +461,10 @@ public class ROOTFileCache {
      * @param path Path of the ROOTFile to invalidate
      */
     public void forciblyInvalidateOpenFile(String path) {
-        try {
-            lock.lock();
-            fileCache.get(path).clear();
-            phantomMap.get(path).enqueue();
-        } finally {
-            lock.unlock();
+        PathState state = states.get(path);
+        synchronized (state) {
+            state.ref.clear();
+            state.phantom.enqueue();
         }
     }
 
@@ -175,22 +481,44 @@ public class ROOTFileCache {
      * @throws IOException - Thrown if there are I/O errors
      */
     public ROOTFile getROOTFile(String path) throws IOException {
-        try {
-            lock.lock();
-            WeakReference<ROOTFile> ref = fileCache.get(path);
-            ROOTFile ret = null;
-            // Do it in this order to keep the GC from sneaking in
-            if (ref != null) {
-                ret = ref.get();
-            }
-            if ((ref == null) || (ret == null)) {
-                ret = load(path);
-                fileCache.put(path, new WeakReference<ROOTFile>(ret));
+        incrementalCleanup();
+        ROOTFile ret = getOrLoad(path, true);
+        // Done outside of the path's lock, since it locks other paths
+        evictIfOverLimit();
+        return ret;
+    }
+
+    /**
+     * Finds or makes the ROOTFile for a path
+     *
+     * @param take Whether the caller will use the file, rather than only
+     *             pre-opening it
+     */
+    private ROOTFile getOrLoad(String path, boolean take) throws IOException {
+        while (true) {
+            PathState state = states.computeIfAbsent(path, k -> new PathState());
+            synchronized (state) {
+                if (state.removed) {
+                    // Lost a race with the cleanup, look again
+                    continue;
+                }
+                // Do it in this order to keep the GC from sneaking in
+                ROOTFile ret = state.get();
+                if (ret == null) {
+                    try {
+                        ret = load(path, state);
+                    } catch (IOException | RuntimeException e) {
+                        removeIfUnused(path, state);
+                        throw e;
+                    }
+                }
+                if (take) {
+                    // The caller holds it from now on
+                    state.takes += 1;
+                    preOpened.remove(path);
+                }
+                return ret;
             }
-            return ret;
-        } finally {
-            incrementalCleanup();
-            lock.unlock();
         }
     }
 
@@ -199,12 +527,15 @@ public class ROOTFileCache {
      * @return The number of currently open ROOTFiles
      */
     public long getOpenCount() {
-        try {
-            lock.lock();
-            return fileCache.size();
-        } finally {
-            lock.unlock();
+        long ret = 0;
+        for (PathState state: states.values()) {
+            synchronized (state) {
+                if (state.ref != null) {
+                    ret += 1;
+                }
+            }
         }
+        return ret;
     }
 
     /**
@@ -212,12 +543,15 @@ public class ROOTFileCache {
      * @return The number of files in TimedClose
      */
     public long getTimedCloseCount() {
-        try {
-            lock.lock();
-            return timedCache.size();
-        } finally {
-            lock.unlock();
+        long ret = 0;
+        for (PathState state: states.values()) {
+            synchronized (state) {
+                if (state.lingering) {
+                    ret += 1;
+                }
+            }
         }
+        return ret;
     }
 
     /**
@@ -225,39 +559,106 @@ public class ROOTFileCache {
      * @return The number of phantom references
      */
     public long getPhantomReferenceCount() {
-        try {
-            lock.lock();
-            return phantomMap.size();
-        } finally {
-            lock.unlock();
+        long ret = 0;
+        for (PathState state: states.values()) {
+            synchronized (state) {
+                if (state.phantom != null) {
+                    ret += 1;
+                }
+            }
         }
+        return ret;
     }
 
+    /**
+     * @return The number of FileInterfaces currently open, in use or not
+     */
+    public int getOpenHandleCount() {
+        return openHandles.get();
+    }
 
+    /**
+     * @return How many times a FileInterface was opened
+     */
+    public long getHandleOpenCount() {
+        return openCount.get();
+    }
 
-    private ROOTFile load(String path) throws IOException {
-        assert lock.isHeldByCurrentThread() == true;
-        FileInterface fileInterface = timedCache.getIfPresent(path);
-        if (fileInterface == null) {
-            fileInterface = interfaceMap.get(path);
-        }
+    /**
+     * @return How many of the opens were for a file whose handle this cache
+     *         had closed recently
+     */
+    public long getReopenCount() {
+        return reopenCount.get();
+    }
+
+    /**
+     * @return How many times an idle handle was used again instead of
+     *         opening the file
+     */
+    public long getReviveCount() {
+        return reviveCount.get();
+    }
+
+    /**
+     * @return How many idle handles were closed after lingering
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return How many idle handles were closed early to stay under
+     *         maxOpenFiles
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return Human-readable handle statistics
+     */
+    public String getStatistics() {
+        return String.format("File handles: %d open, %d opens (%d reopens), %d revived, %d timed out, %d evicted",
+                openHandles.get(), openCount.get(), reopenCount.get(), reviveCount.get(), timeoutCount.get(), evictionCount.get());
+    }
+
+    /**
+     * Makes a new ROOTFile for a path. Must hold the state's lock
+     */
+    private ROOTFile load(String path, PathState state) throws IOException {
+        assert Thread.holdsLock(state);
+        FileInterface fileInterface = state.file;
         if (fileInterface != null) {
-            /* File is in TimedClose state -- need to
-             * revive it to Open
+            /* File is in TimedClose (or PhantomOpen) state -- need to
+             * revive it to Open. Its entry in the timedCache is ignored
+             * once it expires
              */
-            timedCache.removeIfExists(path);
+            if (state.lingering) {
+                timedCache.remove(path);
+                reviveCount.incrementAndGet();
+            }
+            state.lingering = false;
         } else {
             // Can't find a reference to the fileInterface, make a new one
             fileInterface = IOFactory.openForRead(path);
-            interfaceMap.put(path, fileInterface);
+            state.file = fileInterface;
+            openHandles.incrementAndGet();
+            openCount.incrementAndGet();
+            if (recentlyClosed.getIfPresent(path) != null) {
+                recentlyClosed.invalidate(path);
+                reopenCount.incrementAndGet();
+            }
             logger.trace(String.format("Opening underlying %s to %s", path, fileInterface));
         }
         ROOTFile ret = ROOTFile.getInputFile(path, fileInterface);
-        if (!phantomMap.containsKey(path)) {
-            ROOTFileFinalizer ref = new ROOTFileFinalizer(ret, phantomQueue, ret.getFileInterface());
-            phantomMap.put(path, ref);
+        if (state.phantom != null) {
+            // The old ROOTFile is unreachable but not yet processed
+            state.phantom.clear();
         }
-        assert timedCache.getIfPresent(path) == null;
+        state.phantom = new ROOTFileFinalizer(ret, phantomQueue, fileInterface);
+        state.ref = new WeakReference<ROOTFile>(ret);
+        state.takes = 0;
         return ret;
     }
 
@@ -291,81 +692,90 @@ public class ROOTFileCache {
     }
 
     /**
-     * Helper to remove FileInterface from the timedCache.
+     * Orders the FileInterfaces in TimedClose by when they expire, so cleanup
+     * only has to look at the front of the queue.
+     *
+     * <p>Reviving a file doesn't remove its entry, which would be a linear
+     * search. Instead each visit to TimedClose gets a new stamp, and entries
+     * whose stamp no longer matches the path's are skipped when they expire.
      *
-     * <p>When an element is removed from the timedCache, Guava will call back to
-     * this helper to let us do cleanup tasks. Normally, this would mean we
-     * should close the file and remove the reference from the phantomMap.
-     * However, when we're reviving a file in TimedClose, we need to have the
-     * object removed without doing the cleanup tasks.
+     * <p>The deadlines only give the idle order while the linger stays the
+     * same, so the order files went idle in is kept separately for eviction.
      */
     private static class TimedCache {
         private static final long SEC_TO_NSEC = 1000000000;
-        private static final long TIMEOUT = 60 * SEC_TO_NSEC;
-        private HashMap<String, FileInterface> fiMap = new HashMap<String, FileInterface>();
-        private HashMap<String, Long> timeMap = new HashMap<String, Long>();
-        private HashMap<String, ROOTFileFinalizer> phantomMap;
+        private static final long DEFAULT_TIMEOUT = 60 * SEC_TO_NSEC;
+        private volatile long timeout = DEFAULT_TIMEOUT;
+        private PriorityQueue<Expiry> queue = new PriorityQueue<Expiry>((a, b) -> Long.compare(a.deadline, b.deadline));
+        private LinkedHashMap<String, Expiry> idle = new LinkedHashMap<String, Expiry>(16, 0.75f, true);
         private Ticker ticker;
 
-        public TimedCache(HashMap<String, ROOTFileFinalizer> phantomMap, Ticker ticker) {
-            this.phantomMap = phantomMap;
+        private static class Expiry {
+            long deadline;
+            String path;
+            long stamp;
+
+            Expiry(long deadline, String path, long stamp) {
+                this.deadline = deadline;
+                this.path = path;
+                this.stamp = stamp;
+            }
+        }
+
+        public TimedCache(Ticker ticker) {
             this.ticker = ticker;
         }
 
-        public void removeAndCloseIfExists(String path) throws IOException {
-            if (fiMap.containsKey(path)) {
-                fiMap.get(path).close();
-            }
-            removeIfExists(path);
+        public void setLinger(long nanos) {
+            timeout = nanos;
         }
 
-        public void removeIfExists(String path) {
-            logger.trace(String.format("Removing %s from %s", path, this));
-            fiMap.remove(path);
-            timeMap.remove(path);
-            phantomMap.remove(path);
+        public long getLinger() {
+            return timeout;
         }
 
-        public void insert(String path, FileInterface val) {
+        public synchronized void insert(String path, long stamp) {
             logger.trace(String.format("Inserting %s into %s", path, this));
-            for (String path2: fiMap.keySet()) {
-                logger.trace("contains: " + path2);
-            }
-            assert fiMap.containsKey(path) == false : "fi already exists " + path;
-            assert timeMap.containsKey(path) == false : "timemap already exists " + path;
-            fiMap.put(path,  val);
-            timeMap.put(path, ticker.read());
+            Expiry expiry = new Expiry(ticker.read() + timeout, path, stamp);
+            queue.add(expiry);
+            idle.put(path, expiry);
         }
 
-        public LinkedList<String> cleanUp() {
-            LinkedList<String> toClean = new LinkedList<String>();
-            long now = ticker.read();
-            for (String path: timeMap.keySet()) {
-                long then = timeMap.get(path);
-                if ((now - then) > TIMEOUT) {
-                    logger.trace(String.format("Timing out (%s > %s) %s ", (now - then) / SEC_TO_NSEC, TIMEOUT / SEC_TO_NSEC, path));
-                    toClean.add(path);
-                }
-            }
-            for (String path: toClean) {
-                try {
-                    removeAndCloseIfExists(path);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            return toClean;
+        /**
+         * Forgets a path's place in the idle order once it's revived. Its
+         * entry in the queue is skipped when it expires
+         */
+        public synchronized void remove(String path) {
+            idle.remove(path);
         }
 
-        public int size() {
-            assert fiMap.size() == timeMap.size();
-            return fiMap.size();
+        /**
+         * @return The entry which went idle longest ago, or null if there are
+         *         none
+         */
+        public synchronized Expiry pollLeastRecent() {
+            Iterator<Expiry> iter = idle.values().iterator();
+            if (!iter.hasNext()) {
+                return null;
+            }
+            Expiry ret = iter.next();
+            iter.remove();
+            return ret;
         }
 
-        public FileInterface getIfPresent(String path) {
-            assert fiMap.size() == timeMap.size();
-            assert fiMap.containsKey(path) == timeMap.containsKey(path);
-            return fiMap.get(path);
+        /**
+         * @return Entries whose time is up, which may have been revived since
+         */
+        public synchronized List<Expiry> pollExpired() {
+            List<Expiry> ret = new LinkedList<Expiry>();
+            long now = ticker.read();
+            while (!queue.isEmpty() && (now - queue.peek().deadline > 0)) {
+                Expiry expiry = queue.poll();
+                logger.trace(String.format("Timing out %s", expiry.path));
+                idle.remove(expiry.path, expiry);
+                ret.add(expiry);
+            }
+            return ret;
         }
     }
 
@@ -0,0 +1,354 @@
+package edu.vanderbilt.accre.laurelin.root_proxy.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
+
+/**
+ * Detects sequential reads of a file and fetches the bytes following them in
+ * the background, so the latency of remote storage is paid once per window
+ * instead of once per read.
+ *
+ * <p>A few independent streams are tracked, since e.g. several branches may
+ * be read at once. A read that starts at (or shortly after) where a stream's
+ * last read ended continues that stream: its window doubles, up to the
+ * configured maximum, and the window after the read is fetched. Once a read
+ * consumes half of a window, the next one is fetched. Any other read starts
+ * a new stream in place of the least recently used one.
+ *
+ * <p>Reads are copied out of the windows, so they don't keep whole windows
+ * alive. The windows of every file are charged to the MemoryBudget, which
+ * drops them when memory is short.
+ */
+public class ReadAhead {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int STREAM_COUNT = 4;
+
+    private static Set<ReadAhead> instances = Collections.newSetFromMap(new WeakHashMap<ReadAhead, Boolean>());
+
+    static {
+        MemoryBudget.getBudget().register("read-ahead windows", new MemoryBudget.Consumer() {
+            @Override
+            public long getUsedBytes() {
+                long ret = 0;
+                for (ReadAhead readAhead: getInstances()) {
+                    ret += readAhead.getHeldBytes();
+                }
+                return ret;
+            }
+
+            @Override
+            public long shrink(long bytes) {
+                long freed = 0;
+                for (ReadAhead readAhead: getInstances()) {
+                    if (freed >= bytes) {
+                        break;
+                    }
+                    freed += readAhead.dropWindows(bytes - freed);
+                }
+                return freed;
+            }
+        }, 0.05, 5);
+    }
+
+    /**
+     * Files are forgotten once collected, along with their windows
+     */
+    private static List<ReadAhead> getInstances() {
+        synchronized (instances) {
+            return new ArrayList<ReadAhead>(instances);
+        }
+    }
+
+    private static volatile long initialBytes = 64 * 1024;
+    private static volatile long maxBytes = 0;
+
+    /**
+     * Sets the window sizes used by every file. A maximum of zero turns
+     * read-ahead off
+     *
+     * @param initial Window after the first sequential read
+     * @param max Largest window
+     */
+    public static void configure(long initial, long max) {
+        initialBytes = Math.max(1, Math.min(initial, max));
+        maxBytes = max;
+    }
+
+    /**
+     * Whether a task already turned read-ahead on
+     */
+    private static boolean configured = false;
+
+    /**
+     * Sets the window sizes from a task's options. Every file in the JVM
+     * shares them, so the first task turning read-ahead on sets them and
+     * later ones can neither change nor disable them
+     *
+     * @param initial Window after the first sequential read
+     * @param max Largest window, zero if the task doesn't want read-ahead
+     */
+    public static synchronized void configureOnce(long initial, long max) {
+        if (max <= 0) {
+            return;
+        }
+        if (!configured) {
+            configured = true;
+            configure(initial, max);
+        } else if (max != maxBytes) {
+            logger.debug(String.format("Keeping read-ahead windows of up to %d bytes, ignoring %d", maxBytes, max));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Performs the background reads
+     */
+    public interface Fetcher {
+        Future<ByteBuffer> fetch(long offset, long len);
+    }
+
+    private static class Window {
+        long start;
+        long end;
+        Future<ByteBuffer> future;
+
+        Window(long start, long end, Future<ByteBuffer> future) {
+            this.start = start;
+            this.end = end;
+            this.future = future;
+        }
+
+        boolean covers(long off, long end) {
+            return (off >= start) && (end <= this.end);
+        }
+
+        long getBytes() {
+            return end - start;
+        }
+    }
+
+    private static class Stream {
+        long lastEnd = -1;
+        long window;
+        long lastUsed = 0;
+        Window current;
+        Window next;
+    }
+
+    private Fetcher fetcher;
+    private long limit;
+    private Stream[] streams = new Stream[STREAM_COUNT];
+    private long clock = 0;
+    private long hitCount = 0;
+    private long fetchCount = 0;
+    private long fetchBytes = 0;
+    private long heldBytes = 0;
+
+    /**
+     * @param fetcher Reads from the file in the background
+     * @param limit Length of the file
+     */
+    public ReadAhead(Fetcher fetcher, long limit) {
+        this.fetcher = fetcher;
+        this.limit = limit;
+        for (int i = 0; i < STREAM_COUNT; i += 1) {
+            streams[i] = new Stream();
+        }
+        synchronized (instances) {
+            instances.add(this);
+        }
+    }
+
+    /**
+     * Serves a read from a window fetched earlier, and starts fetching the
+     * next window if the read continues a stream
+     *
+     * @param off Offset of the read
+     * @param len Length of the read
+     * @return The bytes, or null if they weren't fetched ahead and should be
+     *         read directly
+     */
+    public ByteBuffer read(long off, long len) {
+        long end = off + len;
+        Window hit = null;
+        Window straddled = null;
+        synchronized (this) {
+            clock += 1;
+            // Look for a fetched window first, so a stream that merely
+            // looks sequential doesn't fetch bytes another one already has
+            for (Stream stream: streams) {
+                Window cur = stream.current;
+                Window nxt = stream.next;
+                if ((cur != null) && cur.covers(off, end)) {
+                    hit = cur;
+                } else if ((nxt != null) && nxt.covers(off, end)) {
+                    hit = nxt;
+                } else if ((cur != null) && (nxt != null) && (off >= cur.start) && (off < cur.end)
+                        && (nxt.start == cur.end) && (end <= nxt.end)) {
+                    // Starts at the end of one window and finishes in the next
+                    straddled = cur;
+                    hit = nxt;
+                }
+                if (hit != null) {
+                    if (hit == nxt) {
+                        setWindows(stream, nxt, null);
+                    }
+                    hitCount += 1;
+                    stream.lastEnd = end;
+                    stream.lastUsed = clock;
+                    cur = stream.current;
+                    if ((stream.next == null) && (end - cur.start > (cur.end - cur.start) / 2)) {
+                        stream.window = Math.min(2 * stream.window, maxBytes);
+                        setWindows(stream, cur, fetch(cur.end, stream.window));
+                    }
+                    break;
+                }
+            }
+            if (hit == null) {
+                Stream lru = streams[0];
+                boolean sequential = false;
+                for (Stream stream: streams) {
+                    if ((stream.lastEnd >= 0) && (off >= stream.lastEnd) && (off - stream.lastEnd <= stream.window)) {
+                        // Sequential, but not fetched yet. Read this one
+                        // directly and get ahead of the next ones, unless
+                        // another stream already has
+                        stream.lastEnd = end;
+                        stream.lastUsed = clock;
+                        stream.window = Math.min(2 * stream.window, maxBytes);
+                        setWindows(stream, isFetched(end) ? null : fetch(end, stream.window), null);
+                        sequential = true;
+                        break;
+                    }
+                    if (stream.lastUsed < lru.lastUsed) {
+                        lru = stream;
+                    }
+                }
+                if (!sequential) {
+                    lru.lastEnd = end;
+                    lru.lastUsed = clock;
+                    lru.window = initialBytes;
+                    setWindows(lru, null, null);
+                }
+            }
+        }
+        // Outside of the lock, since the budget may come back to drop windows
+        MemoryBudget.getBudget().reclaim();
+        if (hit == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer ret = ByteBuffer.allocate((int) len);
+            if (straddled == null) {
+                copy(hit, off, end, ret);
+            } else {
+                copy(straddled, off, straddled.end, ret);
+                copy(hit, hit.start, end, ret);
+            }
+            ret.position(0);
+            return ret.asReadOnlyBuffer();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.debug("Read-ahead of " + hit.start + " failed, reading directly", e);
+            return null;
+        }
+    }
+
+    private static void copy(Window window, long off, long end, ByteBuffer dst) throws InterruptedException, ExecutionException {
+        ByteBuffer src = window.future.get().duplicate();
+        src.position((int) (off - window.start));
+        src.limit((int) (end - window.start));
+        dst.put(src);
+    }
+
+    /**
+     * Replaces a stream's windows, keeping track of the bytes they hold
+     */
+    private void setWindows(Stream stream, Window current, Window next) {
+        long before = held(stream.current) + held(stream.next);
+        stream.current = current;
+        stream.next = next;
+        heldBytes += held(current) + held(next) - before;
+    }
+
+    private boolean isFetched(long off) {
+        for (Stream stream: streams) {
+            for (Window window: new Window[] {stream.current, stream.next}) {
+                if ((window != null) && (off >= window.start) && (off < window.end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long held(Window window) {
+        return (window == null) ? 0 : window.getBytes();
+    }
+
+    /**
+     * Forgets fetched windows, furthest ahead first. Streams keep going,
+     * so the next sequential read fetches again
+     *
+     * @param bytes Number of bytes to try to free
+     * @return Number of bytes freed
+     */
+    synchronized long dropWindows(long bytes) {
+        long before = heldBytes;
+        for (Stream stream: streams) {
+            if (before - heldBytes >= bytes) {
+                break;
+            }
+            setWindows(stream, stream.current, null);
+        }
+        for (Stream stream: streams) {
+            if (before - heldBytes >= bytes) {
+                break;
+            }
+            setWindows(stream, null, null);
+        }
+        return before - heldBytes;
+    }
+
+    private Window fetch(long start, long len) {
+        long end = Math.min(start + len, limit);
+        if (end <= start) {
+            return null;
+        }
+        fetchCount += 1;
+        fetchBytes += end - start;
+        return new Window(start, end, fetcher.fetch(start, end - start));
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getFetchCount() {
+        return fetchCount;
+    }
+
+    public synchronized long getFetchBytes() {
+        return fetchBytes;
+    }
+
+    /**
+     * @return Bytes of the windows currently fetched
+     */
+    public synchronized long getHeldBytes() {
+        return heldBytes;
+    }
+}
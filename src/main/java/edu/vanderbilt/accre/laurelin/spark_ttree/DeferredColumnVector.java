@@ -0,0 +1,169 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.function.Supplier;
+
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.Decimal;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.apache.spark.sql.vectorized.ColumnarArray;
+import org.apache.spark.sql.vectorized.ColumnarMap;
+import org.apache.spark.unsafe.types.UTF8String;
+
+/**
+ * A column which isn't built until one of its values is read. Lets us hand
+ * Spark the content of a jagged column (whose lengths are already known)
+ * without decoding it, so e.g. size(Muon_pt) never touches Muon_pt.
+ */
+public class DeferredColumnVector extends ColumnVector {
+    private Supplier<ColumnVector> supplier;
+    private volatile ColumnVector delegate;
+
+    public DeferredColumnVector(DataType type, Supplier<ColumnVector> supplier) {
+        super(type);
+        this.supplier = supplier;
+    }
+
+    /**
+     * @return true if the underlying column has been built
+     */
+    public boolean isMaterialized() {
+        return delegate != null;
+    }
+
+    private ColumnVector get() {
+        ColumnVector ret = delegate;
+        if (ret == null) {
+            synchronized (this) {
+                ret = delegate;
+                if (ret == null) {
+                    ret = supplier.get();
+                    delegate = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        if (delegate != null) {
+            delegate.close();
+        }
+    }
+
+    @Override
+    public boolean hasNull() {
+        return false;
+    }
+
+    @Override
+    public int numNulls() {
+        return 0;
+    }
+
+    @Override
+    public boolean isNullAt(int rowId) {
+        return false;
+    }
+
+    @Override
+    public boolean getBoolean(int rowId) {
+        return get().getBoolean(rowId);
+    }
+
+    @Override
+    public byte getByte(int rowId) {
+        return get().getByte(rowId);
+    }
+
+    @Override
+    public short getShort(int rowId) {
+        return get().getShort(rowId);
+    }
+
+    @Override
+    public int getInt(int rowId) {
+        return get().getInt(rowId);
+    }
+
+    @Override
+    public long getLong(int rowId) {
+        return get().getLong(rowId);
+    }
+
+    @Override
+    public float getFloat(int rowId) {
+        return get().getFloat(rowId);
+    }
+
+    @Override
+    public double getDouble(int rowId) {
+        return get().getDouble(rowId);
+    }
+
+    @Override
+    public ColumnarArray getArray(int rowId) {
+        return get().getArray(rowId);
+    }
+
+    @Override
+    public ColumnarMap getMap(int ordinal) {
+        return get().getMap(ordinal);
+    }
+
+    @Override
+    public Decimal getDecimal(int rowId, int precision, int scale) {
+        return get().getDecimal(rowId, precision, scale);
+    }
+
+    @Override
+    public UTF8String getUTF8String(int rowId) {
+        return get().getUTF8String(rowId);
+    }
+
+    @Override
+    public byte[] getBinary(int rowId) {
+        return get().getBinary(rowId);
+    }
+
+    @Override
+    public ColumnVector getChild(int ordinal) {
+        // Only used for jagged content, which is never a struct
+        return null;
+    }
+
+    @Override
+    public boolean[] getBooleans(int rowId, int count) {
+        return get().getBooleans(rowId, count);
+    }
+
+    @Override
+    public byte[] getBytes(int rowId, int count) {
+        return get().getBytes(rowId, count);
+    }
+
+    @Override
+    public short[] getShorts(int rowId, int count) {
+        return get().getShorts(rowId, count);
+    }
+
+    @Override
+    public int[] getInts(int rowId, int count) {
+        return get().getInts(rowId, count);
+    }
+
+    @Override
+    public long[] getLongs(int rowId, int count) {
+        return get().getLongs(rowId, count);
+    }
+
+    @Override
+    public float[] getFloats(int rowId, int count) {
+        return get().getFloats(rowId, count);
+    }
+
+    @Override
+    public double[] getDoubles(int rowId, int count) {
+        return get().getDoubles(rowId, count);
+    }
+}
@@ -0,0 +1,120 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Everything executors need to know about the selected branches of one file.
+ * Broadcast on its own instead of being copied into every Partition, which
+ * then only carries the broadcast and its entry range.
+ */
+public class FileMetadata implements Serializable, KryoSerializable {
+    private static final long serialVersionUID = 1L;
+    private String path;
+    private long lastEntry;
+    private long entryCount;
+    private transient Map<String, SlimTBranch> slimBranches;
+
+    /**
+     * @param path The file
+     * @param slimBranches Untrimmed branches, keyed by name
+     * @param lastEntry End of the last basket of the first branch
+     * @param entryCount Number of entries in the tree
+     */
+    public FileMetadata(String path, Map<String, SlimTBranch> slimBranches, long lastEntry, long entryCount) {
+        this.path = path;
+        this.slimBranches = slimBranches;
+        this.lastEntry = lastEntry;
+        this.entryCount = entryCount;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Map<String, SlimTBranch> getSlimBranches() {
+        return slimBranches;
+    }
+
+    public long getLastEntry() {
+        return lastEntry;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Copies the branches down to the baskets holding a range of entries.
+     * The baskets are copied as well, since the payloads they cache while
+     * being read shouldn't outlive the partition
+     *
+     * @param entryStart First entry
+     * @param entryEnd One past the last entry
+     * @return Trimmed branches, keyed by name
+     */
+    public Map<String, SlimTBranch> trim(long entryStart, long entryEnd) {
+        Map<String, SlimTBranch> ret = new HashMap<String, SlimTBranch>();
+        for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
+            SlimTBranch branch = e.getValue();
+            if (lastEntry == 0) {
+                // No entries, so nothing will be read from the baskets
+                ret.put(e.getKey(), branch);
+                continue;
+            }
+            branch = branch.copyAndTrim(entryStart, entryEnd);
+            for (int i = branch.getBasketStart(); i < branch.getBasketEnd(); i += 1) {
+                branch.addBasket(i, branch.getBasket(i).copy());
+            }
+            ret.put(e.getKey(), branch);
+        }
+        return ret;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Output output = new Output(4096, -1);
+        SlimTBranchCodec.write(output, slimBranches);
+        out.writeInt(output.position());
+        out.write(output.getBuffer(), 0, output.position());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] buf = new byte[in.readInt()];
+        in.readFully(buf);
+        slimBranches = SlimTBranchCodec.read(new Input(buf));
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeString(path);
+        output.writeVarLong(lastEntry, true);
+        output.writeVarLong(entryCount, true);
+        SlimTBranchCodec.write(output, slimBranches);
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void read(Kryo kryo, Input input) {
+        path = input.readString();
+        lastEntry = input.readVarLong(true);
+        entryCount = input.readVarLong(true);
+        slimBranches = SlimTBranchCodec.read(input);
+    }
+}
@@ -0,0 +1,148 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.Arrays;
+
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.Decimal;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.apache.spark.sql.vectorized.ColumnarArray;
+import org.apache.spark.sql.vectorized.ColumnarMap;
+import org.apache.spark.unsafe.types.UTF8String;
+
+/**
+ * Presents only the selected rows of a column. The underlying column is split
+ * into segments which each cover a range of rows, so the parts of a column
+ * without any selected rows never need to be read.
+ */
+public class FilteredColumnVector extends ColumnVector {
+    private ColumnVector[] segments;
+    private int[] segmentStarts;
+    private int[] rows;
+
+    /**
+     * @param type Spark type of the column
+     * @param segments Column vectors covering the selected rows
+     * @param segmentStarts The (unfiltered) row index of the first row of each
+     *                      segment, in increasing order
+     * @param rows The unfiltered row index of each row in this vector
+     */
+    public FilteredColumnVector(DataType type, ColumnVector[] segments, int[] segmentStarts, int[] rows) {
+        super(type);
+        this.segments = segments;
+        this.segmentStarts = segmentStarts;
+        this.rows = rows;
+    }
+
+    private int getSegment(int rowId) {
+        int idx = Arrays.binarySearch(segmentStarts, rows[rowId]);
+        if (idx < 0) {
+            idx = -idx - 2;
+        }
+        return idx;
+    }
+
+    private int getSegmentRow(int rowId, int segment) {
+        return rows[rowId] - segmentStarts[segment];
+    }
+
+    @Override
+    public void close() {
+        for (ColumnVector segment: segments) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public boolean hasNull() {
+        return false;
+    }
+
+    @Override
+    public int numNulls() {
+        return 0;
+    }
+
+    @Override
+    public boolean isNullAt(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].isNullAt(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public boolean getBoolean(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getBoolean(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public byte getByte(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getByte(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public short getShort(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getShort(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public int getInt(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getInt(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public long getLong(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getLong(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public float getFloat(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getFloat(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public double getDouble(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getDouble(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public ColumnarArray getArray(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getArray(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public ColumnarMap getMap(int ordinal) {
+        int seg = getSegment(ordinal);
+        return segments[seg].getMap(getSegmentRow(ordinal, seg));
+    }
+
+    @Override
+    public Decimal getDecimal(int rowId, int precision, int scale) {
+        int seg = getSegment(rowId);
+        return segments[seg].getDecimal(getSegmentRow(rowId, seg), precision, scale);
+    }
+
+    @Override
+    public UTF8String getUTF8String(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getUTF8String(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public byte[] getBinary(int rowId) {
+        int seg = getSegment(rowId);
+        return segments[seg].getBinary(getSegmentRow(rowId, seg));
+    }
+
+    @Override
+    public ColumnVector getChild(int ordinal) {
+        // Structs are filtered field-by-field by StructColumnVector
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import org.apache.spark.sql.vectorized.ColumnVector;
+
+/**
+ * The entry lengths of every jagged column sharing a counter branch (e.g.
+ * nMuon for Muon_pt, Muon_eta, ...) within one partition. The counter is
+ * decoded once on first use, and the cumulative offsets are computed from it
+ * once, instead of each column rebuilding them from its own baskets.
+ */
+public class JaggedCounts {
+    private ColumnVector counter;
+    private int numRows;
+    private volatile int[] offsets;
+
+    /**
+     * @param counter Column holding the length of each entry
+     * @param numRows Number of entries in the partition
+     */
+    public JaggedCounts(ColumnVector counter, int numRows) {
+        this.counter = counter;
+        this.numRows = numRows;
+    }
+
+    private int[] getOffsets() {
+        int[] ret = offsets;
+        if (ret == null) {
+            synchronized (this) {
+                ret = offsets;
+                if (ret == null) {
+                    int[] counts = (numRows == 0) ? new int[0] : counter.getInts(0, numRows);
+                    ret = new int[numRows + 1];
+                    for (int i = 0; i < numRows; i += 1) {
+                        if (counts[i] < 0) {
+                            throw new IllegalStateException("Negative count " + counts[i] + " in entry " + i);
+                        }
+                        ret[i + 1] = ret[i] + counts[i];
+                    }
+                    offsets = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * @param row Entry relative to the start of the partition
+     * @return Number of items in the entry
+     */
+    public int getCount(int row) {
+        int[] off = getOffsets();
+        return off[row + 1] - off[row];
+    }
+
+    /**
+     * @param row Entry relative to the start of the partition, may be
+     *            numRows to get the total number of items
+     * @return Number of items before the entry
+     */
+    public int getOffset(int row) {
+        return getOffsets()[row];
+    }
+}
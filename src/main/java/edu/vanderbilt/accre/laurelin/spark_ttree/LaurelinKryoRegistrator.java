@@ -0,0 +1,94 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.serializer.KryoRegistrator;
+
+import com.esotericsoftware.kryo.Kryo;
+
+/**
+ * Registers every class Laurelin sends between the driver and executors, so
+ * Kryo writes a small class ID instead of the class name and jobs can run
+ * with spark.kryo.registrationRequired. Enable with
+ *
+ * <pre>
+ * spark.serializer=org.apache.spark.serializer.KryoSerializer
+ * spark.kryo.registrator=edu.vanderbilt.accre.laurelin.spark_ttree.LaurelinKryoRegistrator
+ * </pre>
+ *
+ * <p>Classes are looked up by name since some are private, and the adaptor
+ * for the other Spark version isn't in the jar.
+ */
+public class LaurelinKryoRegistrator implements KryoRegistrator {
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String[] CLASS_NAMES = {
+        // Partitions
+        "edu.vanderbilt.accre.laurelin.spark_ttree.Partition",
+        "edu.vanderbilt.accre.laurelin.adaptor_v24.Partition_v24",
+        "edu.vanderbilt.accre.laurelin.adaptor_v30.InputPartition_v30",
+        "edu.vanderbilt.accre.laurelin.spark_ttree.Reader$PartitionHelper",
+        "edu.vanderbilt.accre.laurelin.spark_ttree.Reader$ListedFile",
+        // Broadcast branches
+        "edu.vanderbilt.accre.laurelin.spark_ttree.FileMetadata",
+        // Branches, when sent outside of a Partition
+        "edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranch",
+        "edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranch$SerializeStorage",
+        "edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBasket",
+        "edu.vanderbilt.accre.laurelin.root_proxy.TBranch$ArrayDescriptor",
+        "java.util.HashMap",
+        "com.google.common.collect.Range",
+        "com.google.common.collect.Range[]",
+        "com.google.common.collect.Cut$BelowAll",
+        "com.google.common.collect.Cut$AboveAll",
+        "com.google.common.collect.Cut$BelowValue",
+        "com.google.common.collect.Cut$AboveValue",
+        // Configuration
+        "edu.vanderbilt.accre.laurelin.configuration.LaurelinDSConfig",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$ConfigOption",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$IntegerValueType",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$LongValueType",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$BooleanValueType",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$StringValueType",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$LiteralDefault",
+        "edu.vanderbilt.accre.laurelin.configuration.ConfigListing$DependentDefault",
+        // Profiling
+        "edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile$Event$Storage",
+        "edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile$Event$Storage$TypeEnum",
+        // Pushed filters
+        "org.apache.spark.sql.sources.Filter[]",
+        "org.apache.spark.sql.sources.EqualTo",
+        "org.apache.spark.sql.sources.EqualNullSafe",
+        "org.apache.spark.sql.sources.GreaterThan",
+        "org.apache.spark.sql.sources.GreaterThanOrEqual",
+        "org.apache.spark.sql.sources.LessThan",
+        "org.apache.spark.sql.sources.LessThanOrEqual",
+        "org.apache.spark.sql.sources.In",
+        "org.apache.spark.sql.sources.IsNull",
+        "org.apache.spark.sql.sources.IsNotNull",
+        "org.apache.spark.sql.sources.And",
+        "org.apache.spark.sql.sources.Or",
+        "org.apache.spark.sql.sources.Not",
+        "java.lang.Object[]",
+    };
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+        for (String name: CLASS_NAMES) {
+            try {
+                kryo.register(classForName(name));
+            } catch (ClassNotFoundException e) {
+                logger.trace("Not registering missing class " + name);
+            }
+        }
+    }
+
+    private static Class<?> classForName(String name) throws ClassNotFoundException {
+        if (name.endsWith("[]")) {
+            Class<?> component = classForName(name.substring(0, name.length() - 2));
+            return java.lang.reflect.Array.newInstance(component, 0).getClass();
+        }
+        return Class.forName(name, false, LaurelinKryoRegistrator.class.getClassLoader());
+    }
+}
@@ -1,14 +1,31 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.types.DataType;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.util.CollectionAccumulator;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
 import edu.vanderbilt.accre.laurelin.configuration.LaurelinDSConfig;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOFactory;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage;
 
 /**
@@ -17,21 +34,53 @@ import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage;
  * <p> Acts like Spark2.4's InputPartition&lt;ColumnarBatch&gt;
  *
  * <p>This is instantiated on the driver, then serialized and transmitted to
- * the executor
+ * the executor. Both Java and Kryo serialization write the schema as JSON,
+ * the options as a plain map and the branches with SlimTBranchCodec, since
+ * the generic encodings of those dominate task size for wide trees.
+ *
+ * <p>Partitions planned with a SparkContext don't carry branches at all, just
+ * the broadcast FileMetadata of their file. Executors fetch and decode the
+ * broadcast of each file they read once, and trim the branches to the
+ * partition themselves.
+ *
+ * <p>A packed Partition has no entries of its own. It holds several small
+ * partitions, usually of different files, which one task reads in order.
  */
-public class Partition implements Serializable {
+public class Partition implements Serializable, KryoSerializable {
     static final Logger logger = LogManager.getLogger();
 
     private static final long serialVersionUID = -6598704946339913432L;
-    public StructType schema;
+    public transient StructType schema;
     public long entryStart;
     public long entryEnd;
-    public Map<String, SlimTBranch> slimBranches;
+    public transient Map<String, SlimTBranch> slimBranches;
     public CollectionAccumulator<Storage> profileData;
     public int pid;
-    private LaurelinDSConfig options;
+    private transient LaurelinDSConfig options;
+    private Broadcast<FileMetadata> metadata;
+
+    /**
+     * The partitions read in turn by a packed partition, otherwise null
+     */
+    private List<Partition> members;
+
+    /**
+     * Length and modification time of the file as listed by the planner, so
+     * executors don't have to ask for them. The length is -1 if unknown
+     */
+    private long fileLength = -1;
+    private long fileModificationTime;
+
+    /**
+     * Filters pushed down by Spark, used to skip reading rows that can't pass
+     */
+    public Filter[] filters;
 
     public Partition(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid) {
+        this(schema, entryStart, entryEnd, slimBranches, options, profileData, pid, null);
+    }
+
+    public Partition(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid, Filter[] filters) {
         logger.trace("dsv2partition new");
         this.schema = schema;
         this.entryStart = entryStart;
@@ -40,14 +89,229 @@ public class Partition implements Serializable {
         this.options = options;
         this.profileData = profileData;
         this.pid = pid;
+        this.filters = filters;
+    }
+
+    /**
+     * @param metadata Broadcast metadata of this partition's file
+     */
+    public Partition(StructType schema, long entryStart, long entryEnd, Broadcast<FileMetadata> metadata, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid) {
+        this(schema, entryStart, entryEnd, (Map<String, SlimTBranch>) null, options, profileData, pid, null);
+        this.metadata = metadata;
+    }
+
+    /**
+     * Packs several partitions into one task
+     *
+     * @param members The partitions, which have to share a schema and options
+     */
+    public Partition(List<Partition> members) {
+        this(members.get(0).schema, 0, 0, new HashMap<String, SlimTBranch>(), members.get(0).options, members.get(0).profileData, members.get(0).pid);
+        this.members = members;
     }
 
     public PartitionReader createPartitionReader() {
         logger.trace("input partition reader");
-        return new PartitionReader(schema, entryStart, entryEnd, slimBranches, options, profileData, pid);
+        registerFileStatus();
+        if (members != null) {
+            return new PartitionReader(members, options, profileData, pid, filters);
+        }
+        return new PartitionReader(schema, entryStart, entryEnd, getSlimBranches(), options, profileData, pid, filters);
+    }
+
+    /**
+     * @return The branches, trimmed to this partition's entries
+     */
+    public synchronized Map<String, SlimTBranch> getSlimBranches() {
+        if ((slimBranches == null) && (metadata != null)) {
+            slimBranches = metadata.value().trim(entryStart, entryEnd);
+        }
+        return slimBranches;
+    }
+
+    /**
+     * Estimates how many bytes of the file this partition reads, from the
+     * sizes of its baskets
+     *
+     * @return on-disk bytes of the baskets this partition reads
+     */
+    public long getEstimatedBytes() {
+        if (members != null) {
+            long ret = 0;
+            for (Partition member: members) {
+                ret += member.getEstimatedBytes();
+            }
+            return ret;
+        }
+        Map<String, SlimTBranch> branches = slimBranches;
+        if ((branches == null) && (metadata != null)) {
+            // Don't trim here, the driver doesn't need the copies
+            branches = metadata.value().getSlimBranches();
+        }
+        long ret = 0;
+        for (SlimTBranch branch: branches.values()) {
+            ret += branch.getStoredBytes(entryStart, entryEnd);
+        }
+        return ret;
+    }
+
+    /**
+     * @return The file this partition reads, or null if packed or without
+     *         any branches
+     */
+    public String getPath() {
+        if (members != null) {
+            return null;
+        } else if (slimBranches != null) {
+            for (SlimTBranch branch: slimBranches.values()) {
+                return branch.getPath();
+            }
+            return null;
+        } else if (metadata != null) {
+            return metadata.value().getPath();
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the planner's status of this partition's file (or files, if
+     * packed)
+     *
+     * @param statuses Statuses keyed by path
+     */
+    public void setFileStatus(Map<String, IOFactory.KnownStatus> statuses) {
+        if (members != null) {
+            for (Partition member: members) {
+                member.setFileStatus(statuses);
+            }
+            return;
+        }
+        String path = getPath();
+        IOFactory.KnownStatus status = (path == null) ? null : statuses.get(path);
+        if (status != null) {
+            fileLength = status.getLength();
+            fileModificationTime = status.getModificationTime();
+        }
+    }
+
+    private void registerFileStatus() {
+        if (members != null) {
+            for (Partition member: members) {
+                member.registerFileStatus();
+            }
+        } else if (fileLength >= 0) {
+            IOFactory.setKnownStatus(getPath(), fileLength, fileModificationTime);
+        }
+    }
+
+    public List<Partition> getMembers() {
+        return members;
     }
 
     public void setPid(int pid) {
         this.pid = pid;
     }
+
+    public void setFilters(Filter[] filters) {
+        this.filters = filters;
+    }
+
+    public LaurelinDSConfig getOptions() {
+        return options;
+    }
+
+    /**
+     * Writes the fields the default serialization skips
+     */
+    private void writeCompact(Output output) {
+        output.writeString(schema.json());
+        Map<String, String> map = options.getMap();
+        output.writeVarInt(map.size(), true);
+        for (Entry<String, String> e: map.entrySet()) {
+            output.writeString(e.getKey());
+            output.writeString(e.getValue());
+        }
+        // The executor can rebuild the branches from the broadcast
+        boolean inline = (metadata == null);
+        output.writeBoolean(inline);
+        if (inline) {
+            SlimTBranchCodec.write(output, slimBranches);
+        }
+    }
+
+    private void readCompact(Input input) {
+        schema = (StructType) DataType.fromJson(input.readString());
+        int count = input.readVarInt(true);
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < count; i += 1) {
+            map.put(input.readString(), input.readString());
+        }
+        options = LaurelinDSConfig.wrap(map);
+        if (input.readBoolean()) {
+            slimBranches = SlimTBranchCodec.read(input);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Output output = new Output(4096, -1);
+        writeCompact(output);
+        out.writeInt(output.position());
+        out.write(output.getBuffer(), 0, output.position());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] buf = new byte[in.readInt()];
+        in.readFully(buf);
+        readCompact(new Input(buf));
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeVarLong(entryStart, true);
+        output.writeVarLong(entryEnd, true);
+        output.writeVarInt(pid, true);
+        output.writeVarLong(fileLength, false);
+        output.writeVarLong(fileModificationTime, true);
+        // Broadcasts register themselves with the executor's block manager
+        // when deserialized, which only their Java serialization does
+        kryo.writeObjectOrNull(output, metadata, new JavaSerializer());
+        kryo.writeClassAndObject(output, profileData);
+        kryo.writeClassAndObject(output, filters);
+        writeCompact(output);
+        output.writeVarInt((members == null) ? 0 : members.size(), true);
+        if (members != null) {
+            for (Partition member: members) {
+                kryo.writeObject(output, member);
+            }
+        }
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void read(Kryo kryo, Input input) {
+        entryStart = input.readVarLong(true);
+        entryEnd = input.readVarLong(true);
+        pid = input.readVarInt(true);
+        fileLength = input.readVarLong(false);
+        fileModificationTime = input.readVarLong(true);
+        metadata = kryo.readObjectOrNull(input, Broadcast.class, new JavaSerializer());
+        profileData = (CollectionAccumulator<Storage>) kryo.readClassAndObject(input);
+        filters = (Filter[]) kryo.readClassAndObject(input);
+        readCompact(input);
+        int count = input.readVarInt(true);
+        if (count > 0) {
+            members = new ArrayList<Partition>(count);
+            for (int i = 0; i < count; i += 1) {
+                members.add(kryo.readObject(input, Partition.class));
+            }
+        }
+    }
 }
@@ -1,32 +1,48 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.sql.vectorized.ColumnVector;
 import org.apache.spark.sql.vectorized.ColumnarBatch;
 import org.apache.spark.util.CollectionAccumulator;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.ImmutableRangeMap;
+import com.google.common.collect.Range;
 
+import edu.vanderbilt.accre.laurelin.array.DecodeScheduler;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
+import edu.vanderbilt.accre.laurelin.cache.DecodedCache;
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
 import edu.vanderbilt.accre.laurelin.configuration.LaurelinDSConfig;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype.Dtype;
 import edu.vanderbilt.accre.laurelin.root_proxy.SimpleType;
+import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.AsyncIO;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFileCache;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.ReadAhead;
 
 public class PartitionReader {
     static final Logger logger = LogManager.getLogger();
@@ -39,49 +55,88 @@ public class PartitionReader {
     private Map<String, SlimTBranch> slimBranches;
 
     /**
-     * ThreadPool handling the async decompression tasks
-     */
-    private static ThreadPoolExecutor staticExecutor;
-
-    /**
-     *  (very) surprisingly, a static thread pool executor will prevent the
-     *  JVM from ever properly shutting down, because of a circular nature
-     *  of the references. Static variables and thread objects are GC roots,
-     *  and the thread pool object references its child threads while the
-     *  threads themselves reference the threadpool. No amount of GC runs
-     *  will make anything unreachable, so the JVM can't finalize and
-     *  shut down. To break the cycle, we need to forcibly shutdown the
-     *  thread pool, which causes it to kill its threads and allows the GC
-     *  to unravel the references.
-     *  <p>
-     *  see also: https://stackoverflow.com/a/10395700
-     */
-    static {
-        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("laurelin-arraybuilder-%d").build();
-        staticExecutor = new ThreadPoolExecutor(1, 1,
-                                                5L, TimeUnit.SECONDS,
-                                                new LinkedBlockingQueue<Runnable>(),
-                                                factory);
-        staticExecutor.allowCoreThreadTimeOut(true);
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                PartitionReader.staticExecutor.shutdownNow();
-            }
-        });
-    }
+     * Executor-wide scheduler handling the async decompression tasks, null if
+     * decoding should happen synchronously
+     */
+    private DecodeScheduler scheduler;
+
+    /**
+     * Holds the basket decoding jobs currently being added
+     */
+    private DecodeScheduler.Batch batch;
+
+    /**
+     * Every batch started since the last cancelBatches(), so none of them
+     * keeps decoding once Spark is done with the data
+     */
+    private List<DecodeScheduler.Batch> openBatches = new ArrayList<DecodeScheduler.Batch>();
+
+    /**
+     * Every column handed to Spark since the last releaseColumns(), whose
+     * baskets are released once Spark moves on
+     */
+    private List<TTreeColumnVector> openColumns = new ArrayList<TTreeColumnVector>();
+
+    /**
+     * Runs basket reads ahead of decoding (e.g. one virtual thread per read),
+     * null if reads happen on the decoding threads
+     */
+    private Executor ioExecutor;
+
+    /**
+     * If true, columns are only read once Spark first accesses them
+     */
+    private boolean lazyDecode;
 
     /**
-     * Holds the async threadpool if enabled, null otherwise
+     * Filters pushed down by Spark. If non-empty, the filter columns are read
+     * first and only the matching rows of every column are returned
      */
-    private static ThreadPoolExecutor executor;
+    private Filter[] filters;
+
+    /**
+     * Entry lengths of the counter branches used by this partition's jagged
+     * columns, keyed by counter name
+     */
+    private Map<String, JaggedCounts> counters = new HashMap<String, JaggedCounts>();
+
+    /**
+     * Partitions still to be read after this one, if packed
+     */
+    private LinkedList<Partition> following = new LinkedList<Partition>();
+
+    /**
+     * Opens the next packed partition's files while this one is read
+     */
+    private CompletableFuture<Void> nextPrefetch;
+
+    /**
+     * Set by close(). Cancelling nextPrefetch doesn't stop it once it runs,
+     * so it checks this instead
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * How many of the following partitions' files to open ahead of time
+     */
+    private int preOpenFiles;
+
     private CollectionAccumulator<Storage> profileData;
     private int pid;
     private static ROOTFileCache fileCache = ROOTFileCache.getCache();
 
     public PartitionReader(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid) {
+        this(schema, entryStart, entryEnd, slimBranches, options, profileData, pid, null);
+    }
+
+    public PartitionReader(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid, Filter[] filters) {
         this.basketCache = BasketCache.getCache();
         this.schema = schema;
+        if (filters == null) {
+            this.filters = new Filter[0];
+        } else {
+            this.filters = PushedFilters.getSupported(filters, schema);
+        }
         this.entryStart = entryStart;
         this.entryEnd = entryEnd;
         this.slimBranches = slimBranches;
@@ -99,18 +154,91 @@ public class PartitionReader {
 
         int threadCount = options.getInt("threadCount");
         if (threadCount >= 1) {
-            executor = staticExecutor;
-            executor.setCorePoolSize(threadCount);
-            executor.setMaximumPoolSize(threadCount);
+            scheduler = DecodeScheduler.getScheduler(getExecutorCores(), options.getLong("decodeInflightBytes"));
+        } else {
+            scheduler = null;
+        }
+
+        lazyDecode = options.getBoolean("lazyDecode");
+
+        MemoryBudget.getBudget().configureBudgetBytes(options.getLong("cacheBudgetBytes"));
+
+        long decodedCacheBytes = options.getLong("decodedCacheBytes");
+        if (decodedCacheBytes > 0) {
+            DecodedCache.getCache().ensureLimit(decodedCacheBytes);
+        }
+
+        long offHeapCacheBytes = options.getLong("offHeapCacheBytes");
+        if (offHeapCacheBytes > 0) {
+            basketCache.ensureOffHeapLimit(offHeapCacheBytes);
+        }
+
+        basketCache.configureAdmission(options.getString("basketAdmission"));
+        basketCache.configureTiered(options.getBoolean("compressedTier"));
+
+        String sharedCachePath = options.getString("sharedCachePath");
+        if (!sharedCachePath.isEmpty()) {
+            basketCache.ensureShared(Paths.get(sharedCachePath), options.getLong("sharedCacheBytes"));
+        }
+
+        ReadAhead.configureOnce(options.getLong("readAheadMinBytes"), options.getLong("readAheadMaxBytes"));
+        fileCache.configureOnce(options.getLong("fileLingerMillis"), options.getInt("maxOpenFiles"));
+
+        String ioMode = options.getString("ioMode");
+        if (ioMode.equals("virtual")) {
+            ioExecutor = AsyncIO.getVirtualThreadExecutor();
+            if (ioExecutor == null) {
+                logger.warn("ioMode=virtual needs JDK 21+, reading baskets inline instead");
+            }
+        } else if (ioMode.equals("inline")) {
+            ioExecutor = null;
         } else {
-            executor = null;
+            throw new IllegalArgumentException("Unknown ioMode: " + ioMode);
         }
     }
 
+    /**
+     * Reads several partitions in turn, one batch each
+     *
+     * @param parts The partitions, which have to share a schema
+     */
+    public PartitionReader(List<Partition> parts, LaurelinDSConfig options, CollectionAccumulator<Storage> profileData, int pid, Filter[] filters) {
+        this(parts.get(0).schema, parts.get(0).entryStart, parts.get(0).entryEnd, parts.get(0).getSlimBranches(), options, profileData, pid, filters);
+        following.addAll(parts.subList(1, parts.size()));
+        preOpenFiles = options.getInt("preOpenFiles");
+        preOpenFollowing();
+        prefetchNext();
+    }
+
+    /**
+     * The decode pool is shared by every task in this executor, so size it to
+     * the cores Spark gave the executor instead of whatever the current
+     * partition asked for
+     * @return Number of cores available to this executor
+     */
+    private static int getExecutorCores() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        SparkEnv env = SparkEnv.get();
+        if (env != null) {
+            cores = env.conf().getInt("spark.executor.cores", cores);
+        }
+        return Math.max(1, cores);
+    }
+
     public void close() throws IOException {
         logger.trace("close");
-        // This will eventually go away due to GC, should I add
-        // explicit closing too?
+        closed = true;
+        if (logger.isDebugEnabled()) {
+            logger.debug(basketCache.getStatistics());
+            logger.debug(fileCache.getStatistics());
+        }
+        // The column vectors will eventually go away due to GC, but don't
+        // bother decoding baskets nobody will read
+        cancelBatches();
+        releaseColumns();
+        if (nextPrefetch != null) {
+            nextPrefetch.cancel(false);
+        }
     }
 
     public boolean next() throws IOException {
@@ -119,16 +247,164 @@ public class PartitionReader {
             // nothing read yet
             currBasket = 0;
             return true;
+        } else if (!following.isEmpty()) {
+            // Spark is done with the previous batch
+            cancelBatches();
+            releaseColumns();
+            Partition part = following.removeFirst();
+            entryStart = part.entryStart;
+            entryEnd = part.entryEnd;
+            slimBranches = part.getSlimBranches();
+            counters = new HashMap<String, JaggedCounts>();
+            preOpenFollowing();
+            prefetchNext();
+            return true;
         } else {
             // we already read the partition
             return false;
         }
     }
 
+    /**
+     * Starts a new batch of decoding jobs
+     */
+    private void newBatch() {
+        batch = scheduler.newBatch(ioExecutor);
+        openBatches.add(batch);
+    }
+
+    /**
+     * Drops the not yet started jobs of every batch of this reader
+     */
+    private void cancelBatches() {
+        for (DecodeScheduler.Batch b: openBatches) {
+            b.cancel();
+        }
+        openBatches.clear();
+        batch = null;
+    }
+
+    /**
+     * Lets go of the baskets of every column handed out so far
+     */
+    private void releaseColumns() {
+        for (TTreeColumnVector col: openColumns) {
+            col.release();
+        }
+        openColumns.clear();
+    }
+
+    /**
+     * Opens the files of the next few packed partitions in the background
+     */
+    private void preOpenFollowing() {
+        List<String> paths = new ArrayList<String>(preOpenFiles);
+        for (Partition part: following) {
+            if (paths.size() >= preOpenFiles) {
+                break;
+            }
+            String path = part.getPath();
+            if ((path != null) && !paths.contains(path)) {
+                paths.add(path);
+            }
+        }
+        if (!paths.isEmpty()) {
+            fileCache.preOpen(paths);
+        }
+    }
+
+    /**
+     * Opens the files of the next packed partition and reads the basket keys
+     * which can't come along with their payload in the background, so
+     * switching files doesn't stall the task
+     */
+    private void prefetchNext() {
+        if (following.isEmpty() || closed) {
+            nextPrefetch = null;
+            return;
+        }
+        Partition next = following.getFirst();
+        Executor executor = (ioExecutor != null) ? ioExecutor : AsyncIO.getIOExecutor();
+        nextPrefetch = CompletableFuture.runAsync(() -> {
+            if (closed) {
+                return;
+            }
+            Set<String> opened = new HashSet<String>();
+            for (SlimTBranch branch: next.getSlimBranches().values()) {
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    ROOTFile file = fileCache.getROOTFile(branch.getPath());
+                    opened.add(branch.getPath());
+                    for (SlimTBasket basket: branch.getStoredBaskets()) {
+                        if (closed) {
+                            return;
+                        }
+                        if (!basket.hasMetadata() && !basket.readsKeyWithPayload()) {
+                            basket.initializeMetadata(file);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The columns will retry and report the error themselves
+                    logger.debug("Prefetch of " + branch.getPath() + " failed", e);
+                    return;
+                }
+            }
+            logger.debug("Prefetched " + opened.size() + " files of the next packed partition");
+        }, executor);
+    }
+
+    /**
+     * Baskets whose on-disk length is unknown need their TKey read on its own
+     * before the payload, which otherwise happens one at a time. Read them all
+     * at once instead
+     */
+    private void prefetchBasketKeys() {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (SlimTBranch branch: slimBranches.values()) {
+            for (SlimTBasket basket: branch.getStoredBaskets()) {
+                if (basket.hasMetadata() || basket.readsKeyWithPayload()) {
+                    // Filled in by the planner, or read with the payload
+                    continue;
+                }
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        basket.initializeMetadata(fileCache.getROOTFile(branch.getPath()));
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, ioExecutor));
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+        } catch (CompletionException e) {
+            // The columns will retry the read and report the error themselves
+            logger.debug("Basket key prefetch failed", e);
+        }
+    }
+
     public ColumnarBatch get() {
         logger.trace("columnarbatch");
         LinkedList<ColumnVector> vecs = new LinkedList<ColumnVector>();
-        vecs = getBatchRecursive(schema.fields());
+        if (scheduler != null) {
+            newBatch();
+        }
+        if ((ioExecutor != null) && !lazyDecode && (filters.length == 0)) {
+            prefetchBasketKeys();
+        }
+        int[] rows = null;
+        Map<String, ColumnVector> filterColumns = new HashMap<String, ColumnVector>();
+        if (filters.length != 0) {
+            rows = selectRows(filterColumns);
+        }
+        vecs = getBatchRecursive(schema.fields(), rows, filterColumns);
+        if (batch != null) {
+            // Every eager column has queued its baskets, let the scheduler
+            // order them. Lazy columns will add theirs when first accessed
+            batch.submit();
+        }
         // This is miserable
         ColumnVector[] tmp = new ColumnVector[vecs.size()];
         int idx = 0;
@@ -138,25 +414,151 @@ public class PartitionReader {
         }
         // End misery
         ColumnarBatch ret = new ColumnarBatch(tmp);
-        ret.setNumRows((int) (entryEnd - entryStart));
+        if (rows == null) {
+            ret.setNumRows((int) (entryEnd - entryStart));
+        } else {
+            ret.setNumRows(rows.length);
+        }
         return ret;
     }
 
-    private LinkedList<ColumnVector> getBatchRecursive(StructField[] structFields) {
+    /**
+     * Decodes the columns referenced by the pushed filters and uses them to
+     * find which rows of this partition can possibly pass.
+     *
+     * @param filterColumns Filled with the decoded filter columns
+     * @return The surviving row indices, relative to entryStart
+     */
+    private int[] selectRows(Map<String, ColumnVector> filterColumns) {
+        for (String name: PushedFilters.getReferences(filters)) {
+            filterColumns.put(name, newColumn(schema.apply(name), entryStart, entryEnd, false));
+        }
+        if (batch != null) {
+            batch.submit();
+        }
+        int[] rows = PushedFilters.select(filters, filterColumns, (int) (entryEnd - entryStart));
+        if (scheduler != null) {
+            // Start a fresh batch so the remaining baskets are ordered too
+            newBatch();
+        }
+        logger.debug(String.format("Pushed filters kept %d of %d rows", rows.length, entryEnd - entryStart));
+        return rows;
+    }
+
+    private LinkedList<ColumnVector> getBatchRecursive(StructField[] structFields, int[] rows, Map<String, ColumnVector> filterColumns) {
         LinkedList<ColumnVector> vecs = new LinkedList<ColumnVector>();
         for (StructField field: structFields)  {
             if (field.dataType() instanceof StructType) {
-                LinkedList<ColumnVector> nestedVecs = getBatchRecursive(((StructType)field.dataType()).fields());
+                LinkedList<ColumnVector> nestedVecs = getBatchRecursive(((StructType)field.dataType()).fields(), rows, new HashMap<String, ColumnVector>());
                 vecs.add(new StructColumnVector(field.dataType(), nestedVecs));
                 continue;
             }
-            SlimTBranchInterface slimBranch = slimBranches.get(field.name());
-            SimpleType rootType;
-            rootType = SimpleType.fromString(field.metadata().getString("rootType"));
-
-            Dtype dtype = SimpleType.dtypeFromString(field.metadata().getString("rootType"));
-            vecs.add(new TTreeColumnVector(field.dataType(), rootType, dtype, basketCache, entryStart, entryEnd, slimBranch, executor, fileCache));
+            if (rows == null) {
+                vecs.add(newColumn(field, entryStart, entryEnd, lazyDecode));
+            } else if (filterColumns.containsKey(field.name())) {
+                ColumnVector[] segments = new ColumnVector[] {filterColumns.get(field.name())};
+                vecs.add(new FilteredColumnVector(field.dataType(), segments, new int[] {0}, rows));
+            } else {
+                vecs.add(newFilteredColumn(field, rows));
+            }
         }
         return vecs;
     }
-}
\ No newline at end of file
+
+    private TTreeColumnVector newColumn(StructField field, long start, long end, boolean lazy) {
+        SlimTBranchInterface slimBranch = slimBranches.get(field.name());
+        SimpleType rootType;
+        rootType = SimpleType.fromString(field.metadata().getString("rootType"));
+
+        Dtype dtype = SimpleType.dtypeFromString(field.metadata().getString("rootType"));
+        TTreeColumnVector ret = new TTreeColumnVector(field.dataType(), rootType, dtype, basketCache, start, end, slimBranch, batch, fileCache, lazy);
+        openColumns.add(ret);
+        JaggedCounts counts = getCounts(slimBranch.getArrayDesc());
+        if (counts != null) {
+            ret.setSharedCounts(counts, (int) (start - entryStart));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the shared entry lengths of a jagged column, decoding its
+     * counter branch the first time any column in this partition needs it
+     *
+     * @param desc Array descriptor of the jagged column
+     * @return The counts, or null if the column has no usable counter branch
+     */
+    private JaggedCounts getCounts(TBranch.ArrayDescriptor desc) {
+        if ((desc == null) || desc.isFixed() || desc.getBranchName().isEmpty()) {
+            return null;
+        }
+        String name = desc.getBranchName();
+        if (counters.containsKey(name)) {
+            return counters.get(name);
+        }
+        JaggedCounts ret = null;
+        SlimTBranch counter = slimBranches.get(name);
+        if ((counter != null) && (counter.getArrayDesc() == null) && isIntCounter(name)) {
+            // Counters are Int_t or UInt_t, both of which are 4 byte ints
+            TTreeColumnVector vec = new TTreeColumnVector(DataTypes.IntegerType, SimpleType.Int32, Dtype.INT4, basketCache, entryStart, entryEnd, counter, batch, fileCache, false);
+            openColumns.add(vec);
+            ret = new JaggedCounts(vec, (int) (entryEnd - entryStart));
+        }
+        counters.put(name, ret);
+        return ret;
+    }
+
+    /**
+     * The planner only ships extra counter branches if they're 4-byte ints,
+     * but a selected column could have any type
+     */
+    private boolean isIntCounter(String name) {
+        for (StructField field: schema.fields()) {
+            if (field.name().equals(name)) {
+                Dtype dtype = SimpleType.dtypeFromString(field.metadata().getString("rootType"));
+                return (dtype == Dtype.INT4) || (dtype == Dtype.UINT4);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a column holding only the given rows. Only the baskets which
+     * contain at least one of the rows are read. Runs of adjacent baskets are
+     * grouped together into a single segment
+     *
+     * @param field The column to read
+     * @param rows Row indices relative to entryStart, in increasing order
+     * @return The filtered column
+     */
+    private ColumnVector newFilteredColumn(StructField field, int[] rows) {
+        ImmutableRangeMap<Long, Integer> basketMap = slimBranches.get(field.name()).getRangeToBasketIDMap();
+        List<ColumnVector> segments = new ArrayList<ColumnVector>();
+        List<Integer> segmentStarts = new ArrayList<Integer>();
+        int i = 0;
+        while (i < rows.length) {
+            Range<Long> basketRange = basketMap.getEntry(entryStart + rows[i]).getKey();
+            long segStart = Math.max(entryStart, basketRange.lowerEndpoint());
+            long segEnd = Math.min(entryEnd, basketRange.upperEndpoint() + 1);
+            while ((i < rows.length) && (entryStart + rows[i] < segEnd)) {
+                i += 1;
+            }
+            while (i < rows.length) {
+                Range<Long> nextRange = basketMap.getEntry(entryStart + rows[i]).getKey();
+                if (nextRange.lowerEndpoint() != segEnd) {
+                    break;
+                }
+                segEnd = Math.min(entryEnd, nextRange.upperEndpoint() + 1);
+                while ((i < rows.length) && (entryStart + rows[i] < segEnd)) {
+                    i += 1;
+                }
+            }
+            segments.add(newColumn(field, segStart, segEnd, lazyDecode));
+            segmentStarts.add((int) (segStart - entryStart));
+        }
+        int[] starts = new int[segmentStarts.size()];
+        for (int j = 0; j < starts.length; j += 1) {
+            starts[j] = segmentStarts.get(j);
+        }
+        return new FilteredColumnVector(field.dataType(), segments.toArray(new ColumnVector[segments.size()]), starts, rows);
+    }
+}
@@ -0,0 +1,287 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.sources.And;
+import org.apache.spark.sql.sources.EqualNullSafe;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.IsNotNull;
+import org.apache.spark.sql.sources.IsNull;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+import org.apache.spark.sql.sources.Not;
+import org.apache.spark.sql.sources.Or;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.vectorized.ColumnVector;
+
+/**
+ * Evaluates the filters Spark pushed into the scan against already-decoded
+ * columns to find which rows of a partition can possibly survive.
+ *
+ * <p>Only comparisons of top-level scalar columns against literals (and
+ * And/Or/Not combinations of them) are understood. Evaluation is
+ * conservative: a row is only dropped if the filters are definitely false for
+ * it, so Spark must still apply every filter to the rows we return.
+ */
+public class PushedFilters {
+    /**
+     * Returns the subset of filters which can be evaluated by select()
+     * @param filters Filters handed to us by Spark
+     * @param schema Schema of the scan
+     * @return The usable filters
+     */
+    public static Filter[] getSupported(Filter[] filters, StructType schema) {
+        List<Filter> ret = new ArrayList<Filter>();
+        for (Filter filter: filters) {
+            if (isSupported(filter, schema)) {
+                ret.add(filter);
+            }
+        }
+        return ret.toArray(new Filter[ret.size()]);
+    }
+
+    public static boolean isSupported(Filter filter, StructType schema) {
+        if (filter instanceof And) {
+            return isSupported(((And) filter).left(), schema) && isSupported(((And) filter).right(), schema);
+        } else if (filter instanceof Or) {
+            return isSupported(((Or) filter).left(), schema) && isSupported(((Or) filter).right(), schema);
+        } else if (filter instanceof Not) {
+            return isSupported(((Not) filter).child(), schema);
+        } else if ((filter instanceof EqualTo) || (filter instanceof EqualNullSafe)
+                || (filter instanceof GreaterThan) || (filter instanceof GreaterThanOrEqual)
+                || (filter instanceof LessThan) || (filter instanceof LessThanOrEqual)
+                || (filter instanceof In) || (filter instanceof IsNull)
+                || (filter instanceof IsNotNull)) {
+            for (String ref: filter.references()) {
+                if (!isSupportedColumn(ref, schema)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isSupportedColumn(String name, StructType schema) {
+        for (StructField field: schema.fields()) {
+            if (field.name().equals(name)) {
+                DataType type = field.dataType();
+                return (type == DataTypes.BooleanType) || (type == DataTypes.ByteType)
+                        || (type == DataTypes.ShortType) || (type == DataTypes.IntegerType)
+                        || (type == DataTypes.LongType) || (type == DataTypes.FloatType)
+                        || (type == DataTypes.DoubleType);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns every column name referenced by the given filters
+     * @param filters Supported filters
+     * @return Column names, without duplicates
+     */
+    public static List<String> getReferences(Filter[] filters) {
+        List<String> ret = new ArrayList<String>();
+        for (Filter filter: filters) {
+            for (String ref: filter.references()) {
+                if (!ret.contains(ref)) {
+                    ret.add(ref);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the rows which might pass every filter
+     * @param filters Supported filters
+     * @param columns Decoded values of every column referenced by the filters
+     * @param numRows Number of rows in the columns
+     * @return Indices of the possibly-surviving rows, in increasing order
+     */
+    public static int[] select(Filter[] filters, Map<String, ColumnVector> columns, int numRows) {
+        Map<String, Values> values = new HashMap<String, Values>();
+        for (Map.Entry<String, ColumnVector> e: columns.entrySet()) {
+            values.put(e.getKey(), new Values(e.getValue(), numRows));
+        }
+        int[] ret = new int[numRows];
+        int count = 0;
+        for (int row = 0; row < numRows; row += 1) {
+            boolean keep = true;
+            for (Filter filter: filters) {
+                if (evaluate(filter, values, row) == Boolean.FALSE) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                ret[count] = row;
+                count += 1;
+            }
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(ret, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Three-valued evaluation of a filter for a single row
+     * @return TRUE or FALSE if the outcome is known, null otherwise
+     */
+    private static Boolean evaluate(Filter filter, Map<String, Values> values, int row) {
+        if (filter instanceof And) {
+            Boolean left = evaluate(((And) filter).left(), values, row);
+            if (left == Boolean.FALSE) {
+                return Boolean.FALSE;
+            }
+            Boolean right = evaluate(((And) filter).right(), values, row);
+            if (right == Boolean.FALSE) {
+                return Boolean.FALSE;
+            }
+            return ((left == Boolean.TRUE) && (right == Boolean.TRUE)) ? Boolean.TRUE : null;
+        } else if (filter instanceof Or) {
+            Boolean left = evaluate(((Or) filter).left(), values, row);
+            if (left == Boolean.TRUE) {
+                return Boolean.TRUE;
+            }
+            Boolean right = evaluate(((Or) filter).right(), values, row);
+            if (right == Boolean.TRUE) {
+                return Boolean.TRUE;
+            }
+            return ((left == Boolean.FALSE) && (right == Boolean.FALSE)) ? Boolean.FALSE : null;
+        } else if (filter instanceof Not) {
+            Boolean child = evaluate(((Not) filter).child(), values, row);
+            return (child == null) ? null : !child;
+        } else if (filter instanceof IsNull) {
+            // Our columns are never null
+            return Boolean.FALSE;
+        } else if (filter instanceof IsNotNull) {
+            return Boolean.TRUE;
+        } else if (filter instanceof EqualTo) {
+            Integer cmp = compare(values.get(((EqualTo) filter).attribute()), row, ((EqualTo) filter).value());
+            return (cmp == null) ? null : (cmp == 0);
+        } else if (filter instanceof EqualNullSafe) {
+            Integer cmp = compare(values.get(((EqualNullSafe) filter).attribute()), row, ((EqualNullSafe) filter).value());
+            return (cmp == null) ? null : (cmp == 0);
+        } else if (filter instanceof GreaterThan) {
+            Integer cmp = compare(values.get(((GreaterThan) filter).attribute()), row, ((GreaterThan) filter).value());
+            return (cmp == null) ? null : (cmp > 0);
+        } else if (filter instanceof GreaterThanOrEqual) {
+            Integer cmp = compare(values.get(((GreaterThanOrEqual) filter).attribute()), row, ((GreaterThanOrEqual) filter).value());
+            return (cmp == null) ? null : (cmp >= 0);
+        } else if (filter instanceof LessThan) {
+            Integer cmp = compare(values.get(((LessThan) filter).attribute()), row, ((LessThan) filter).value());
+            return (cmp == null) ? null : (cmp < 0);
+        } else if (filter instanceof LessThanOrEqual) {
+            Integer cmp = compare(values.get(((LessThanOrEqual) filter).attribute()), row, ((LessThanOrEqual) filter).value());
+            return (cmp == null) ? null : (cmp <= 0);
+        } else if (filter instanceof In) {
+            Values vals = values.get(((In) filter).attribute());
+            boolean unknown = false;
+            for (Object literal: ((In) filter).values()) {
+                Integer cmp = compare(vals, row, literal);
+                if (cmp == null) {
+                    unknown = true;
+                } else if (cmp == 0) {
+                    return Boolean.TRUE;
+                }
+            }
+            return unknown ? null : Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * Compares a column value to a literal the same way Spark would
+     * @return The comparison, or null if we can't be sure of the answer
+     */
+    private static Integer compare(Values vals, int row, Object literal) {
+        if (vals == null) {
+            return null;
+        }
+        if (vals.isBoolean) {
+            if (!(literal instanceof Boolean)) {
+                return null;
+            }
+            return Long.compare(vals.longs[row], ((Boolean) literal) ? 1 : 0);
+        } else if (vals.longs != null) {
+            if (!((literal instanceof Byte) || (literal instanceof Short)
+                    || (literal instanceof Integer) || (literal instanceof Long))) {
+                return null;
+            }
+            return Long.compare(vals.longs[row], ((Number) literal).longValue());
+        } else {
+            if (!((literal instanceof Float) || (literal instanceof Double))) {
+                return null;
+            }
+            double a = vals.doubles[row];
+            double b = ((Number) literal).doubleValue();
+            if ((a == b) && (Double.doubleToRawLongBits(a) != Double.doubleToRawLongBits(b))) {
+                // 0.0 vs -0.0, which Spark versions disagree on
+                return null;
+            }
+            return Double.compare(a, b);
+        }
+    }
+
+    /**
+     * Values of a whole column, widened to either long or double
+     */
+    private static class Values {
+        long[] longs;
+        double[] doubles;
+        boolean isBoolean = false;
+
+        Values(ColumnVector vec, int numRows) {
+            DataType type = vec.dataType();
+            if (type == DataTypes.BooleanType) {
+                isBoolean = true;
+                longs = new long[numRows];
+                boolean[] tmp = (numRows == 0) ? new boolean[0] : vec.getBooleans(0, numRows);
+                for (int i = 0; i < numRows; i += 1) {
+                    longs[i] = tmp[i] ? 1 : 0;
+                }
+            } else if (type == DataTypes.ByteType) {
+                longs = new long[numRows];
+                byte[] tmp = (numRows == 0) ? new byte[0] : vec.getBytes(0, numRows);
+                for (int i = 0; i < numRows; i += 1) {
+                    longs[i] = tmp[i];
+                }
+            } else if (type == DataTypes.ShortType) {
+                longs = new long[numRows];
+                short[] tmp = (numRows == 0) ? new short[0] : vec.getShorts(0, numRows);
+                for (int i = 0; i < numRows; i += 1) {
+                    longs[i] = tmp[i];
+                }
+            } else if (type == DataTypes.IntegerType) {
+                longs = new long[numRows];
+                int[] tmp = (numRows == 0) ? new int[0] : vec.getInts(0, numRows);
+                for (int i = 0; i < numRows; i += 1) {
+                    longs[i] = tmp[i];
+                }
+            } else if (type == DataTypes.LongType) {
+                longs = (numRows == 0) ? new long[0] : vec.getLongs(0, numRows);
+            } else if (type == DataTypes.FloatType) {
+                doubles = new double[numRows];
+                float[] tmp = (numRows == 0) ? new float[0] : vec.getFloats(0, numRows);
+                for (int i = 0; i < numRows; i += 1) {
+                    doubles[i] = tmp[i];
+                }
+            } else if (type == DataTypes.DoubleType) {
+                doubles = (numRows == 0) ? new double[0] : vec.getDoubles(0, numRows);
+            } else {
+                throw new IllegalArgumentException("Can't filter on column of type " + type);
+            }
+        }
+    }
+}
@@ -10,13 +10,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Function;
 
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.SparkContext;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.sources.Filter;
 import org.apache.spark.sql.types.DataType;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.Metadata;
@@ -48,13 +50,25 @@ public class Reader {
 
     private LaurelinDSConfig options;
     private List<String> paths;
+
+    /**
+     * What the listings said about each file, which is passed along so
+     * nobody has to ask again
+     */
+    private HashMap<String, IOFactory.KnownStatus> knownStatus = new HashMap<String, IOFactory.KnownStatus>();
     private String treeName;
     private StructType schema;
+    private long estimatedBytes;
     private IOProfile profiler;
     private static CollectionAccumulator<Storage> profileData;
     private SparkContext sparkContext;
     private static ROOTFileCache fileCache = ROOTFileCache.getCache();
 
+    /**
+     * Filters pushed down by Spark which partitions can evaluate themselves
+     */
+    private Filter[] pushedFilters = new Filter[0];
+
     public Reader(List<String> paths, LaurelinDSConfig options, SparkContext sparkContext) {
         this(paths, options, sparkContext, null);
     }
@@ -64,14 +78,20 @@ public class Reader {
         this.options = options;
         this.sparkContext = sparkContext;
         try {
-            List<Path> expanded = IOFactory.resolvePathList(options.paths());
+            IOFactory.configureListing(options.getInt("listingThreads"), options.getLong("listingCacheMillis"));
+            fileCache.configure(options.getLong("fileLingerMillis"), options.getInt("maxOpenFiles"));
+            List<FileStatus> expanded = IOFactory.resolveStatusList(options.paths());
             this.paths = new ArrayList<String>(expanded.size());
-            for (Path p: expanded) {
-                this.paths.add(p.toString());
+            for (FileStatus status: expanded) {
+                String path = status.getPath().toString();
+                this.paths.add(path);
+                knownStatus.put(path, new IOFactory.KnownStatus(status.getLen(), status.getModificationTime()));
+                IOFactory.setKnownStatus(path, status.getLen(), status.getModificationTime());
             }
             // FIXME - More than one file, please
             treeName = options.getString("tree");
             this.schema = getSchemaFromFiles(userPaths, options);
+            estimatedBytes = estimateBytes();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -87,6 +107,31 @@ public class Reader {
         profiler = IOProfile.getInstance(0, cb);
     }
 
+    /**
+     * Per-file overhead besides the path itself: the list slot, the map
+     * entry and the KnownStatus
+     */
+    private static final long PER_FILE_BYTES = 128;
+
+    /**
+     * @return Rough number of bytes held by this reader, which is mostly
+     *         the file list and the schema
+     */
+    private long estimateBytes() {
+        long ret = 2 * schema.json().length();
+        for (String path: paths) {
+            ret += 2 * path.length() + PER_FILE_BYTES;
+        }
+        return ret;
+    }
+
+    /**
+     * @return Rough number of bytes held by this reader
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
     public LaurelinDSConfig getConfig() {
         return options;
     }
@@ -207,61 +252,194 @@ public class Reader {
             this.options = options;
         }
 
-        private static void parseStructFields(TTree inputTree, Map<String, SlimTBranch> slimBranches, StructType struct, String namespace) {
+        private static void parseStructFields(TTree inputTree, Map<String, SlimTBranch> slimBranches, StructType struct, String namespace, boolean eager) {
             for (StructField field: struct.fields())  {
                 if (field.dataType() instanceof StructType) {
-                    parseStructFields(inputTree, slimBranches, (StructType) field.dataType(), namespace + field.name() + ".");
+                    parseStructFields(inputTree, slimBranches, (StructType) field.dataType(), namespace + field.name() + ".", eager);
                 }
                 ArrayList<TBranch> branchList = inputTree.getBranches(namespace + field.name());
                 assert branchList.size() == 1;
                 TBranch fatBranch = branchList.get(0);
-                SlimTBranch slimBranch = SlimTBranch.getFromTBranch(fatBranch);
+                SlimTBranch slimBranch = SlimTBranch.getFromTBranch(fatBranch, eager);
                 slimBranches.put(fatBranch.getName(), slimBranch);
+                addCounterBranch(inputTree, slimBranches, fatBranch, eager);
+            }
+        }
+
+        /**
+         * Jagged branches like Muon_pt[nMuon] share their entry lengths with
+         * every other branch using the same counter. Ship the counter along
+         * (even if it wasn't selected) so executors can decode it once and
+         * answer questions like size(Muon_pt) without touching Muon_pt.
+         *
+         * <p>Only 4-byte integer counters are used, since that's what the
+         * executor decodes them as
+         */
+        private static void addCounterBranch(TTree inputTree, Map<String, SlimTBranch> slimBranches, TBranch fatBranch, boolean eager) {
+            TBranch.ArrayDescriptor desc = fatBranch.getArrayDescriptor();
+            if ((desc == null) || desc.isFixed() || desc.getBranchName().isEmpty()) {
+                return;
+            }
+            String counterName = desc.getBranchName();
+            if (slimBranches.containsKey(counterName)) {
+                return;
+            }
+            ArrayList<TBranch> counterList = inputTree.getBranches(counterName);
+            if (counterList.size() != 1) {
+                return;
+            }
+            TBranch counter = counterList.get(0);
+            try {
+                SimpleType counterType = counter.getSimpleType();
+                if ((counter.getArrayDescriptor() != null) || ((counterType != SimpleType.Int32) && (counterType != SimpleType.UInt32))) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Not sharing counter " + counterName, e);
+                return;
             }
+            slimBranches.put(counterName, SlimTBranch.getFromTBranch(counter, eager));
         }
 
         public static Iterator<Partition> partitionSingleFileImpl(String path, String treeName, StructType schema, LaurelinDSConfig options) {
-            List<Partition> ret = new ArrayList<Partition>();
-            int pid = 0;
-            TTree inputTree;
+            return makePartitions(planFile(path, treeName, schema, options), schema, options, null).iterator();
+        }
 
+        /**
+         * Loads the branches of one file needed for the schema
+         */
+        public static FileMetadata planFile(String path, String treeName, StructType schema, LaurelinDSConfig options) {
             try {
                 TFile inputFile = TFile.getFromFile(fileCache.getROOTFile(path));
-                inputTree = new TTree(inputFile.getProxy(treeName), inputFile);
+                TTree inputTree = new TTree(inputFile.getProxy(treeName), inputFile);
 
                 Map<String, SlimTBranch> slimBranches = new HashMap<String, SlimTBranch>();
-                parseStructFields(inputTree, slimBranches, schema, "");
+                parseStructFields(inputTree, slimBranches, schema, "", options.getBoolean("eagerBasketMetadata"));
 
-                // TODO We partition based on a fixed number of events per
-                //      partition, which isn't smart. Redo it with something
-                //      smarter later
                 long[] entryOffset = inputTree.getBranches().get(0).getBasketEntryOffsets();
                 long lastEntry = entryOffset[entryOffset.length - 1];
-                for (int i = 0; i < lastEntry; i += PARTITION_SIZE) {
-                    pid += 1;
-                    long partitionStart = i;
-                    long partitionEnd = Math.min(lastEntry, partitionStart + PARTITION_SIZE);
-                    Map<String, SlimTBranch> trimmedSlimBranches = new HashMap<String, SlimTBranch>();
-                    for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
-                        trimmedSlimBranches.put(e.getKey(), e.getValue().copyAndTrim(partitionStart, partitionEnd));
-                    }
-                    ret.add(new Partition(schema, partitionStart, partitionEnd, trimmedSlimBranches, options, profileData, pid));
-                }
-                if (ret.size() == 0) {
-                    // Only one basket?
-                    logger.debug("Planned for zero baskets, adding a dummy one");
-                    pid += 1;
-                    ret.add(new Partition(schema, 0, inputTree.getEntries(), slimBranches, options, profileData, pid));
-                }
-                return ret.iterator();
+                return new FileMetadata(path, slimBranches, lastEntry, inputTree.getEntries());
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
+        }
+
+        /**
+         * Splits a file into partitions
+         *
+         * @param file The file
+         * @param metadata If not null, partitions refer to this broadcast of
+         *                 the file instead of carrying their branches
+         * @return The partitions
+         */
+        public static List<Partition> makePartitions(FileMetadata file, StructType schema, LaurelinDSConfig options, Broadcast<FileMetadata> metadata) {
+            List<Partition> ret = new ArrayList<Partition>();
+            int pid = 0;
+            Map<String, SlimTBranch> slimBranches = file.getSlimBranches();
 
+            // TODO We partition based on a fixed number of events per
+            //      partition, which isn't smart. Redo it with something
+            //      smarter later
+            long lastEntry = file.getLastEntry();
+            for (long i = 0; i < lastEntry; i += PARTITION_SIZE) {
+                pid += 1;
+                long partitionStart = i;
+                long partitionEnd = Math.min(lastEntry, partitionStart + PARTITION_SIZE);
+                if (metadata != null) {
+                    ret.add(new Partition(schema, partitionStart, partitionEnd, metadata, options, profileData, pid));
+                    continue;
+                }
+                Map<String, SlimTBranch> trimmedSlimBranches = new HashMap<String, SlimTBranch>();
+                for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
+                    trimmedSlimBranches.put(e.getKey(), e.getValue().copyAndTrim(partitionStart, partitionEnd));
+                }
+                ret.add(new Partition(schema, partitionStart, partitionEnd, trimmedSlimBranches, options, profileData, pid));
+            }
+            if (ret.size() == 0) {
+                // Only one basket?
+                logger.debug("Planned for zero baskets, adding a dummy one");
+                pid += 1;
+                if (metadata != null) {
+                    ret.add(new Partition(schema, 0, file.getEntryCount(), metadata, options, profileData, pid));
+                } else {
+                    ret.add(new Partition(schema, 0, file.getEntryCount(), slimBranches, options, profileData, pid));
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Packs consecutive partitions into tasks reading about targetBytes
+         * each. Partitions already larger than that are left alone
+         *
+         * @param parts Partitions in planning order
+         * @param targetBytes Bytes of baskets to read per task
+         * @return The packed partitions
+         */
+        public static List<Partition> packPartitions(List<Partition> parts, long targetBytes) {
+            List<Partition> ret = new ArrayList<Partition>();
+            List<Partition> pending = new ArrayList<Partition>();
+            long pendingBytes = 0;
+            for (Partition part: parts) {
+                long bytes = part.getEstimatedBytes();
+                if (!pending.isEmpty() && (pendingBytes + bytes > targetBytes)) {
+                    ret.add(packOne(pending));
+                    pending = new ArrayList<Partition>();
+                    pendingBytes = 0;
+                }
+                pending.add(part);
+                pendingBytes += bytes;
+            }
+            if (!pending.isEmpty()) {
+                ret.add(packOne(pending));
+            }
+            logger.debug(String.format("Packed %d partitions into %d", parts.size(), ret.size()));
+            return ret;
+        }
+
+        private static Partition packOne(List<Partition> parts) {
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            return new Partition(parts);
+        }
+
+        FlatMapFunction<ListedFile, Partition> getLambda() {
+            return f -> {
+                f.register();
+                return PartitionHelper.partitionSingleFileImpl(f.path, treeName, schema, options);
+            };
+        }
+
+        org.apache.spark.api.java.function.Function<ListedFile, FileMetadata> getPlanLambda() {
+            return f -> {
+                f.register();
+                return PartitionHelper.planFile(f.path, treeName, schema, options);
+            };
         }
+    }
+
+    /**
+     * A file and what the listing said about it, which the executor planning
+     * the file trusts instead of asking again. Shipped as the elements of the
+     * planning RDD, so each task only carries its own file's status
+     */
+    protected static class ListedFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String path;
+        long length;
+        long modificationTime;
 
-        FlatMapFunction<String, Partition> getLambda() {
-            return s -> PartitionHelper.partitionSingleFileImpl(s, treeName, schema, options);
+        ListedFile(String path, IOFactory.KnownStatus status) {
+            this.path = path;
+            this.length = (status == null) ? -1 : status.getLength();
+            this.modificationTime = (status == null) ? 0 : status.getModificationTime();
+        }
+
+        void register() {
+            if (length >= 0) {
+                IOFactory.setKnownStatus(path, length, modificationTime);
+            }
         }
     }
 
@@ -269,19 +447,45 @@ public class Reader {
         logger.trace("planbatchinputpartitions");
         List<Partition> ret = new ArrayList<Partition>();
         if (sparkContext == null) {
-            for (String path: paths) {
-                partitionSingleFile(path).forEachRemaining(ret::add);;
+            int preOpenFiles = options.getInt("preOpenFiles");
+            for (int i = 0; i < paths.size(); i += 1) {
+                if (preOpenFiles > 0) {
+                    // Open the next files while this one is planned
+                    fileCache.preOpen(paths.subList(i + 1, Math.min(paths.size(), i + 1 + preOpenFiles)));
+                }
+                partitionSingleFile(paths.get(i)).forEachRemaining(ret::add);
             }
         } else {
             JavaSparkContext sc = JavaSparkContext.fromSparkContext(sparkContext);
-            JavaRDD<String> rdd_paths = sc.parallelize(paths, paths.size());
+            List<ListedFile> listed = new ArrayList<ListedFile>(paths.size());
+            for (String path: paths) {
+                listed.add(new ListedFile(path, knownStatus.get(path)));
+            }
+            JavaRDD<ListedFile> rdd_paths = sc.parallelize(listed, listed.size());
             Reader.PartitionHelper helper = new PartitionHelper(treeName, schema, options);
-            JavaRDD<Partition> partitions = rdd_paths.flatMap(helper.getLambda());
-            ret = partitions.collect();
+            if (options.getBoolean("broadcastMetadata")) {
+                // Ship each file's branches once per executor rather than
+                // once per task. One broadcast per file, so executors only
+                // fetch and decode the files they read
+                List<FileMetadata> files = rdd_paths.map(helper.getPlanLambda()).collect();
+                for (FileMetadata file: files) {
+                    Broadcast<FileMetadata> metadata = sc.broadcast(file);
+                    ret.addAll(PartitionHelper.makePartitions(file, schema, options, metadata));
+                }
+            } else {
+                JavaRDD<Partition> partitions = rdd_paths.flatMap(helper.getLambda());
+                ret = partitions.collect();
+            }
+        }
+        long packTargetBytes = options.getLong("packTargetBytes");
+        if (packTargetBytes > 0) {
+            ret = PartitionHelper.packPartitions(ret, packTargetBytes);
         }
         int pid = 0;
         for (Partition x: ret) {
             x.setPid(pid);
+            x.setFilters(pushedFilters);
+            x.setFileStatus(knownStatus);
             pid += 1;
         }
         return ret;
@@ -291,6 +495,26 @@ public class Reader {
         return PartitionHelper.partitionSingleFileImpl(path, treeName, schema, options);
     }
 
+    /**
+     * Accepts filters from Spark. Partitions read the columns these filters
+     * reference first, then skip the baskets of the other columns without any
+     * surviving rows.
+     *
+     * @param filters Filters Spark wants to apply to this scan
+     * @return Filters Spark still needs to evaluate after the scan. Partitions
+     *          only drop rows which definitely fail, so this is all of them
+     */
+    public Filter[] pushFilters(Filter[] filters) {
+        if (options.getBoolean("filterPushdown")) {
+            pushedFilters = PushedFilters.getSupported(filters, schema);
+        }
+        return filters;
+    }
+
+    public Filter[] pushedFilters() {
+        return pushedFilters;
+    }
+
     public void pruneColumns(StructType requiredSchema) {
         logger.trace("prunecolumns ");
         schema = requiredSchema;
@@ -9,6 +9,7 @@ import org.apache.logging.log4j.Logger;
 
 import edu.vanderbilt.accre.laurelin.root_proxy.TKey;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.Cursor;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.InMemoryBuf;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
 
 public class SlimTBasket implements Serializable {
@@ -16,7 +17,9 @@ public class SlimTBasket implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private long offset;
+    private int basketBytes;
     private Cursor payload;
+    private transient Cursor prefetched;
 
 
     private boolean isPopulated = false;
@@ -43,38 +46,126 @@ public class SlimTBasket implements Serializable {
         ret.uncompressedLen = uncompressedLen;
         ret.keyLen = keyLen;
         ret.last = last;
+        ret.basketBytes = keyLen + compressedLen;
         return ret;
     }
 
     public static SlimTBasket makeLazyBasket(long offset) {
+        return makeLazyBasket(offset, 0);
+    }
+
+    /**
+     * @param offset Offset of the basket's key in the file
+     * @param basketBytes On-disk length of the key and payload (the branch's
+     *                    fBasketBytes), or zero if unknown
+     * @return A basket whose key will be read when first needed
+     */
+    public static SlimTBasket makeLazyBasket(long offset, int basketBytes) {
         SlimTBasket ret = new SlimTBasket(offset);
+        ret.basketBytes = basketBytes;
         ret.isPopulated = false;
         return ret;
     }
 
+    /**
+     * @return A basket at the same offset with the same metadata, but none of
+     *         the bytes this one has read
+     */
+    public synchronized SlimTBasket copy() {
+        SlimTBasket ret;
+        if (isPopulated) {
+            ret = makeEagerBasket(null, offset, compressedLen, uncompressedLen, keyLen, last);
+        } else {
+            ret = makeLazyBasket(offset, basketBytes);
+        }
+        return ret;
+    }
+
+    /**
+     * Parses the basket's key, reading only the key from the file
+     *
+     * @param tmpFile The file containing this basket
+     */
     public synchronized void initializeMetadata(ROOTFile tmpFile) {
         if (isPopulated == false) {
-            try {
-                Cursor cursor = tmpFile.getCursor(offset);
-                TKey key = new TKey();
-                Cursor c = key.getFromFile(cursor);
-                keyLen = key.getKeyLen();
-                compressedLen = key.getNBytes() - key.getKeyLen();
-                uncompressedLen = key.getObjLen();
-                vers = c.readShort();
-                fBufferSize = c.readInt();
-                fNevBufSize = c.readInt();
-                fNevBuf = c.readInt();
-                last = c.readInt();
-                fHeaderOnly = c.readChar();
-                headerEnd = c;
-                isPopulated = true;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            parseKey(tmpFile.getCursor(offset), tmpFile);
+        }
+    }
+
+    /**
+     * Reads the key and payload together, if the on-disk length of the basket
+     * is known and the key hasn't been parsed yet, so reading the basket
+     * costs one request instead of two. Only used when the payload is about
+     * to be read anyway
+     *
+     * @param tmpFile The file containing this basket
+     * @return The key and payload, or null if they have to be read separately
+     * @throws IOException If the read fails
+     */
+    private synchronized ByteBuffer initializeWithPayload(ROOTFile tmpFile) throws IOException {
+        if (isPopulated || (basketBytes <= 0)) {
+            initializeMetadata(tmpFile);
+            return null;
+        }
+        ByteBuffer raw = tmpFile.read(offset, basketBytes);
+        parseKey(new Cursor(new InMemoryBuf(raw), 0), tmpFile);
+        if (raw.limit() < keyLen + compressedLen) {
+            return null;
+        }
+        ByteBuffer ret = raw.duplicate();
+        ret.limit(keyLen + compressedLen);
+        return ret;
+    }
+
+    /**
+     * Parses the basket's key from bytes returned by readRaw(), e.g. ones
+     * found in a cache, instead of reading it from the file again
+     *
+     * @param tmpFile The file containing this basket
+     * @param raw The key and payload
+     */
+    public synchronized void initializeMetadata(ROOTFile tmpFile, ByteBuffer raw) {
+        if (isPopulated == false) {
+            parseKey(new Cursor(new InMemoryBuf(raw.duplicate()), 0), tmpFile);
         }
     }
 
+    private void parseKey(Cursor cursor, ROOTFile tmpFile) {
+        try {
+            TKey key = new TKey();
+            Cursor c = key.getFromFile(cursor);
+            keyLen = key.getKeyLen();
+            compressedLen = key.getNBytes() - key.getKeyLen();
+            uncompressedLen = key.getObjLen();
+            vers = c.readShort();
+            fBufferSize = c.readInt();
+            fNevBufSize = c.readInt();
+            fNevBuf = c.readInt();
+            last = c.readInt();
+            fHeaderOnly = c.readChar();
+            // Don't pin an in-memory copy for the lifetime of the basket
+            headerEnd = tmpFile.getCursor(offset + c.getOffset());
+            isPopulated = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true if the key has been parsed or was filled in by the planner
+     */
+    public synchronized boolean hasMetadata() {
+        return isPopulated;
+    }
+
+    /**
+     * @return true if the key will be read along with the payload, so reading
+     *         it on its own beforehand would only cost an extra request
+     */
+    public synchronized boolean readsKeyWithPayload() {
+        return (isPopulated == false) && (basketBytes > 0);
+    }
+
     public int getKeyLen() {
         if (isPopulated == false) {
             throw new RuntimeException("Slim basket not initialized");
@@ -89,6 +180,13 @@ public class SlimTBasket implements Serializable {
         return uncompressedLen;
     }
 
+    public int getCompressedLen() {
+        if (isPopulated == false) {
+            throw new RuntimeException("Slim basket not initialized");
+        }
+        return compressedLen;
+    }
+
     public int getLast() {
         if (isPopulated == false) {
             throw new RuntimeException("Slim basket not initialized");
@@ -100,8 +198,101 @@ public class SlimTBasket implements Serializable {
         return offset;
     }
 
+    /**
+     * @return On-disk length of the key and payload, or zero if unknown
+     */
+    public int getBasketBytes() {
+        return basketBytes;
+    }
+
+    /**
+     * Reads the (possibly compressed) bytes of this basket into memory without
+     * decompressing them. Lets the I/O and the CPU-heavy decompression happen
+     * on different threads. The prefetched bytes are dropped once the payload
+     * is read
+     *
+     * @param tmpFile The file containing this basket
+     * @return The bytes as returned by readRaw(), or null if they were
+     *         already prefetched
+     * @throws IOException If the read fails
+     */
+    public ByteBuffer prefetchPayload(ROOTFile tmpFile) throws IOException {
+        synchronized (this) {
+            if (this.prefetched != null) {
+                return null;
+            }
+        }
+        ByteBuffer raw = readRaw(tmpFile);
+        Cursor tmpPayload = getRawCursor(raw.duplicate());
+        synchronized (this) {
+            this.prefetched = tmpPayload;
+        }
+        return raw;
+    }
+
+    /**
+     * @return true if the basket's payload is compressed on disk
+     */
+    public boolean isCompressed() {
+        if (isPopulated == false) {
+            throw new RuntimeException("Slim basket not initialized");
+        }
+        return compressedLen != uncompressedLen;
+    }
+
+    /**
+     * Reads the key and (possibly compressed) payload exactly as stored
+     *
+     * @param tmpFile The file containing this basket
+     * @return The bytes, which can be decompressed with decompress()
+     * @throws IOException If the read fails
+     */
+    public ByteBuffer readRaw(ROOTFile tmpFile) throws IOException {
+        ByteBuffer ret = initializeWithPayload(tmpFile);
+        if (ret != null) {
+            return ret;
+        }
+        return tmpFile.read(offset, keyLen + compressedLen);
+    }
+
+    /**
+     * Drops the payload read by prefetchPayload(), e.g. because the basket
+     * was found in a cache and it won't be needed
+     */
+    public synchronized void discardPrefetched() {
+        prefetched = null;
+    }
+
+    /**
+     * @param raw Bytes returned by readRaw()
+     * @return The decompressed payload
+     * @throws IOException If decompression fails
+     */
+    public ByteBuffer decompress(ByteBuffer raw) throws IOException {
+        return getRawCursor(raw).readBuffer(0, getObjLen());
+    }
+
+    private Cursor getRawCursor(ByteBuffer raw) {
+        Cursor memCursor = new Cursor(new InMemoryBuf(raw), 0);
+        return memCursor.getPossiblyCompressedSubcursor(keyLen,
+                compressedLen,
+                uncompressedLen,
+                keyLen);
+    }
+
     public ByteBuffer getPayload(ROOTFile tmpFile) throws IOException {
-        initializeMetadata(tmpFile);
+        Cursor tmpPayload;
+        synchronized (this) {
+            tmpPayload = this.prefetched;
+            this.prefetched = null;
+        }
+        if (tmpPayload != null) {
+            return tmpPayload.readBuffer(0, uncompressedLen);
+        }
+        ByteBuffer raw = initializeWithPayload(tmpFile);
+        if (raw != null) {
+            return getRawCursor(raw).readBuffer(0, uncompressedLen);
+        }
         if (this.payload == null) {
             initializePayload(tmpFile);
         }
@@ -8,9 +8,15 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputValidation;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,6 +29,7 @@ import com.esotericsoftware.kryo.io.Output;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableRangeMap;
 import com.google.common.collect.ImmutableRangeMap.Builder;
@@ -31,10 +38,16 @@ import com.google.common.collect.Interners;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
 
+import edu.vanderbilt.accre.laurelin.array.Array;
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
 import edu.vanderbilt.accre.laurelin.array.RawArray;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
+import edu.vanderbilt.accre.laurelin.cache.DecodedCache;
+import edu.vanderbilt.accre.laurelin.cache.MemoryBudget;
+import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
+import edu.vanderbilt.accre.laurelin.root_proxy.TBasket;
 import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOFactory;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
 import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFileCache;
 
@@ -135,9 +148,31 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
     }
 
     public static SlimTBranch getFromTBranch(TBranch fatBranch) {
+        return getFromTBranch(fatBranch, false);
+    }
+
+    /**
+     * @param fatBranch The branch to slim down
+     * @param eager If true, read every basket's key now so the executors
+     *              don't have to
+     * @return The slimmed down branch
+     */
+    public static SlimTBranch getFromTBranch(TBranch fatBranch, boolean eager) {
         SlimTBranch slimBranch = new SlimTBranch(fatBranch.getTree().getBackingFile().getFileName(), fatBranch.getBasketEntryOffsets(), fatBranch.getArrayDescriptor());
+        List<TBasket> fatBaskets = eager ? fatBranch.getBaskets() : null;
         for (int i = 0; i < fatBranch.getBasketCount(); i += 1) {
-            SlimTBasket slimBasket = SlimTBasket.makeLazyBasket(fatBranch.getBasketSeek()[i]);
+            SlimTBasket slimBasket;
+            if (eager) {
+                TBasket fatBasket = fatBaskets.get(i);
+                slimBasket = SlimTBasket.makeEagerBasket(slimBranch,
+                        fatBranch.getBasketSeek()[i],
+                        fatBasket.getCompressedLen(),
+                        fatBasket.getObjLen(),
+                        fatBasket.getKeyLen(),
+                        fatBasket.getLast());
+            } else {
+                slimBasket = SlimTBasket.makeLazyBasket(fatBranch.getBasketSeek()[i], fatBranch.getBasketBytes()[i]);
+            }
             slimBranch.addBasket(i, slimBasket);
         }
         return slimBranch;
@@ -194,14 +229,48 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
         return baskets.size();
     }
 
+    public Collection<SlimTBasket> getStoredBaskets() {
+        return baskets.values();
+    }
+
     public void addBasket(int idx, SlimTBasket basket) {
         baskets.put(idx, basket);
     }
 
+    /**
+     * Estimates how much of the file reading a range of entries touches. Only
+     * stored baskets whose size is known count
+     *
+     * @param eventStart the zeroth event we want to read
+     * @param eventEnd the event past the last event we want to read
+     * @return on-disk bytes of the baskets holding these events
+     */
+    public long getStoredBytes(long eventStart, long eventEnd) {
+        if (eventEnd <= eventStart) {
+            return 0;
+        }
+        long ret = 0;
+        for (Integer idx: rangeToBasketIDMap.subRangeMap(Range.closedOpen(eventStart, eventEnd)).asMapOfRanges().values()) {
+            SlimTBasket basket = baskets.get(idx);
+            if (basket != null) {
+                ret += basket.getBasketBytes();
+            }
+        }
+        return ret;
+    }
+
     public String getPath() {
         return path;
     }
 
+    int getBasketStart() {
+        return basketStart;
+    }
+
+    int getBasketEnd() {
+        return basketEnd;
+    }
+
     @Override
     public TBranch.ArrayDescriptor getArrayDesc() {
         return arrayDesc;
@@ -223,6 +292,18 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
         SlimTBranchInterface branch;
         ROOTFileCache fileCache;
 
+        /**
+         * Identity of the file, looked up on first use of the DecodedCache
+         * or the shared basket cache
+         */
+        IOFactory.KnownStatus fileStatus;
+
+        /**
+         * Baskets handed out as views of the off-heap cache, which have to be
+         * released once they're decoded and unused
+         */
+        Map<Integer, RawArray> pinned = new ConcurrentHashMap<Integer, RawArray>();
+
         public BranchCallback(BasketCache basketCache, SlimTBranchInterface branch, ROOTFileCache fileCache) {
             this.basketCache = basketCache;
             this.branch = branch;
@@ -251,6 +332,123 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
             }
         }
 
+        @Override
+        public long basketSeek(int basketid) {
+            return branch.getBasket(basketid).getOffset();
+        }
+
+        @Override
+        public int basketSize(int basketid) {
+            SlimTBasket basket = branch.getBasket(basketid);
+            if (basket.hasMetadata()) {
+                return basket.getObjLen();
+            } else if (basket.readsKeyWithPayload()) {
+                // The on-disk size undercounts compressed baskets, but reading
+                // the key here would cost a request of its own
+                return basket.getBasketBytes();
+            }
+            basketkey(basketid);
+            return basket.getObjLen();
+        }
+
+        @Override
+        public void prefetch(int basketid) {
+            SlimTBasket basket = branch.getBasket(basketid);
+            try {
+                ROOTFile tmpFile = getBackingFile();
+                RawArray cached = basketCache.get(tmpFile, basket.getOffset(), getSharedStatus());
+                if (cached != null) {
+                    basketCache.release(cached);
+                    basket.discardPrefetched();
+                    return;
+                }
+                if (basketCache.containsCompressed(tmpFile, basket.getOffset())) {
+                    return;
+                }
+                // Reads the key along with the payload if it isn't known yet
+                ByteBuffer raw = basket.prefetchPayload(tmpFile);
+                if ((raw != null) && basketCache.isTiered() && basket.isCompressed()) {
+                    // Keep the prefetched bytes in the compressed tier instead,
+                    // where other readers of this basket can find them too
+                    basketCache.putCompressed(tmpFile, basket.getOffset(), raw);
+                    basket.discardPrefetched();
+                }
+            } catch (IOException e) {
+                logger.debug("Prefetch of basket " + basketid + " failed", e);
+            }
+        }
+
+        @Override
+        public Array getDecoded(int basketid, Interpretation interpretation, int start, int stop) {
+            DecodedCache decodedCache = DecodedCache.getCache();
+            if (!decodedCache.isEnabled()) {
+                return null;
+            }
+            DecodedCache.Key key = decodedKey(basketid, interpretation, start, stop);
+            return (key == null) ? null : decodedCache.get(key);
+        }
+
+        @Override
+        public void putDecoded(int basketid, Interpretation interpretation, int start, int stop, Array decoded) {
+            DecodedCache decodedCache = DecodedCache.getCache();
+            if (decodedCache.isEnabled()) {
+                DecodedCache.Key key = decodedKey(basketid, interpretation, start, stop);
+                if (key != null) {
+                    if (pinned.containsKey(basketid)) {
+                        // The cache would outlive the view it was decoded from
+                        int items = interpretation.source_numitems(decoded);
+                        Array copy = interpretation.destination(items, decoded.length());
+                        interpretation.fill(decoded, copy, 0, items, 0, decoded.length());
+                        decoded = copy;
+                    }
+                    decodedCache.put(key, decoded);
+                }
+            }
+        }
+
+        @Override
+        public void release(int basketid) {
+            RawArray data = pinned.remove(basketid);
+            if (data != null) {
+                basketCache.release(data);
+            }
+        }
+
+        /**
+         * @return The key of a decoded chunk, or null if the file can't be
+         *         identified, in which case it isn't cached
+         */
+        private DecodedCache.Key decodedKey(int basketid, Interpretation interpretation, int start, int stop) {
+            if (getFileStatus() == null) {
+                return null;
+            }
+            long offset = branch.getBasket(basketid).getOffset();
+            return new DecodedCache.Key(path, fileStatus.getLength(), fileStatus.getModificationTime(), offset, interpretation, start, stop);
+        }
+
+        /**
+         * @return The file's length and modification time, or null if they
+         *         can't be found, in which case the file isn't cached
+         */
+        private IOFactory.KnownStatus getFileStatus() {
+            if (fileStatus == null) {
+                try {
+                    fileStatus = IOFactory.getFileStatus(path);
+                } catch (IOException e) {
+                    logger.debug("Can't identify " + path + ", not caching its baskets", e);
+                }
+            }
+            return fileStatus;
+        }
+
+        /**
+         * @return The file status the basket cache needs, which is only
+         *         looked up if the cache is shared between JVMs
+         */
+        private IOFactory.KnownStatus getSharedStatus() {
+            return basketCache.isShared() ? getFileStatus() : null;
+        }
+
         @Override
         public RawArray dataWithoutKey(int basketid) {
             SlimTBasket basket = branch.getBasket(basketid);
@@ -259,11 +457,35 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
                 // the offset of each basket is guaranteed to be unique and
                 // stable
                 RawArray data = null;
-                data = basketCache.get(tmpFile, basket.getOffset());
-                if (data == null) {
-                    data = new RawArray(basket.getPayload(tmpFile));
-                    basketCache.put(tmpFile, basket.getOffset(), data);
+                IOFactory.KnownStatus status = getSharedStatus();
+                data = basketCache.get(tmpFile, basket.getOffset(), status);
+                if (data != null) {
+                    if (basketCache.needsRelease(data)) {
+                        RawArray old = pinned.put(basketid, data);
+                        if (old != null) {
+                            basketCache.release(old);
+                        }
+                    }
+                    basket.discardPrefetched();
+                } else {
+                    ByteBuffer raw = basketCache.getCompressed(tmpFile, basket.getOffset());
+                    if (raw != null) {
+                        basket.discardPrefetched();
+                        basket.initializeMetadata(tmpFile, raw);
+                        data = new RawArray(basket.decompress(raw));
+                    } else if (basketCache.isTiered() && (!basket.hasMetadata() || basket.isCompressed())) {
+                        // Reads the key along with the payload if it isn't known yet
+                        raw = basket.readRaw(tmpFile);
+                        if (basket.isCompressed()) {
+                            basketCache.putCompressed(tmpFile, basket.getOffset(), raw);
+                        }
+                        data = new RawArray(basket.decompress(raw));
+                    } else {
+                        data = new RawArray(basket.getPayload(tmpFile));
+                    }
+                    basketCache.put(tmpFile, basket.getOffset(), data, status);
                 }
+                tmpFile.profileBasket(basket.getOffset(), data.length());
                 return data;
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -309,6 +531,19 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
          */
         private long[] basketByteOffsets;
 
+        /**
+         * List of the on-disk lengths of the baskets, so the executor can
+         * read each key and payload together
+         */
+        private int[] basketByteLengths;
+
+        /**
+         * Key length, compressed length, uncompressed length and fLast of
+         * each basket, four to a basket, if the planner read the keys.
+         * Otherwise null and the executor reads them
+         */
+        private int[] basketMetadata;
+
         /**
          * representation of the rangeToBasketIDMap where the index is the value
          * minus basketStart and the value at each index is the range that's
@@ -359,17 +594,20 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
             }
         }
 
+        private static AtomicLong dedupRangeBytes = new AtomicLong();
+
         /**
          * Deduplicate range->basket maps, since many (all?) of them will be same
          * for different branches in a file. Guessing 2000 as a good cache size
          * since that's the upper-bound on the number of branches I'd expect to
-         * see in a file.
+         * see in a file. Past that, the MemoryBudget decides when to drop them
          */
         private static LoadingCache<TrimBasketKey,
                                     Range<Long>[]> dedupRangeMap =
                                         CacheBuilder.newBuilder()
                                         .maximumSize(2000)
-                                        .softValues()
+                                        .removalListener((RemovalNotification<TrimBasketKey, Range<Long>[]> n) ->
+                                            dedupRangeBytes.addAndGet(-rangeArrayBytes(n.getValue())))
                                         .build(
                                            new CacheLoader<TrimBasketKey,
                                                            Range<Long>[]>() {
@@ -385,10 +623,39 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
                                                         Range<Long> val = e.getKey();
                                                         rangeToBasketID[idx - key.start] = val;
                                                     }
+                                                    dedupRangeBytes.addAndGet(rangeArrayBytes(rangeToBasketID));
                                                     return rangeToBasketID;
                                                 }
                                                 });
 
+        /**
+         * Rough footprint of a deduplicated range array: the array itself plus
+         * a Range and two boxed Long endpoints per basket
+         */
+        private static long rangeArrayBytes(Range<Long>[] ranges) {
+            return (ranges == null) ? 0 : 16 + ranges.length * 88L;
+        }
+
+        static {
+            MemoryBudget.getBudget().register("basket range dedup", new MemoryBudget.Consumer() {
+                @Override
+                public long getUsedBytes() {
+                    return dedupRangeBytes.get();
+                }
+
+                @Override
+                public long shrink(long bytes) {
+                    long before = dedupRangeBytes.get();
+                    Iterator<TrimBasketKey> it = dedupRangeMap.asMap().keySet().iterator();
+                    while ((before - dedupRangeBytes.get() < bytes) && it.hasNext()) {
+                        it.next();
+                        it.remove();
+                    }
+                    return before - dedupRangeBytes.get();
+                }
+            }, 0.05, 10);
+        }
+
         protected SerializeStorage(SlimTBranch in) {
             in.checkInvariants();
             path = in.getPath();
@@ -400,9 +667,21 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
              * Store the byte offset of each basket
              */
             basketByteOffsets = new long[in.basketEnd - in.basketStart];
+            basketByteLengths = new int[in.basketEnd - in.basketStart];
+            basketMetadata = new int[4 * (in.basketEnd - in.basketStart)];
             for (int i = in.basketStart; i < in.basketEnd; i += 1) {
                 int idx = i - basketStart;
-                basketByteOffsets[idx] = in.getBasket(i).getOffset();
+                SlimTBasket basket = in.getBasket(i);
+                basketByteOffsets[idx] = basket.getOffset();
+                basketByteLengths[idx] = basket.getBasketBytes();
+                if ((basketMetadata != null) && basket.hasMetadata()) {
+                    basketMetadata[4 * idx] = basket.getKeyLen();
+                    basketMetadata[4 * idx + 1] = basket.getCompressedLen();
+                    basketMetadata[4 * idx + 2] = basket.getObjLen();
+                    basketMetadata[4 * idx + 3] = basket.getLast();
+                } else {
+                    basketMetadata = null;
+                }
             }
 
             /*
@@ -432,10 +711,19 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
         private Object readResolve() throws ObjectStreamException {
             checkNotNull(rangeToBasketID);
             SlimTBranch ret = new SlimTBranch(path, rangeToBasketID, arrayDesc, basketStart);
-            int idx = basketStart;
-            for (long off: basketByteOffsets) {
-                ret.addBasket(idx, new SlimTBasket(off));
-                idx += 1;
+            for (int i = 0; i < basketByteOffsets.length; i += 1) {
+                SlimTBasket basket;
+                if (basketMetadata != null) {
+                    basket = SlimTBasket.makeEagerBasket(ret, basketByteOffsets[i],
+                            basketMetadata[4 * i + 1],
+                            basketMetadata[4 * i + 2],
+                            basketMetadata[4 * i],
+                            basketMetadata[4 * i + 3]);
+                } else {
+                    int len = (basketByteLengths == null) ? 0 : basketByteLengths[i];
+                    basket = SlimTBasket.makeLazyBasket(basketByteOffsets[i], len);
+                }
+                ret.addBasket(basketStart + i, basket);
             }
             return ret;
         }
@@ -0,0 +1,290 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Range;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+
+/**
+ * Compact encoding of the branches shipped with a Partition. Wide trees have
+ * thousands of branches per partition, nearly all in the same file and cut
+ * at the same entries, so the generic encodings spend most of their bytes
+ * repeating the same strings and ranges.
+ *
+ * <p>The encoding is
+ * <ul>
+ * <li>a string table holding every path and branch name once,
+ * <li>a per-file dictionary of entry boundaries, which the branches of a
+ *     file point into instead of carrying their own,
+ * <li>then each branch, with its basket offsets delta-encoded.
+ * </ul>
+ * All integers are varints, so small lengths and deltas take a byte or two.
+ *
+ * <p>Only Kryo's Output/Input are used, not a Kryo instance, so the same
+ * bytes back both the Java and Kryo serialization of Partition.
+ */
+public class SlimTBranchCodec {
+    private static final int DESC_NONE = 0;
+    private static final int DESC_FIXED = 1;
+    private static final int DESC_VAR = 2;
+
+    private SlimTBranchCodec() {
+    }
+
+    /**
+     * Entry boundaries of the stored baskets of a branch, which is what the
+     * branches of a file have in common
+     */
+    private static class Boundaries {
+        int basketStart;
+        long[] lower;
+        long[] upper;
+
+        Boundaries(SlimTBranch branch) {
+            basketStart = branch.getBasketStart();
+            int count = branch.getBasketEnd() - basketStart;
+            lower = new long[count];
+            upper = new long[count];
+            for (Entry<Range<Long>, Integer> e: branch.getRangeToBasketIDMap().asMapOfRanges().entrySet()) {
+                int idx = e.getValue() - basketStart;
+                if ((idx < 0) || (idx >= count)) {
+                    continue;
+                }
+                lower[idx] = e.getKey().lowerEndpoint();
+                upper[idx] = e.getKey().upperEndpoint();
+            }
+        }
+
+        Boundaries(Input input) {
+            basketStart = input.readVarInt(true);
+            int count = input.readVarInt(true);
+            lower = new long[count];
+            upper = new long[count];
+            long prev = 0;
+            for (int i = 0; i < count; i += 1) {
+                lower[i] = prev + input.readVarLong(false);
+                upper[i] = lower[i] + input.readVarLong(true);
+                prev = upper[i] + 1;
+            }
+        }
+
+        void write(Output output) {
+            output.writeVarInt(basketStart, true);
+            output.writeVarInt(lower.length, true);
+            long prev = 0;
+            for (int i = 0; i < lower.length; i += 1) {
+                // Baskets are normally contiguous, so this is usually zero
+                output.writeVarLong(lower[i] - prev, false);
+                output.writeVarLong(upper[i] - lower[i], true);
+                prev = upper[i] + 1;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Range<Long>[] toRanges() {
+            Range<Long>[] ret = new Range[lower.length];
+            for (int i = 0; i < lower.length; i += 1) {
+                ret[i] = Range.closed(lower[i], upper[i]);
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Boundaries)) {
+                return false;
+            }
+            Boundaries other = (Boundaries) o;
+            return (basketStart == other.basketStart)
+                    && Arrays.equals(lower, other.lower)
+                    && Arrays.equals(upper, other.upper);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * basketStart + Arrays.hashCode(lower)) + Arrays.hashCode(upper);
+        }
+    }
+
+    /**
+     * Interns strings into the table written ahead of the branches
+     */
+    private static class StringTable {
+        Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+
+        int intern(String s) {
+            return index.computeIfAbsent(s, k -> index.size());
+        }
+    }
+
+    /**
+     * @param output Destination
+     * @param branches Branches keyed by name
+     */
+    public static void write(Output output, Map<String, SlimTBranch> branches) {
+        StringTable strings = new StringTable();
+        // Dictionary of boundaries for each file, in order of first use
+        Map<Integer, Map<Boundaries, Integer>> files = new LinkedHashMap<Integer, Map<Boundaries, Integer>>();
+        List<int[]> refs = new ArrayList<int[]>(branches.size());
+        for (Entry<String, SlimTBranch> e: branches.entrySet()) {
+            SlimTBranch branch = e.getValue();
+            int name = strings.intern(e.getKey());
+            int path = strings.intern(branch.getPath());
+            TBranch.ArrayDescriptor desc = branch.getArrayDesc();
+            if ((desc != null) && !desc.isFixed()) {
+                strings.intern(desc.getBranchName());
+            }
+            Map<Boundaries, Integer> dict = files.computeIfAbsent(path, k -> new LinkedHashMap<Boundaries, Integer>());
+            int boundaries = dict.computeIfAbsent(new Boundaries(branch), k -> dict.size());
+            refs.add(new int[] {name, path, boundaries});
+        }
+
+        output.writeVarInt(strings.index.size(), true);
+        for (String s: strings.index.keySet()) {
+            output.writeString(s);
+        }
+        output.writeVarInt(files.size(), true);
+        for (Entry<Integer, Map<Boundaries, Integer>> e: files.entrySet()) {
+            output.writeVarInt(e.getKey(), true);
+            output.writeVarInt(e.getValue().size(), true);
+            for (Boundaries b: e.getValue().keySet()) {
+                b.write(output);
+            }
+        }
+
+        output.writeVarInt(branches.size(), true);
+        int idx = 0;
+        for (SlimTBranch branch: branches.values()) {
+            int[] ref = refs.get(idx);
+            idx += 1;
+            output.writeVarInt(ref[0], true);
+            output.writeVarInt(ref[1], true);
+            output.writeVarInt(ref[2], true);
+            writeArrayDesc(output, branch.getArrayDesc(), strings);
+            writeBaskets(output, branch);
+        }
+    }
+
+    /**
+     * @param input Bytes written by write()
+     * @return Branches keyed by name
+     */
+    public static Map<String, SlimTBranch> read(Input input) {
+        String[] strings = new String[input.readVarInt(true)];
+        for (int i = 0; i < strings.length; i += 1) {
+            strings[i] = input.readString();
+        }
+        Map<Integer, Range<Long>[][]> files = new HashMap<Integer, Range<Long>[][]>();
+        Map<Integer, int[]> starts = new HashMap<Integer, int[]>();
+        int fileCount = input.readVarInt(true);
+        for (int i = 0; i < fileCount; i += 1) {
+            int path = input.readVarInt(true);
+            int count = input.readVarInt(true);
+            @SuppressWarnings("unchecked")
+            Range<Long>[][] dict = new Range[count][];
+            int[] dictStarts = new int[count];
+            for (int j = 0; j < count; j += 1) {
+                Boundaries b = new Boundaries(input);
+                dict[j] = b.toRanges();
+                dictStarts[j] = b.basketStart;
+            }
+            files.put(path, dict);
+            starts.put(path, dictStarts);
+        }
+
+        int branchCount = input.readVarInt(true);
+        Map<String, SlimTBranch> ret = new HashMap<String, SlimTBranch>();
+        for (int i = 0; i < branchCount; i += 1) {
+            String name = strings[input.readVarInt(true)];
+            int path = input.readVarInt(true);
+            int boundaries = input.readVarInt(true);
+            TBranch.ArrayDescriptor desc = readArrayDesc(input, strings);
+            int basketStart = starts.get(path)[boundaries];
+            SlimTBranch branch = new SlimTBranch(strings[path], files.get(path)[boundaries], desc, basketStart);
+            readBaskets(input, branch, basketStart);
+            ret.put(name, branch);
+        }
+        return ret;
+    }
+
+    private static void writeArrayDesc(Output output, TBranch.ArrayDescriptor desc, StringTable strings) {
+        if (desc == null) {
+            output.writeVarInt(DESC_NONE, true);
+        } else if (desc.isFixed()) {
+            output.writeVarInt(DESC_FIXED, true);
+            output.writeVarInt(desc.getFixedLength(), true);
+            output.writeVarInt(desc.getSkipBytes(), true);
+        } else {
+            output.writeVarInt(DESC_VAR, true);
+            output.writeVarInt(strings.intern(desc.getBranchName()), true);
+            output.writeVarInt(desc.getSkipBytes(), true);
+        }
+    }
+
+    private static TBranch.ArrayDescriptor readArrayDesc(Input input, String[] strings) {
+        int type = input.readVarInt(true);
+        if (type == DESC_NONE) {
+            return null;
+        } else if (type == DESC_FIXED) {
+            int fixedLength = input.readVarInt(true);
+            return TBranch.ArrayDescriptor.newNumArray(Integer.toString(fixedLength), input.readVarInt(true));
+        } else {
+            String branchName = strings[input.readVarInt(true)];
+            return TBranch.ArrayDescriptor.newVarArray(branchName, input.readVarInt(true));
+        }
+    }
+
+    private static void writeBaskets(Output output, SlimTBranch branch) {
+        int start = branch.getBasketStart();
+        int end = branch.getBasketEnd();
+        boolean eager = true;
+        for (int i = start; i < end; i += 1) {
+            eager = eager && branch.getBasket(i).hasMetadata();
+        }
+        output.writeBoolean(eager);
+        long prev = 0;
+        for (int i = start; i < end; i += 1) {
+            SlimTBasket basket = branch.getBasket(i);
+            // Baskets of a branch are usually written in order, so the
+            // deltas are positive and much smaller than the offsets
+            output.writeVarLong(basket.getOffset() - prev, false);
+            prev = basket.getOffset();
+            if (eager) {
+                output.writeVarInt(basket.getKeyLen(), true);
+                output.writeVarInt(basket.getCompressedLen(), true);
+                output.writeVarInt(basket.getObjLen(), true);
+                output.writeVarInt(basket.getLast(), true);
+            } else {
+                output.writeVarInt(basket.getBasketBytes(), true);
+            }
+        }
+    }
+
+    private static void readBaskets(Input input, SlimTBranch branch, int basketStart) {
+        boolean eager = input.readBoolean();
+        long offset = 0;
+        for (int i = basketStart; i < branch.getBasketEnd(); i += 1) {
+            offset += input.readVarLong(false);
+            SlimTBasket basket;
+            if (eager) {
+                int keyLen = input.readVarInt(true);
+                int compressedLen = input.readVarInt(true);
+                int uncompressedLen = input.readVarInt(true);
+                int last = input.readVarInt(true);
+                basket = SlimTBasket.makeEagerBasket(branch, offset, compressedLen, uncompressedLen, keyLen, last);
+            } else {
+                basket = SlimTBasket.makeLazyBasket(offset, input.readVarInt(true));
+            }
+            branch.addBasket(i, basket);
+        }
+    }
+}
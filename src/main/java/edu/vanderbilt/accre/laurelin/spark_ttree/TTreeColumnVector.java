@@ -1,7 +1,7 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import java.util.Arrays;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.spark.sql.types.ArrayType;
@@ -14,6 +14,7 @@ import org.apache.spark.unsafe.types.UTF8String;
 
 import edu.vanderbilt.accre.laurelin.array.Array;
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype.Dtype;
@@ -27,35 +28,134 @@ public class TTreeColumnVector extends ColumnVector {
     private static final org.apache.logging.log4j.Logger logger = LogManager.getLogger();
     private long [] basketEntryOffsets;
     private ArrayBuilder.GetBasket getbasket;
-    private ArrayBuilder builder;
+    private Interpretation interpretation;
+    private Executor executor;
+    private long entrystart;
+    private long entrystop;
 
-    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, ThreadPoolExecutor executor, ROOTFileCache fileCache) {
+    /**
+     * Built on first access if this column is lazy, guarded by this
+     */
+    private volatile ArrayBuilder builder;
+
+    /**
+     * Set once Spark is done with this column, guarded by this
+     */
+    private boolean released = false;
+
+    /**
+     * Entry lengths shared with the other columns using the same counter
+     * branch, null if this column works them out from its own baskets
+     */
+    private JaggedCounts sharedCounts;
+    private int countsOffset;
+    private DeferredColumnVector content;
+
+    /**
+     * @param lazy If true, don't read basket metadata or decode anything until
+     *             the column is first accessed
+     */
+    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, Executor executor, ROOTFileCache fileCache, boolean lazy) {
         super(type);
 
         this.basketEntryOffsets = slimBranch.getBasketEntryOffsets();
         this.getbasket = slimBranch.getArrayBranchCallback(basketCache, fileCache);
+        this.executor = executor;
+        this.entrystart = entrystart;
+        this.entrystop = entrystop;
 
         TBranch.ArrayDescriptor desc = slimBranch.getArrayDesc();
         if (desc == null) {
-            Interpretation interpretation = new AsDtype(dtype);
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsDtype(dtype);
         } else if (desc.isFixed()) {
-            Interpretation interpretation = new AsDtype(dtype, Arrays.asList(desc.getFixedLength()));
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsDtype(dtype, Arrays.asList(desc.getFixedLength()));
         } else {
-            Interpretation interpretation = new AsJagged(new AsDtype(dtype), desc.getSkipBytes());
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsJagged(new AsDtype(dtype), desc.getSkipBytes());
+        }
+
+        if (!lazy) {
+            getBuilder();
         }
     }
 
-    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, ThreadPoolExecutor executor) {
+    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, Executor executor, ROOTFileCache fileCache) {
+        this(type, rootType, dtype, basketCache, entrystart, entrystop, slimBranch, executor, fileCache, false);
+    }
+
+    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, Executor executor) {
         this(type, rootType, dtype, basketCache, entrystart, entrystop, slimBranch, executor, (ROOTFileCache) null);
     }
 
+    /**
+     * @return true if this column has started reading its baskets
+     */
+    public boolean isMaterialized() {
+        return builder != null;
+    }
+
+    /**
+     * Take the length of each entry from a counter branch instead of this
+     * column's own baskets. The content is then only decoded once an element
+     * is read, so the lengths alone never require decompressing this column
+     *
+     * @param counts The counts for the whole partition
+     * @param offset The row of counts corresponding to row 0 of this column
+     */
+    public void setSharedCounts(JaggedCounts counts, int offset) {
+        if (!(interpretation instanceof AsJagged)) {
+            throw new IllegalArgumentException("Only jagged columns have counts");
+        }
+        this.sharedCounts = counts;
+        this.countsOffset = offset;
+        this.content = new DeferredColumnVector(((ArrayType)dataType()).elementType(), this::loadContent);
+    }
+
+    private ColumnVector loadContent() {
+        int numRows = (int) (entrystop - entrystart);
+        int expected = sharedCounts.getOffset(countsOffset + numRows) - sharedCounts.getOffset(countsOffset);
+        Array flat = ((JaggedArray) getBuilder().getArray(0, numRows)).content();
+        if (flat.length() != expected) {
+            throw new IllegalStateException("Column has " + flat.length() + " items but its counter has " + expected);
+        }
+        return new ArrayColumnVector(((ArrayType)dataType()).elementType(), flat);
+    }
+
+    private ArrayBuilder getBuilder() {
+        ArrayBuilder ret = builder;
+        if (ret == null) {
+            synchronized (this) {
+                ret = builder;
+                if (ret == null) {
+                    ret = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+                    builder = ret;
+                    if (released) {
+                        // Nobody should read it, but don't pin its baskets
+                        ret.release();
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Lets go of the baskets this column was decoded from. Nothing read from
+     * this column may be used afterwards
+     */
+    public void release() {
+        ArrayBuilder ret;
+        synchronized (this) {
+            released = true;
+            ret = builder;
+        }
+        if (ret != null) {
+            ret.release();
+        }
+    }
+
     @Override
     public void close() {
-        // TODO Auto-generated method stub
-
+        release();
     }
 
     @Override
@@ -113,7 +213,12 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public ColumnarArray getArray(int rowId) {
-        Array array = builder.getArray(rowId, 1);
+        if (sharedCounts != null) {
+            int row = countsOffset + rowId;
+            int start = sharedCounts.getOffset(row) - sharedCounts.getOffset(countsOffset);
+            return new ColumnarArray(content, start, sharedCounts.getCount(row));
+        }
+        Array array = getBuilder().getArray(rowId, 1);
         Array subarray = array.subarray();
         ArrayColumnVector tmpvec = new ArrayColumnVector(((ArrayType)dataType()).elementType(), subarray);
         return new ColumnarArray(tmpvec, 0, subarray.length());
@@ -155,7 +260,7 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public boolean[] getBooleans(int rowId, int count) {
-        byte[] tmp = (byte[])builder.getArray(rowId, count).toArray();
+        byte[] tmp = (byte[])getBuilder().getArray(rowId, count).toArray();
         boolean[] ret = new boolean[count];
         for (int i = 0; i < count; i += 1) {
             ret[i] = (tmp[i] == 1);
@@ -165,31 +270,31 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public byte[] getBytes(int rowId, int count) {
-        return (byte[])(builder.getArray(rowId, count).toArray());
+        return (byte[])(getBuilder().getArray(rowId, count).toArray());
     }
 
     @Override
     public short[] getShorts(int rowId, int count) {
-        return (short[])(builder.getArray(rowId, count).toArray());
+        return (short[])(getBuilder().getArray(rowId, count).toArray());
     }
 
     @Override
     public int[] getInts(int rowId, int count) {
-        return (int[])(builder.getArray(rowId, count).toArray());
+        return (int[])(getBuilder().getArray(rowId, count).toArray());
     }
 
     @Override
     public long[] getLongs(int rowId, int count) {
-        return (long[])(builder.getArray(rowId, count).toArray());
+        return (long[])(getBuilder().getArray(rowId, count).toArray());
     }
 
     @Override
     public float[] getFloats(int rowId, int count) {
-        return (float[])(builder.getArray(rowId, count).toArray());
+        return (float[])(getBuilder().getArray(rowId, count).toArray());
     }
 
     @Override
     public double[] getDoubles(int rowId, int count) {
-        return (double[])(builder.getArray(rowId, count).toArray());
+        return (double[])(getBuilder().getArray(rowId, count).toArray());
     }
 }
@@ -0,0 +1,64 @@
+package edu.vanderbilt.accre.laurelin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.io.FileInterface;
+
+/**
+ * Counts the reads that reach the underlying file. Wrap a handle from
+ * IOFactory.openForRead and hand it to ROOTFile.getInputFile(path, fh) to
+ * see how many requests a piece of code actually issues.
+ */
+public class CountingFile implements FileInterface {
+    private FileInterface fh;
+    private AtomicInteger reads = new AtomicInteger();
+
+    public CountingFile(FileInterface fh) {
+        this.fh = fh;
+    }
+
+    /**
+     * @return the number of requests issued so far, counting each range of a
+     *          vectored read separately
+     */
+    public int getReads() {
+        return reads.get();
+    }
+
+    @Override
+    public ByteBuffer read(long offset, long len) throws IOException {
+        reads.incrementAndGet();
+        return fh.read(offset, len);
+    }
+
+    @Override
+    public ByteBuffer[] readv(int[] offsets, int[] lens) throws IOException {
+        reads.addAndGet(offsets.length);
+        return fh.readv(offsets, lens);
+    }
+
+    @Override
+    public Future<ByteBuffer> readAsync(long offset, int len) throws IOException {
+        reads.incrementAndGet();
+        return fh.readAsync(offset, len);
+    }
+
+    @Override
+    public Future<ByteBuffer>[] readvAsync(int[] offsets, int[] lens) throws IOException {
+        reads.addAndGet(offsets.length);
+        return fh.readvAsync(offsets, lens);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fh.close();
+    }
+
+    @Override
+    public long getLimit() throws IOException {
+        return fh.getLimit();
+    }
+}
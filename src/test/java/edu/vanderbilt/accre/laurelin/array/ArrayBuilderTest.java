@@ -0,0 +1,155 @@
+package edu.vanderbilt.accre.laurelin.array;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+import edu.vanderbilt.accre.laurelin.interpretation.AsJagged;
+
+public class ArrayBuilderTest {
+    /**
+     * Baskets of 5 ints each, basket i holding 10*i, 10*i + 1, ...
+     */
+    private static class IntBaskets implements ArrayBuilder.GetBasket {
+        RawArray[] data;
+        List<Integer> released = new ArrayList<Integer>();
+
+        IntBaskets(int count) {
+            data = new RawArray[count];
+            for (int i = 0; i < count; i += 1) {
+                ByteBuffer buf = ByteBuffer.allocate(4 * 5);
+                for (int j = 0; j < 5; j += 1) {
+                    buf.putInt(10 * i + j);
+                }
+                buf.position(0);
+                data[i] = new RawArray(buf);
+            }
+        }
+
+        @Override
+        public ArrayBuilder.BasketKey basketkey(int basketid) {
+            return new ArrayBuilder.BasketKey(0, 4 * 5, 4 * 5);
+        }
+
+        @Override
+        public RawArray dataWithoutKey(int basketid) {
+            return data[basketid];
+        }
+
+        @Override
+        public void release(int basketid) {
+            released.add(basketid);
+        }
+    }
+
+    /**
+     * Jagged baskets of 6 entries each, where global entry i holds (i % 3)
+     * copies of i, followed by the usual trailing offset array
+     */
+    private static class JaggedBaskets implements ArrayBuilder.GetBasket {
+        RawArray[] data;
+        int[] border;
+
+        JaggedBaskets(int count) {
+            data = new RawArray[count];
+            border = new int[count];
+            for (int b = 0; b < count; b += 1) {
+                int bytes = 0;
+                for (int i = 6 * b; i < 6 * (b + 1); i += 1) {
+                    bytes += 4 * (i % 3);
+                }
+                border[b] = bytes;
+                ByteBuffer buf = ByteBuffer.allocate(bytes + 4 + 7 * 4);
+                ByteBuffer offsets = buf.duplicate();
+                offsets.position(bytes + 4);
+                for (int i = 6 * b; i < 6 * (b + 1); i += 1) {
+                    offsets.putInt(buf.position());
+                    for (int j = 0; j < i % 3; j += 1) {
+                        buf.putInt(i);
+                    }
+                }
+                // ROOT leaves the end of the last entry as zero
+                offsets.putInt(0);
+                buf.position(0);
+                data[b] = new RawArray(buf);
+            }
+        }
+
+        @Override
+        public ArrayBuilder.BasketKey basketkey(int basketid) {
+            return new ArrayBuilder.BasketKey(0, border[basketid], data[basketid].length());
+        }
+
+        @Override
+        public RawArray dataWithoutKey(int basketid) {
+            return data[basketid];
+        }
+    }
+
+    private static void checkJagged(ArrayBuilder builder, int entrystart, int entrystop) {
+        for (int i = entrystart; i < entrystop; i += 1) {
+            int[] entry = (int[]) builder.getArray(i - entrystart, 1).subarray().toArray();
+            assertEquals(i % 3, entry.length);
+            for (int val: entry) {
+                assertEquals(i, val);
+            }
+        }
+    }
+
+    @Test
+    public void testPartialJaggedBasket() {
+        AsJagged interp = new AsJagged(new AsDtype(AsDtype.Dtype.INT4));
+        ArrayBuilder builder = new ArrayBuilder(new JaggedBaskets(1), interp, new long[] {0, 6}, null, 2, 5);
+        checkJagged(builder, 2, 5);
+        JaggedArray all = (JaggedArray) builder.getArray(0, 3);
+        assertArrayEquals(new int[] {2, 0, 1}, (int[]) all.counts().toArray());
+    }
+
+    @Test
+    public void testPartialJaggedBaskets() {
+        AsJagged interp = new AsJagged(new AsDtype(AsDtype.Dtype.INT4));
+        ArrayBuilder builder = new ArrayBuilder(new JaggedBaskets(3), interp, new long[] {0, 6, 12, 18}, null, 4, 14);
+        checkJagged(builder, 4, 14);
+        JaggedArray all = (JaggedArray) builder.getArray(0, 10);
+        assertArrayEquals(new int[] {1, 2, 0, 1, 2, 0, 1, 2, 0, 1}, (int[]) all.counts().toArray());
+    }
+
+    @Test
+    public void testSingleBasketIsNotCopied() {
+        IntBaskets baskets = new IntBaskets(1);
+        ArrayBuilder builder = new ArrayBuilder(baskets, new AsDtype(AsDtype.Dtype.INT4), new long[] {0, 5}, null, 1, 4);
+        assertArrayEquals(new int[] {1, 2, 3}, (int[]) builder.getArray(0, 3).toArray());
+        // The builder hands out views of the basket itself
+        baskets.data[0].raw().putInt(8, 42);
+        assertEquals(42, ((int[]) builder.getArray(1, 1).toArray())[0]);
+    }
+
+    @Test
+    public void testSpanningBaskets() {
+        ArrayBuilder builder = new ArrayBuilder(new IntBaskets(3), new AsDtype(AsDtype.Dtype.INT4), new long[] {0, 5, 10, 15}, null, 3, 14);
+        for (int i = 0; i < 11; i += 1) {
+            int entry = 3 + i;
+            assertEquals(10 * (entry / 5) + (entry % 5), ((int[]) builder.getArray(i, 1).toArray())[0]);
+        }
+        assertArrayEquals(new int[] {3, 4, 10, 11, 12, 13, 14, 20, 21, 22, 23}, (int[]) builder.getArray(0, 11).toArray());
+        assertArrayEquals(new int[] {14, 20}, (int[]) builder.getArray(6, 2).toArray());
+    }
+
+    @Test
+    public void testReleaseBaskets() {
+        IntBaskets baskets = new IntBaskets(3);
+        ArrayBuilder builder = new ArrayBuilder(baskets, new AsDtype(AsDtype.Dtype.INT4), new long[] {0, 5, 10, 15}, null, 7, 15);
+        assertEquals(0, baskets.released.size());
+        builder.release();
+        assertEquals(Arrays.asList(1, 2), baskets.released);
+        builder.release();
+        assertEquals(2, baskets.released.size());
+    }
+}
@@ -0,0 +1,150 @@
+package edu.vanderbilt.accre.laurelin.array;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+
+public class DecodeSchedulerTest {
+    /**
+     * Futures complete just before the scheduler releases their bytes, so
+     * give the workers a moment to catch up
+     */
+    private static long awaitIdle(DecodeScheduler scheduler) throws InterruptedException {
+        for (int i = 0; (i < 100) && (scheduler.getInflightBytes() != 0); i += 1) {
+            Thread.sleep(10);
+        }
+        return scheduler.getInflightBytes();
+    }
+
+    @Test
+    public void testOffsetOrder() throws InterruptedException, ExecutionException {
+        DecodeScheduler scheduler = new DecodeScheduler(1, Long.MAX_VALUE);
+        DecodeScheduler.Batch batch = scheduler.newBatch();
+        List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        long[] offsets = new long[] {300, 100, 400, 200};
+        FutureTask<?>[] tasks = new FutureTask<?>[offsets.length];
+        for (int i = 0; i < offsets.length; i += 1) {
+            final long off = offsets[i];
+            tasks[i] = new FutureTask<Void>(() -> order.add(off), null);
+            batch.execute(tasks[i], off, 1);
+        }
+        // Nothing runs until the batch is submitted
+        assertEquals(4, batch.getPendingCount());
+        assertEquals(0, order.size());
+        batch.submit();
+        for (FutureTask<?> task: tasks) {
+            task.get();
+        }
+        assertEquals(Arrays.asList(100L, 200L, 300L, 400L), order);
+    }
+
+    @Test
+    public void testInflightBound() throws InterruptedException, ExecutionException {
+        DecodeScheduler scheduler = new DecodeScheduler(4, 10);
+        DecodeScheduler.Batch batch = scheduler.newBatch();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        FutureTask<?>[] tasks = new FutureTask<?>[8];
+        for (int i = 0; i < tasks.length; i += 1) {
+            tasks[i] = new FutureTask<Void>(() -> {
+                int curr = running.incrementAndGet();
+                maxRunning.accumulateAndGet(curr, Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                running.decrementAndGet();
+            }, null);
+            batch.execute(tasks[i], i, 10);
+        }
+        batch.submit();
+        for (FutureTask<?> task: tasks) {
+            task.get();
+        }
+        assertEquals(1, maxRunning.get());
+        assertEquals(0, awaitIdle(scheduler));
+    }
+
+    @Test
+    public void testCancel() {
+        DecodeScheduler scheduler = new DecodeScheduler(1, Long.MAX_VALUE);
+        DecodeScheduler.Batch batch = scheduler.newBatch();
+        FutureTask<Void> task = new FutureTask<Void>(() -> { }, null);
+        batch.execute(task, 0, 1);
+        batch.cancel();
+        assertTrue(task.isCancelled());
+        assertEquals(0, batch.getPendingCount());
+    }
+
+    @Test
+    public void testFetchStage() throws InterruptedException, ExecutionException {
+        DecodeScheduler scheduler = new DecodeScheduler(1, Long.MAX_VALUE);
+        ExecutorService io = Executors.newFixedThreadPool(2);
+        try {
+            DecodeScheduler.Batch batch = scheduler.newBatch(io);
+            List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            FutureTask<Void> task = new FutureTask<Void>(() -> {
+                order.add("decode:" + Thread.currentThread().getName().startsWith("laurelin-decode"));
+            }, null);
+            batch.execute(task, () -> {
+                order.add("fetch:" + Thread.currentThread().getName().startsWith("laurelin-decode"));
+            }, 0, 1);
+            batch.submit();
+            task.get();
+            assertEquals(Arrays.asList("fetch:false", "decode:true"), order);
+            assertEquals(0, awaitIdle(scheduler));
+        } finally {
+            io.shutdown();
+        }
+    }
+
+    @Test
+    public void testFetchFailure() throws InterruptedException, ExecutionException {
+        DecodeScheduler scheduler = new DecodeScheduler(1, Long.MAX_VALUE);
+        DecodeScheduler.Batch batch = scheduler.newBatch(Runnable::run);
+        AtomicInteger decoded = new AtomicInteger();
+        FutureTask<Void> task = new FutureTask<Void>(() -> decoded.incrementAndGet(), null);
+        batch.execute(task, () -> {
+            throw new RuntimeException("fetch failed");
+        }, 0, 1);
+        batch.submit();
+        task.get();
+        assertEquals(1, decoded.get());
+    }
+
+    @Test
+    public void testArrayBuilder() {
+        AsDtype asdtype = new AsDtype(AsDtype.Dtype.INT4);
+        ArrayBuilder.GetBasket getbasket = new ArrayBuilder.GetBasket() {
+                @Override
+                public ArrayBuilder.BasketKey basketkey(int basketid) {
+                    return new ArrayBuilder.BasketKey(0, 4 * 5, 4 * 5);
+                }
+
+                @Override
+                public RawArray dataWithoutKey(int basketid) {
+                    return new PrimitiveArray.Int4(new int[]{0,1,2,3,4}, true).rawarray();
+                }
+            };
+        long[] basketEntryOffsets = new long[]{0, 5, 10};
+        DecodeScheduler scheduler = new DecodeScheduler(2, Long.MAX_VALUE);
+
+        // getArray() before submit() must not deadlock
+        ArrayBuilder builder = new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, scheduler.newBatch(), 1, 9);
+        assertEquals(Arrays.toString(new int[]{1,2,3,4,0,1,2,3}), Arrays.toString((int[]) builder.getArray(0, 8).toArray()));
+    }
+}
@@ -0,0 +1,157 @@
+package edu.vanderbilt.accre.laurelin.array;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+import edu.vanderbilt.accre.laurelin.interpretation.AsJagged;
+
+public class RawArrayTest {
+    private static final int SKIPBYTES = 10;
+
+    /**
+     * Makes entries laid out like a std::vector<int> basket: each entry is a
+     * 10 byte header followed by (i % 7) ints with the value i
+     */
+    private static ByteBuffer makeVectorBasket(int numEntries, PrimitiveArray.Int4[] offsetsOut) {
+        ByteBuffer offsets = ByteBuffer.allocate((numEntries + 1) * 4);
+        int total = 0;
+        for (int i = 0; i < numEntries; i += 1) {
+            offsets.putInt(i * 4, total);
+            total += SKIPBYTES + 4 * (i % 7);
+        }
+        offsets.putInt(numEntries * 4, total);
+        ByteBuffer data = ByteBuffer.allocate(total);
+        for (int i = 0; i < numEntries; i += 1) {
+            for (int j = 0; j < SKIPBYTES; j += 1) {
+                data.put((byte) 0xff);
+            }
+            for (int j = 0; j < i % 7; j += 1) {
+                data.putInt(i);
+            }
+        }
+        data.position(0);
+        offsetsOut[0] = new PrimitiveArray.Int4(new RawArray(offsets));
+        return data;
+    }
+
+    /**
+     * The implementation compactInto() replaced, kept as a reference
+     */
+    private static RawArray referenceCompact(ByteBuffer buffer, PrimitiveArray.Int4 byteoffsets, int skipbytes, int local_entrystart, int local_entrystop) {
+        ByteBuffer out = ByteBuffer.allocate(byteoffsets.get(local_entrystop) - byteoffsets.get(local_entrystart) - skipbytes * (local_entrystop - local_entrystart));
+        buffer.position(0);
+        for (int i = local_entrystart;  i < local_entrystop;  i++) {
+            int start = byteoffsets.get(i) + skipbytes;
+            int count = byteoffsets.get(i + 1) - start;
+            byte[] copy = new byte[count];
+            buffer.position(start);
+            buffer.get(copy);
+            out.put(copy);
+        }
+        buffer.position(0);
+        out.position(0);
+        return new RawArray(out);
+    }
+
+    private static int[] referenceCounts(PrimitiveArray.Int4 byteoffsets, int skipbytes, int local_entrystart, int local_entrystop) {
+        ByteBuffer countsbuf = ByteBuffer.allocate((local_entrystop - local_entrystart) * 4);
+        for (int i = local_entrystart;  i < local_entrystop;  ++i) {
+            countsbuf.putInt(((byteoffsets.get(i + 1) - byteoffsets.get(i)) - skipbytes) / 4);
+        }
+        countsbuf.position(0);
+        return (int[]) new PrimitiveArray.Int4(new RawArray(countsbuf)).toArray();
+    }
+
+    @Test
+    public void testCompactMatchesReference() {
+        PrimitiveArray.Int4[] offsets = new PrimitiveArray.Int4[1];
+        ByteBuffer data = makeVectorBasket(100, offsets);
+        RawArray raw = new RawArray(data);
+        byte[] expected = (byte[]) referenceCompact(data.duplicate(), offsets[0], SKIPBYTES, 3, 97).toArray();
+        byte[] actual = (byte[]) raw.compact(offsets[0], SKIPBYTES, 3, 97).toArray();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testCompactIntoCounts() {
+        PrimitiveArray.Int4[] offsets = new PrimitiveArray.Int4[1];
+        ByteBuffer data = makeVectorBasket(50, offsets);
+        RawArray raw = new RawArray(data);
+        int size = offsets[0].get(50) - offsets[0].get(5) - SKIPBYTES * 45;
+        ByteBuffer content = ByteBuffer.allocate(size);
+        ByteBuffer counts = ByteBuffer.allocate(45 * 4);
+        raw.compactInto(offsets[0], SKIPBYTES, 4, 5, 50, content, counts);
+        assertEquals(size, content.position());
+        counts.position(0);
+        assertArrayEquals(referenceCounts(offsets[0], SKIPBYTES, 5, 50), (int[]) new PrimitiveArray.Int4(new RawArray(counts)).toArray());
+        // Our buffer is untouched, so concurrent readers are unaffected
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testCompactIntoDirect() {
+        PrimitiveArray.Int4[] offsets = new PrimitiveArray.Int4[1];
+        ByteBuffer heap = makeVectorBasket(20, offsets);
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.limit());
+        direct.put(heap.duplicate());
+        direct.position(0);
+        byte[] expected = (byte[]) referenceCompact(heap, offsets[0], SKIPBYTES, 0, 20).toArray();
+        byte[] actual = (byte[]) new RawArray(direct).compact(offsets[0], SKIPBYTES, 0, 20).toArray();
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testJaggedFromRoot() {
+        PrimitiveArray.Int4[] offsets = new PrimitiveArray.Int4[1];
+        ByteBuffer data = makeVectorBasket(30, offsets);
+        AsJagged interp = new AsJagged(new AsDtype(AsDtype.Dtype.INT4), SKIPBYTES);
+        JaggedArray jagged = (JaggedArray) interp.fromroot(new RawArray(data), offsets[0], 0, 30);
+        assertArrayEquals(referenceCounts(offsets[0], SKIPBYTES, 0, 30), (int[]) jagged.counts().toArray());
+        for (int i = 0; i < 30; i += 1) {
+            int[] entry = (int[]) jagged.clip(i, i + 1).subarray().toArray();
+            assertEquals(i % 7, entry.length);
+            for (int val: entry) {
+                assertEquals(i, val);
+            }
+        }
+    }
+
+    /**
+     * Compares compactInto() to the old per-entry copy. Only runs with
+     * -Dlaurelin.benchmark=true
+     */
+    @Test
+    public void benchmarkCompact() {
+        assumeTrue(Boolean.getBoolean("laurelin.benchmark"));
+        int numEntries = 1000000;
+        int iterations = 20;
+        PrimitiveArray.Int4[] offsets = new PrimitiveArray.Int4[1];
+        ByteBuffer data = makeVectorBasket(numEntries, offsets);
+        RawArray raw = new RawArray(data);
+        int size = offsets[0].get(numEntries) - SKIPBYTES * numEntries;
+        for (int warmup = 0; warmup < 2; warmup += 1) {
+            referenceCompact(data, offsets[0], SKIPBYTES, 0, numEntries);
+            referenceCounts(offsets[0], SKIPBYTES, 0, numEntries);
+            raw.compactInto(offsets[0], SKIPBYTES, 4, 0, numEntries, ByteBuffer.allocate(size), ByteBuffer.allocate(numEntries * 4));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i += 1) {
+            referenceCompact(data, offsets[0], SKIPBYTES, 0, numEntries);
+            referenceCounts(offsets[0], SKIPBYTES, 0, numEntries);
+        }
+        long reference = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i += 1) {
+            raw.compactInto(offsets[0], SKIPBYTES, 4, 0, numEntries, ByteBuffer.allocate(size), ByteBuffer.allocate(numEntries * 4));
+        }
+        long single = System.nanoTime() - start;
+        System.out.println(String.format("compact of %d entries: reference %.2f ms, single pass %.2f ms",
+                numEntries, reference / 1e6 / iterations, single / 1e6 / iterations));
+    }
+}
@@ -0,0 +1,120 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
+
+public class BasketCacheTest {
+    private ROOTFile file;
+    private long budget;
+
+    @Before
+    public void setUp() throws IOException {
+        file = ROOTFile.getInputFile("testdata/uproot-small-flat-tree.root");
+        budget = MemoryBudget.getBudget().getBudgetBytes();
+        BasketCache.getCache().clear();
+    }
+
+    @After
+    public void tearDown() {
+        BasketCache.getCache().setTiered(false);
+        MemoryBudget.getBudget().setBudgetBytes(budget);
+        BasketCache.getCache().clear();
+    }
+
+    private static RawArray bytes(int length) {
+        return new RawArray(ByteBuffer.allocate(length));
+    }
+
+    @Test
+    public void testCompressedTierDisabled() {
+        BasketCache cache = BasketCache.getCache();
+        cache.putCompressed(file, 1, ByteBuffer.allocate(10));
+        assertNull(cache.getCompressed(file, 1));
+    }
+
+    @Test
+    public void testPromoteAndDemote() {
+        BasketCache cache = BasketCache.getCache();
+        // Gives the decompressed tier room for a single 80 byte basket and
+        // its 50 compressed bytes
+        MemoryBudget.getBudget().setBudgetBytes(2000);
+        cache.setTiered(true);
+        long hits = cache.getCompressedHitCount();
+        long misses = cache.getCompressedMissCount();
+
+        assertNull(cache.getCompressed(file, 1));
+        cache.putCompressed(file, 1, ByteBuffer.allocate(50));
+        cache.putCompressed(file, 2, ByteBuffer.allocate(50));
+        // Promote basket 1, then let basket 2 evict it from the decompressed
+        // tier
+        assertNotNull(cache.getCompressed(file, 1));
+        cache.put(file, 1, bytes(80));
+        assertNotNull(cache.getCompressed(file, 2));
+        cache.put(file, 2, bytes(80));
+        assertNull(cache.get(file, 1));
+        assertNotNull(cache.get(file, 2));
+
+        // Demoting basket 1 refreshed its compressed copy, so basket 2's is
+        // now the least recently used
+        cache.compressed.shrink(1);
+        assertNotNull(cache.getCompressed(file, 1));
+        assertNull(cache.getCompressed(file, 2));
+        assertEquals(hits + 3, cache.getCompressedHitCount());
+        assertEquals(misses + 2, cache.getCompressedMissCount());
+    }
+
+    @Test
+    public void testDemoteAfterCompressedEvicted() {
+        BasketCache cache = BasketCache.getCache();
+        MemoryBudget.getBudget().setBudgetBytes(2000);
+        cache.setTiered(true);
+        cache.putCompressed(file, 1, ByteBuffer.allocate(50));
+        assertNotNull(cache.getCompressed(file, 1));
+        cache.put(file, 1, bytes(80));
+        cache.compressed.clear();
+        assertNull(cache.getCompressed(file, 1));
+
+        // Evicting basket 1 from the decompressed tier still keeps it
+        cache.put(file, 2, bytes(80));
+        assertNull(cache.get(file, 1));
+        assertNotNull(cache.getCompressed(file, 1));
+    }
+
+    @Test
+    public void testPrefetchCountedSeparately() {
+        BasketCache cache = BasketCache.getCache();
+        cache.setTiered(true);
+        long hits = cache.getCompressedHitCount();
+        long misses = cache.getCompressedMissCount();
+        long prefetchHits = cache.getPrefetchHitCount();
+        long prefetchMisses = cache.getPrefetchMissCount();
+        assertFalse(cache.containsCompressed(file, 1));
+        cache.putCompressed(file, 1, ByteBuffer.allocate(50));
+        assertTrue(cache.containsCompressed(file, 1));
+        assertEquals(hits, cache.getCompressedHitCount());
+        assertEquals(misses, cache.getCompressedMissCount());
+        assertEquals(prefetchHits + 1, cache.getPrefetchHitCount());
+        assertEquals(prefetchMisses + 1, cache.getPrefetchMissCount());
+    }
+
+    @Test
+    public void testTiersShareQuota() {
+        double total = MemoryBudget.getBudget().getTotalQuota();
+        BasketCache.getCache().setTiered(true);
+        assertEquals(total, MemoryBudget.getBudget().getTotalQuota(), 1e-9);
+        assertTrue(total <= 1.0);
+    }
+}
@@ -0,0 +1,123 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.cache.CacheSimulator.Access;
+import edu.vanderbilt.accre.laurelin.cache.CacheSimulator.Result;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOProfile.Event.Storage.TypeEnum;
+
+public class CacheSimulatorTest {
+    /**
+     * A small hot set read between every chunk of a long one-pass scan
+     */
+    private static List<Access> makeScanTrace() {
+        List<Access> ret = new ArrayList<Access>();
+        int scan = 0;
+        for (int round = 0; round < 50; round += 1) {
+            for (int hot = 0; hot < 10; hot += 1) {
+                ret.add(new Access("hot" + hot, 1000));
+            }
+            for (int i = 0; i < 40; i += 1) {
+                ret.add(new Access("scan" + scan, 1000));
+                scan += 1;
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSketchCounts() {
+        TinyLfu sketch = new TinyLfu(1000);
+        for (int i = 0; i < 5; i += 1) {
+            sketch.increment("popular".hashCode());
+        }
+        sketch.increment("rare".hashCode());
+        assertEquals(5, sketch.frequency("popular".hashCode()));
+        assertTrue(sketch.admit("popular".hashCode(), "rare".hashCode()));
+        assertTrue(!sketch.admit("rare".hashCode(), "popular".hashCode()));
+        for (int i = 0; i < 100; i += 1) {
+            sketch.increment("popular".hashCode());
+        }
+        // Counters saturate at 4 bits
+        assertEquals(15, sketch.frequency("popular".hashCode()));
+    }
+
+    @Test
+    public void testSketchAges() {
+        TinyLfu sketch = new TinyLfu(64);
+        for (int i = 0; i < 8; i += 1) {
+            sketch.increment(-1);
+        }
+        // Enough other traffic to trigger a reset, which halves every count
+        for (int i = 0; i < 10 * 64; i += 1) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(-1) < 8);
+    }
+
+    @Test
+    public void testTinyLfuResistsScan() {
+        List<Access> trace = makeScanTrace();
+        Result lru = CacheSimulator.replay(trace, "lru", 20 * 1000);
+        Result tinylfu = CacheSimulator.replay(trace, "tinylfu", 20 * 1000);
+        // The scan flushes the hot set out of a plain LRU every round
+        assertEquals(0, lru.hits);
+        assertTrue(tinylfu.getHitRate() > 0.15);
+        assertEquals(trace.size(), tinylfu.hits + tinylfu.misses);
+    }
+
+    @Test
+    public void testTraceRoundTrip() throws IOException {
+        List<Access> trace = Arrays.asList(new Access("a.root@100", 10), new Access("b c.root@5", 7));
+        StringWriter writer = new StringWriter();
+        CacheSimulator.writeTrace(trace, writer);
+        List<Access> read = CacheSimulator.readTrace(new BufferedReader(new StringReader(writer.toString())));
+        assertEquals(2, read.size());
+        assertEquals("b c.root@5", read.get(1).key);
+        assertEquals(7, read.get(1).bytes);
+    }
+
+    private static Storage makeEvent(int eid, int fid, long offset, int len, long startTime, String fileName, TypeEnum type) {
+        Storage ret = new Storage();
+        ret.eid = eid;
+        ret.fid = fid;
+        ret.offset = offset;
+        ret.len = len;
+        ret.startTime = startTime;
+        ret.fileName = fileName;
+        ret.type = type;
+        return ret;
+    }
+
+    @Test
+    public void testFromProfile() {
+        List<Storage> events = new ArrayList<Storage>();
+        events.add(makeEvent(1, 0, 0, 0, 0, "a.root", TypeEnum.UPPER));
+        events.add(makeEvent(2, 5, 0, 0, 0, "a.root", TypeEnum.UPPER));
+        events.add(makeEvent(2, 5, 300, 5000, 20, null, TypeEnum.BASKET));
+        events.add(makeEvent(1, 0, 300, 5000, 10, null, TypeEnum.BASKET));
+        // Key and payload reads of the file don't go through the basket cache
+        events.add(makeEvent(1, 0, 300, 64, 9, null, TypeEnum.UPPER));
+        events.add(makeEvent(1, 0, 364, 1200, 9, null, TypeEnum.UPPER));
+        events.add(makeEvent(1, 0, 300, 4096, 9, null, TypeEnum.LOWER));
+        List<Access> trace = CacheSimulator.fromProfile(events);
+        assertEquals(2, trace.size());
+        // Different executors reading the same basket ask for the same key
+        assertEquals("a.root@300", trace.get(0).key);
+        assertEquals("a.root@300", trace.get(1).key);
+        // Sized like the cache entry, not the read
+        assertEquals(5000, trace.get(0).bytes);
+    }
+}
@@ -0,0 +1,120 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+import edu.vanderbilt.accre.laurelin.interpretation.AsJagged;
+import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
+
+public class DecodedCacheTest {
+    @After
+    public void disableCache() {
+        DecodedCache.getCache().setLimit(0);
+    }
+
+    private static DecodedCache.Key key(long offset) {
+        return new DecodedCache.Key("file.root", 1000, 1, offset, new AsDtype(AsDtype.Dtype.INT4), 0, 4);
+    }
+
+    private static Array ints(int... vals) {
+        return new PrimitiveArray.Int4(vals, true);
+    }
+
+    @Test
+    public void testKeyEquality() {
+        assertEquals(key(100), key(100));
+        assertEquals(new AsJagged(new AsDtype(AsDtype.Dtype.FLOAT4), 10), new AsJagged(new AsDtype(AsDtype.Dtype.FLOAT4), 10));
+        DecodedCache cache = DecodedCache.getCache();
+        cache.setLimit(1024);
+        cache.put(key(100), ints(1, 2, 3, 4));
+        assertNotNull(cache.get(key(100)));
+        assertNull(cache.get(new DecodedCache.Key("file.root", 1000, 1, 100, new AsDtype(AsDtype.Dtype.INT8), 0, 4)));
+        assertNull(cache.get(new DecodedCache.Key("file.root", 1000, 1, 100, new AsDtype(AsDtype.Dtype.INT4), 1, 4)));
+        // A rewritten file doesn't see the old file's entries
+        assertNull(cache.get(new DecodedCache.Key("file.root", 1000, 2, 100, new AsDtype(AsDtype.Dtype.INT4), 0, 4)));
+        assertNull(cache.get(new DecodedCache.Key("file.root", 2000, 1, 100, new AsDtype(AsDtype.Dtype.INT4), 0, 4)));
+    }
+
+    @Test
+    public void testSliceIsCopied() {
+        DecodedCache cache = DecodedCache.getCache();
+        cache.setLimit(1024);
+        int[] vals = new int[64];
+        for (int i = 0; i < vals.length; i += 1) {
+            vals[i] = i;
+        }
+        PrimitiveArray whole = new PrimitiveArray.Int4(vals, true);
+        cache.put(key(1), whole.clip(10, 14));
+        // Only the slice is kept, not the 256 byte array around it
+        assertEquals(16, cache.getCurrentBytes());
+        PrimitiveArray cached = (PrimitiveArray) cache.get(key(1));
+        assertArrayEquals(new int[]{10, 11, 12, 13}, (int[]) cached.toArray());
+        assertEquals(16, cached.detach().rawarray().length());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        DecodedCache cache = DecodedCache.getCache();
+        // Room for two 16 byte arrays
+        cache.setLimit(40);
+        cache.put(key(1), ints(1, 1, 1, 1));
+        cache.put(key(2), ints(2, 2, 2, 2));
+        cache.get(key(1));
+        cache.put(key(3), ints(3, 3, 3, 3));
+        assertNotNull(cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(3)));
+        assertEquals(32, cache.getCurrentBytes());
+        cache.setLimit(16);
+        assertEquals(16, cache.getCurrentBytes());
+    }
+
+    @Test
+    public void testBuilderReusesDecodedBaskets() {
+        DecodedCache.getCache().setLimit(1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+        ArrayBuilder.GetBasket getbasket = new ArrayBuilder.GetBasket() {
+            @Override
+            public ArrayBuilder.BasketKey basketkey(int basketid) {
+                return new ArrayBuilder.BasketKey(0, 4 * 5, 4 * 5);
+            }
+
+            @Override
+            public RawArray dataWithoutKey(int basketid) {
+                reads.incrementAndGet();
+                return new PrimitiveArray.Int4(new int[]{0, 1, 2, 3, 4}, true).rawarray();
+            }
+
+            @Override
+            public Array getDecoded(int basketid, Interpretation interpretation, int start, int stop) {
+                return DecodedCache.getCache().get(new DecodedCache.Key("test.root", 1000, 1, basketid, interpretation, start, stop));
+            }
+
+            @Override
+            public void putDecoded(int basketid, Interpretation interpretation, int start, int stop, Array decoded) {
+                DecodedCache.getCache().put(new DecodedCache.Key("test.root", 1000, 1, basketid, interpretation, start, stop), decoded);
+            }
+        };
+        long[] basketEntryOffsets = new long[]{0, 5, 10};
+        AsDtype asdtype = new AsDtype(AsDtype.Dtype.INT4);
+        ArrayBuilder first = new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, null, 1, 10);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 0, 1, 2, 3, 4}, (int[]) first.getArray(0, 9).toArray());
+        assertEquals(2, reads.get());
+        // Another query with an equal interpretation reuses the decoded chunks
+        ArrayBuilder second = new ArrayBuilder(getbasket, new AsDtype(AsDtype.Dtype.INT4), basketEntryOffsets, null, 1, 10);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 0, 1, 2, 3, 4}, (int[]) second.getArray(0, 9).toArray());
+        assertEquals(2, reads.get());
+    }
+}
@@ -0,0 +1,142 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+    /**
+     * Holds a fixed number of bytes and records when it was shrunk
+     */
+    private static class FakeConsumer implements MemoryBudget.Consumer {
+        String name;
+        long used;
+        List<String> log;
+
+        FakeConsumer(String name, long used, List<String> log) {
+            this.name = name;
+            this.used = used;
+            this.log = log;
+        }
+
+        @Override
+        public long getUsedBytes() {
+            return used;
+        }
+
+        @Override
+        public long shrink(long bytes) {
+            long freed = Math.min(bytes, used);
+            used -= freed;
+            log.add(name + ":" + freed);
+            return freed;
+        }
+    }
+
+    @Test
+    public void testUnderBudget() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setBudgetBytes(100);
+        List<String> log = new ArrayList<String>();
+        budget.register("a", new FakeConsumer("a", 40, log), 0.5, 0);
+        budget.register("b", new FakeConsumer("b", 60, log), 0.5, 1);
+        budget.reclaim();
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void testOverQuotaFirst() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setBudgetBytes(100);
+        List<String> log = new ArrayList<String>();
+        FakeConsumer cheap = new FakeConsumer("cheap", 20, log);
+        FakeConsumer greedy = new FakeConsumer("greedy", 90, log);
+        budget.register("cheap", cheap, 0.5, 0);
+        budget.register("greedy", greedy, 0.5, 10);
+        budget.reclaim();
+        // greedy is over its 50 byte quota, so it pays even though cheap has
+        // the lower priority
+        assertEquals(1, log.size());
+        assertEquals("greedy:10", log.get(0));
+        assertEquals(100, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testReclaimOnRegister() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setBudgetBytes(100);
+        List<String> log = new ArrayList<String>();
+        // Already over budget before anything was put into it
+        budget.register("full", new FakeConsumer("full", 150, log), 0.5, 0);
+        assertEquals("full:50", log.get(0));
+        assertEquals(100, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testSetQuota() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setBudgetBytes(100);
+        List<String> log = new ArrayList<String>();
+        FakeConsumer a = new FakeConsumer("a", 40, log);
+        FakeConsumer b = new FakeConsumer("b", 40, log);
+        budget.register("a", a, 0.5, 0);
+        budget.register("b", b, 0, 10);
+        budget.setQuota(a, 0.2);
+        budget.setQuota(b, 0.3);
+        assertEquals(0.5, budget.getTotalQuota(), 1e-9);
+        // a is now the one over its quota
+        b.used = 70;
+        budget.reclaim();
+        assertEquals("a:10", log.get(0));
+    }
+
+    @Test
+    public void testLowestPriorityNext() {
+        MemoryBudget budget = new MemoryBudget();
+        List<String> log = new ArrayList<String>();
+        FakeConsumer expensive = new FakeConsumer("expensive", 50, log);
+        FakeConsumer cheap = new FakeConsumer("cheap", 50, log);
+        budget.register("expensive", expensive, 0.8, 10);
+        budget.register("cheap", cheap, 0.8, 0);
+        budget.setBudgetBytes(70);
+        assertEquals("cheap:30", log.get(0));
+        assertEquals(50, expensive.getUsedBytes());
+    }
+
+    @Test
+    public void testConfigureBudgetOnce() {
+        MemoryBudget budget = new MemoryBudget();
+        long initial = budget.getBudgetBytes();
+        budget.configureBudgetBytes(0);
+        assertEquals(initial, budget.getBudgetBytes());
+        budget.configureBudgetBytes(100);
+        assertEquals(100, budget.getBudgetBytes());
+        // Later tasks don't change it, whichever way
+        budget.configureBudgetBytes(50);
+        budget.configureBudgetBytes(200);
+        assertEquals(100, budget.getBudgetBytes());
+    }
+
+    @Test
+    public void testLruByteCache() {
+        LruByteCache<String, byte[]> cache = new LruByteCache<String, byte[]>(v -> v.length);
+        cache.setLimit(25);
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        cache.get("a");
+        cache.put("c", new byte[10]);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(20, cache.getUsedBytes());
+        assertEquals(10, cache.shrink(5));
+        assertEquals(1, cache.size());
+        // Too big to ever fit
+        cache.put("d", new byte[30]);
+        assertNull(cache.get("d"));
+    }
+}
@@ -0,0 +1,113 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+
+public class OffHeapCacheTest {
+    private static final int SLAB = 64 * 1024;
+
+    private static RawArray makeData(int length, int seed) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i += 1) {
+            buf.put(i, (byte) (i + seed));
+        }
+        return new RawArray(buf);
+    }
+
+    @Test
+    public void testPoolSizeClasses() {
+        DirectBufferPool pool = new DirectBufferPool(2 * SLAB, SLAB);
+        ByteBuffer small = pool.allocate(100);
+        assertTrue(small.isDirect());
+        assertEquals(4096, small.capacity());
+        assertEquals(100, small.limit());
+        ByteBuffer medium = pool.allocate(5000);
+        assertEquals(8192, medium.capacity());
+        assertEquals(2 * SLAB, pool.getReservedBytes());
+        // Both slabs are taken, so another class has nowhere to go
+        assertNull(pool.allocate(20000));
+        pool.release(medium);
+        assertEquals(4096, pool.getAllocatedBytes());
+        // Released blocks are reused rather than reserving more
+        assertEquals(8192, pool.allocate(8000).capacity());
+        assertEquals(2 * SLAB, pool.getReservedBytes());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        OffHeapCache<String> cache = new OffHeapCache<String>(new DirectBufferPool(SLAB, SLAB));
+        RawArray data = makeData(1000, 3);
+        assertTrue(cache.put("a", data));
+        RawArray got = cache.get("a");
+        assertNotNull(got);
+        assertEquals(1000, got.length());
+        assertArrayEquals((byte[]) data.toArray(), (byte[]) got.toArray());
+        assertTrue(cache.isView(got));
+        cache.release(got);
+        assertFalse(cache.isView(got));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testViewIsReadOnly() {
+        OffHeapCache<String> cache = new OffHeapCache<String>(new DirectBufferPool(SLAB, SLAB));
+        cache.put("a", makeData(16, 0));
+        RawArray got = cache.get("a");
+        new PrimitiveArray.Int4(got).put(0, 12345);
+    }
+
+    @Test
+    public void testEviction() {
+        // One slab of 16k blocks holds four entries
+        OffHeapCache<Integer> cache = new OffHeapCache<Integer>(new DirectBufferPool(SLAB, SLAB));
+        for (int i = 0; i < 4; i += 1) {
+            assertTrue(cache.put(i, makeData(10000, i)));
+        }
+        cache.release(cache.get(0));
+        assertTrue(cache.put(4, makeData(10000, 4)));
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.getEvictCount());
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+        // Too big for the pool at all
+        assertFalse(cache.put(5, makeData(2 * SLAB, 0)));
+    }
+
+    @Test
+    public void testViewPinsEvictedBlock() {
+        DirectBufferPool pool = new DirectBufferPool(SLAB, SLAB);
+        OffHeapCache<Integer> cache = new OffHeapCache<Integer>(pool);
+        for (int i = 0; i < 4; i += 1) {
+            cache.put(i, makeData(10000, i));
+        }
+        RawArray got = cache.get(0);
+        RawArray slice = got.slice(100, 200);
+        byte[] expected = (byte[]) makeData(10000, 0).slice(100, 200).toArray();
+        // Evicts every entry, but the block entry 0 was in can't be handed
+        // out again while it's viewed
+        for (int i = 10; i < 14; i += 1) {
+            cache.put(i, makeData(10000, i));
+        }
+        assertNull(cache.get(0));
+        assertEquals(3, cache.size());
+        assertEquals(SLAB, pool.getReservedBytes());
+        assertArrayEquals(expected, (byte[]) slice.toArray());
+        assertEquals(4 * 16384, pool.getAllocatedBytes());
+        cache.release(got);
+        assertEquals(3 * 16384, pool.getAllocatedBytes());
+    }
+}
@@ -0,0 +1,141 @@
+package edu.vanderbilt.accre.laurelin.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+
+public class SharedBasketCacheTest {
+    private static final long CACHE_BYTES = 4 * 1024 * 1024;
+    private Path path;
+
+    private static RawArray makeData(int length, int seed) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i += 1) {
+            buf.put(i, (byte) (i * 31 + seed));
+        }
+        return new RawArray(buf);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("laurelin-shared", ".cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        SharedBasketCache cache = SharedBasketCache.open(path, CACHE_BYTES);
+        RawArray data = makeData(5000, 1);
+        assertNull(cache.get("root://a.root", 1000, 1, 100));
+        cache.put("root://a.root", 1000, 1, 100, data);
+        assertArrayEquals((byte[]) data.toArray(), (byte[]) cache.get("root://a.root", 1000, 1, 100).toArray());
+        // Same offset in another file is a different basket
+        assertNull(cache.get("root://b.root", 1000, 1, 100));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testSharedBetweenMappings() throws IOException {
+        SharedBasketCache writer = SharedBasketCache.open(path, CACHE_BYTES);
+        // The existing geometry wins over the requested size
+        SharedBasketCache reader = SharedBasketCache.open(path, 2 * CACHE_BYTES);
+        assertEquals(writer.getDataBytes(), reader.getDataBytes());
+        writer.put("a.root", 1000, 1, 7, makeData(100, 7));
+        assertArrayEquals((byte[]) makeData(100, 7).toArray(), (byte[]) reader.get("a.root", 1000, 1, 7).toArray());
+    }
+
+    @Test
+    public void testRingWraps() throws IOException {
+        SharedBasketCache cache = SharedBasketCache.open(path, CACHE_BYTES);
+        int entry = (int) (cache.getDataBytes() / 8);
+        for (int i = 0; i < 20; i += 1) {
+            cache.put("a.root", 1000, 1, i, makeData(entry, i));
+        }
+        // Overwritten by the ring, so it must not be returned
+        assertNull(cache.get("a.root", 1000, 1, 0));
+        RawArray last = cache.get("a.root", 1000, 1, 19);
+        assertNotNull(last);
+        assertArrayEquals((byte[]) makeData(entry, 19).toArray(), (byte[]) last.toArray());
+    }
+
+    @Test
+    public void testRewrittenFileMisses() throws IOException {
+        SharedBasketCache cache = SharedBasketCache.open(path, CACHE_BYTES);
+        cache.put("a.root", 1000, 1, 100, makeData(500, 1));
+        assertNull(cache.get("a.root", 1000, 2, 100));
+        assertNull(cache.get("a.root", 2000, 1, 100));
+        // The new version replaces the old one
+        cache.put("a.root", 1000, 2, 100, makeData(500, 2));
+        assertArrayEquals((byte[]) makeData(500, 2).toArray(), (byte[]) cache.get("a.root", 1000, 2, 100).toArray());
+        assertNull(cache.get("a.root", 1000, 1, 100));
+    }
+
+    @Test
+    public void testHalfWrittenSlotReclaimed() throws IOException {
+        SharedBasketCache cache = SharedBasketCache.open(path, CACHE_BYTES);
+        cache.put("a.root", 1000, 1, 100, makeData(500, 1));
+        cache.corruptForTest("a.root", 100);
+        // A new mapping, like a JVM started after the writer died
+        SharedBasketCache other = SharedBasketCache.open(path, CACHE_BYTES);
+        assertNull(other.get("a.root", 1000, 1, 100));
+        assertEquals(1, other.getReclaimCount());
+        other.put("a.root", 1000, 1, 100, makeData(500, 3));
+        assertArrayEquals((byte[]) makeData(500, 3).toArray(), (byte[]) cache.get("a.root", 1000, 1, 100).toArray());
+    }
+
+    /**
+     * Entry point for the second JVM in testTwoJVMs. Checks the entries the
+     * test wrote, then adds one of its own
+     */
+    public static void main(String[] args) throws IOException {
+        SharedBasketCache cache = SharedBasketCache.open(Paths.get(args[0]), CACHE_BYTES);
+        for (int i = 0; i < 10; i += 1) {
+            RawArray got = cache.get("a.root", 1000, 1, i);
+            if ((got == null) || !ByteBuffer.wrap((byte[]) got.toArray()).equals(ByteBuffer.wrap((byte[]) makeData(1000 + i, i).toArray()))) {
+                System.exit(1);
+            }
+        }
+        cache.put("b.root", 1000, 1, 42, makeData(300, 42));
+        System.exit(0);
+    }
+
+    @Test
+    public void testTwoJVMs() throws IOException, InterruptedException {
+        SharedBasketCache cache = SharedBasketCache.open(path, CACHE_BYTES);
+        for (int i = 0; i < 10; i += 1) {
+            cache.put("a.root", 1000, 1, i, makeData(1000 + i, i));
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedBasketCacheTest.class.getName(), path.toString())
+                .redirectError(new File("/dev/null"))
+                .redirectOutput(new File("/dev/null"))
+                .start();
+        assumeTrue(child.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, child.exitValue());
+        assertArrayEquals((byte[]) makeData(300, 42).toArray(), (byte[]) cache.get("b.root", 1000, 1, 42).toArray());
+    }
+}
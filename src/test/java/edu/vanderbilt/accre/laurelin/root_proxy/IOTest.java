@@ -3,6 +3,7 @@ package edu.vanderbilt.accre.laurelin.root_proxy;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
@@ -16,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -61,6 +63,19 @@ public class IOTest {
         }
     }
 
+    @Test
+    public void readAsyncNIOFile() throws Exception {
+        int[] offs = {0, 16, 2000, 16000};
+        int[] lens = {10000, 16, 20, 32};
+        FileInterface file = IOFactory.openForRead(testfile);
+
+        Future<ByteBuffer>[] futures = file.readvAsync(offs, lens);
+        for (int x = 0; x < offs.length; x += 1) {
+            assertArrayEquals(futures[x].get().array(), getTestBytes(offs[x], lens[x]).array());
+            assertArrayEquals(file.readAsync(offs[x], lens[x]).get().array(), getTestBytes(offs[x], lens[x]).array());
+        }
+    }
+
     @Test
     public void readHadoopFile() throws Exception {
         int[] offs = {0, 16, 2000, 16000};
@@ -74,6 +89,33 @@ public class IOTest {
         }
     }
 
+    @Test
+    public void readHadoopFileKnownStatus() throws Exception {
+        String path = "file://" + Paths.get(testfile).toAbsolutePath();
+        long length = Files.size(Paths.get(testfile));
+        long modified = Files.getLastModifiedTime(Paths.get(testfile)).toMillis();
+        // Trusted without asking the filesystem
+        FileInterface file = new HadoopFile(path, new IOFactory.KnownStatus(length + 1, modified));
+        assertEquals(length + 1, file.getLimit());
+        assertArrayEquals(getTestBytes(16, 32).array(), file.read(16, 32).array());
+        file.close();
+
+        // A read that comes up short checks whether the file changed
+        file = new HadoopFile(path, new IOFactory.KnownStatus(length + 100, modified - 1000));
+        try {
+            file.read(length - 10, 50);
+            fail("Should have noticed the file changed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("changed"));
+        }
+        file.close();
+
+        // Without a known status, the length is looked up
+        file = new HadoopFile(path);
+        assertEquals(length, file.getLimit());
+        file.close();
+    }
+
     @Test
     public void readFromRootFile() throws Exception {
         int[] offs = {0, 16, 2000, 16000};
@@ -310,6 +352,39 @@ public class IOTest {
         assertPathListsSame("explicit_one", new String[] { "testdata/globtest/1/2/1_2_1.root" }, paths);
     }
 
+    @Test
+    public void resolvePathList_serial() throws IOException {
+        IOFactory.configureListing(1, 0);
+        try {
+            List<org.apache.hadoop.fs.Path> paths = resolveHelper("testdata/globtest/{1,2,3}");
+            assertPathListsSame("serial", allGlobFiles, paths);
+        } finally {
+            IOFactory.configureListing(16, 0);
+        }
+    }
+
+    @Test
+    public void resolvePathList_cached() throws IOException {
+        Path dir = Files.createTempDirectory("laurelin-listing");
+        Path first = dir.resolve("first.root");
+        Path second = dir.resolve("second.root");
+        Files.createFile(first);
+        IOFactory.configureListing(16, 60 * 1000);
+        try {
+            assertEquals(1, resolveHelper(dir.toString()).size());
+            // The listing is reused, so a new file isn't noticed until it expires
+            Files.createFile(second);
+            assertEquals(1, resolveHelper(dir.toString()).size());
+            IOFactory.configureListing(16, 0);
+            assertEquals(2, resolveHelper(dir.toString()).size());
+        } finally {
+            IOFactory.configureListing(16, 0);
+            Files.deleteIfExists(first);
+            Files.deleteIfExists(second);
+            Files.delete(dir);
+        }
+    }
+
     @Test
     public void resolvePathList_explicit_one() throws IOException {
         List<org.apache.hadoop.fs.Path> paths = resolveHelper("testdata/globtest/1/2/1_2_1.root");
@@ -1,9 +1,16 @@
 package edu.vanderbilt.accre.laurelin.root_proxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -129,4 +136,184 @@ public class TestROOTFileCache {
 
     }
 
+    private static void waitForPreOpen(ROOTFileCache cache, long count) throws InterruptedException {
+        for (int i = 0; (i < 1000) && (cache.getPreOpenCount() != count); i += 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, cache.getPreOpenCount());
+    }
+
+    @Test
+    public void testPreOpen() throws IOException, InterruptedException {
+        TestTicker testTicker = new TestTicker();
+        ROOTFileCache cache = new ROOTFileCache(testTicker);
+        cache.preOpen(Arrays.asList("testdata/stdvector.root", "testdata/uproot-foriter.root"));
+        waitForPreOpen(cache, 2);
+        assertEquals(2, cache.getOpenCount());
+
+        // Asking for a file hands over the pre-opened one
+        ROOTFile ret = cache.getROOTFile("testdata/stdvector.root");
+        assertEquals(1, cache.getPreOpenCount());
+        assertEquals(2, cache.getOpenCount());
+        assertNotNull(ret.getFileInterface());
+
+        // Already open, so nothing more to do
+        cache.preOpen(Arrays.asList("testdata/stdvector.root"));
+        assertEquals(1, cache.getPreOpenCount());
+
+        // Files nobody asks for are let go after the timeout
+        long sec_to_nsec = 1000000000;
+        testTicker.write(365 * 24 * 60 * 60 * sec_to_nsec);
+        cache.incrementalCleanup();
+        assertEquals(0, cache.getPreOpenCount());
+    }
+
+    @Test
+    public void testConcurrentOpen() throws Exception {
+        ROOTFileCache cache = new ROOTFileCache(new TestTicker());
+        String[] paths = {"testdata/stdvector.root", "testdata/uproot-foriter.root"};
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ROOTFile>> futures = new ArrayList<Future<ROOTFile>>();
+            for (int i = 0; i < 64; i += 1) {
+                String path = paths[i % paths.length];
+                futures.add(pool.submit(() -> cache.getROOTFile(path)));
+            }
+            // Every caller of a path gets the same ROOTFile
+            for (int i = 0; i < futures.size(); i += 1) {
+                assertSame(futures.get(i % paths.length).get(), futures.get(i).get());
+            }
+            assertEquals(2, cache.getOpenCount());
+            assertEquals(2, cache.getPhantomReferenceCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void release(ROOTFileCache cache, String path) {
+        cache.forciblyInvalidateOpenFile(path);
+        System.gc();
+        cache.incrementalCleanup();
+    }
+
+    @Test
+    public void testMaxOpenFiles() throws IOException {
+        TestTicker testTicker = new TestTicker();
+        ROOTFileCache cache = new ROOTFileCache(testTicker);
+        cache.configure(60 * 1000, 1);
+        String pathA = "testdata/stdvector.root";
+        String pathB = "testdata/uproot-foriter.root";
+
+        ROOTFile ret = cache.getROOTFile(pathA);
+        assertEquals(1, cache.getOpenHandleCount());
+        ret = null;
+        release(cache, pathA);
+        assertEquals(1, cache.getTimedCloseCount());
+        assertEquals(1, cache.getOpenHandleCount());
+
+        // Opening another file closes the idle one early
+        ret = cache.getROOTFile(pathB);
+        assertEquals(1, cache.getOpenHandleCount());
+        assertEquals(0, cache.getTimedCloseCount());
+        assertEquals(1, cache.getEvictionCount());
+        ret = null;
+        release(cache, pathB);
+
+        // Coming back to the first file opens it again
+        ret = cache.getROOTFile(pathA);
+        assertEquals(3, cache.getHandleOpenCount());
+        assertEquals(1, cache.getReopenCount());
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(1, cache.getOpenHandleCount());
+        ret = null;
+        release(cache, pathA);
+
+        // ... but an idle handle is reused
+        ret = cache.getROOTFile(pathA);
+        assertEquals(3, cache.getHandleOpenCount());
+        assertEquals(1, cache.getReviveCount());
+
+        // A shorter linger closes idle handles sooner
+        cache.configure(1000, 0);
+        ret = null;
+        release(cache, pathA);
+        assertEquals(1, cache.getTimedCloseCount());
+        long sec_to_nsec = 1000000000;
+        testTicker.write(2 * sec_to_nsec);
+        cache.incrementalCleanup();
+        assertEquals(0, cache.getTimedCloseCount());
+        assertEquals(0, cache.getOpenHandleCount());
+        assertEquals(1, cache.getTimeoutCount());
+        assertEquals(2, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testConfigureOnce() throws IOException {
+        TestTicker testTicker = new TestTicker();
+        ROOTFileCache cache = new ROOTFileCache(testTicker);
+        String pathA = "testdata/stdvector.root";
+        String pathB = "testdata/uproot-foriter.root";
+        cache.configureOnce(60 * 1000, 0);
+        cache.configureOnce(1000, 1);
+        // Neither a default nor a different value from a later task changes
+        // the first one
+        cache.configureOnce(60 * 1000, 0);
+        cache.configureOnce(30 * 1000, 2);
+
+        ROOTFile ret = cache.getROOTFile(pathA);
+        ret = null;
+        release(cache, pathA);
+        ret = cache.getROOTFile(pathB);
+        assertEquals(1, cache.getOpenHandleCount());
+        assertEquals(1, cache.getEvictionCount());
+        ret = null;
+        release(cache, pathB);
+        long sec_to_nsec = 1000000000;
+        testTicker.write(2 * sec_to_nsec);
+        cache.incrementalCleanup();
+        assertEquals(0, cache.getOpenHandleCount());
+        assertEquals(1, cache.getTimeoutCount());
+    }
+
+    @Test
+    public void testEvictLeastRecent() throws IOException, InterruptedException {
+        TestTicker testTicker = new TestTicker();
+        ROOTFileCache cache = new ROOTFileCache(testTicker);
+        String pathA = "testdata/stdvector.root";
+        String pathB = "testdata/uproot-foriter.root";
+
+        // B goes idle last but expires first
+        cache.configure(60 * 1000, 0);
+        ROOTFile ret = cache.getROOTFile(pathA);
+        ret = null;
+        release(cache, pathA);
+        cache.configure(1000, 0);
+        ret = cache.getROOTFile(pathB);
+        ret = null;
+        release(cache, pathB);
+        assertEquals(2, cache.getTimedCloseCount());
+
+        // ... but A is the one closed to make room
+        cache.configure(1000, 1);
+        assertEquals(1, cache.getEvictionCount());
+        ret = cache.getROOTFile(pathB);
+        assertEquals(2, cache.getHandleOpenCount());
+        assertEquals(1, cache.getReviveCount());
+        ret = null;
+        release(cache, pathB);
+
+        // No more files are pre-opened than could be kept open, and idle
+        // handles are closed to make room for them
+        cache.preOpen(Arrays.asList(pathA, pathB));
+        waitForPreOpen(cache, 1);
+        assertEquals(1, cache.getPreOpenCount());
+        assertEquals(1, cache.getOpenHandleCount());
+        assertEquals(2, cache.getEvictionCount());
+
+        // ... but they aren't counted against the limit themselves
+        ret = cache.getROOTFile(pathB);
+        assertEquals(1, cache.getPreOpenCount());
+        assertEquals(2, cache.getOpenHandleCount());
+        assertEquals(2, cache.getEvictionCount());
+    }
 }
@@ -0,0 +1,188 @@
+package edu.vanderbilt.accre.laurelin.root_proxy.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ReadAheadTest {
+    private static final long FILE_BYTES = 1024 * 1024;
+
+    /**
+     * Completes fetches immediately with bytes equal to (offset % 251)
+     */
+    private static class FakeFetcher implements ReadAhead.Fetcher {
+        List<long[]> fetches = new ArrayList<long[]>();
+
+        @Override
+        public CompletableFuture<ByteBuffer> fetch(long offset, long len) {
+            fetches.add(new long[] {offset, len});
+            ByteBuffer ret = ByteBuffer.allocate((int) len);
+            for (int i = 0; i < len; i += 1) {
+                ret.put(i, (byte) ((offset + i) % 251));
+            }
+            return CompletableFuture.completedFuture(ret);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ReadAhead.configure(64 * 1024, 0);
+    }
+
+    @Test
+    public void testSequential() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        // The first read starts a stream, the second shows it's sequential
+        assertNull(readAhead.read(0, 1000));
+        assertEquals(0, fetcher.fetches.size());
+        assertNull(readAhead.read(1000, 1000));
+        assertEquals(1, fetcher.fetches.size());
+        assertEquals(2000, fetcher.fetches.get(0)[0]);
+        assertEquals(8192, fetcher.fetches.get(0)[1]);
+        for (long off = 2000; off < 200 * 1000; off += 1000) {
+            ByteBuffer got = readAhead.read(off, 1000);
+            assertNotNull("read at " + off, got);
+            assertEquals(1000, got.remaining());
+            assertEquals((byte) (off % 251), got.get(0));
+            assertEquals((byte) ((off + 999) % 251), got.get(999));
+        }
+        // Windows grew to the maximum instead of fetching 8k at a time
+        assertEquals(64 * 1024, fetcher.fetches.get(fetcher.fetches.size() - 1)[1]);
+        assertEquals(198, readAhead.getHitCount());
+    }
+
+    @Test
+    public void testRandomNotFetched() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        for (int i = 0; i < 50; i += 1) {
+            assertNull(readAhead.read((i * 7919L * 13) % (FILE_BYTES - 100), 100));
+        }
+        assertEquals(0, fetcher.fetches.size());
+    }
+
+    @Test
+    public void testInterleavedStreams() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        int hits = 0;
+        for (long i = 0; i < 50; i += 1) {
+            if (readAhead.read(i * 500, 500) != null) {
+                hits += 1;
+            }
+            if (readAhead.read(500 * 1000 + i * 500, 500) != null) {
+                hits += 1;
+            }
+        }
+        assertEquals(96, hits);
+    }
+
+    @Test
+    public void testROOTFile() throws Exception {
+        ReadAhead.configure(1024, 16 * 1024);
+        String path = "testdata/uproot-small-flat-tree.root";
+        try (FileInterface direct = IOFactory.openForRead(path);
+                ROOTFile file = ROOTFile.getInputFile(path)) {
+            long limit = file.getLimit();
+            for (long off = 0; off + 700 < limit; off += 700) {
+                ByteBuffer expected = direct.read(off, 700);
+                expected.position(0);
+                assertEquals("read at " + off, expected, file.read(off, 700));
+            }
+        }
+    }
+
+    @Test
+    public void testCopiedOutOfWindow() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        readAhead.read(0, 1000);
+        readAhead.read(1000, 1000);
+        ByteBuffer got = readAhead.read(2000, 1000);
+        // Doesn't hold on to the 8k window
+        assertEquals(1000, got.capacity());
+        assertEquals((byte) (2000 % 251), got.get(0));
+    }
+
+    @Test
+    public void testHitBeforeSequential() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        // A stream ending just before the window of a later one
+        readAhead.read(1900, 50);
+        readAhead.read(0, 1000);
+        readAhead.read(1000, 1000);
+        assertEquals(1, fetcher.fetches.size());
+        // Looks sequential to the first stream, but is already fetched
+        assertNotNull(readAhead.read(2000, 100));
+        assertEquals(1, fetcher.fetches.size());
+    }
+
+    @Test
+    public void testNoOverlappingFetch() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        readAhead.read(0, 1000);
+        readAhead.read(1000, 1000);
+        readAhead.read(1500, 100);
+        // Sequential to the second stream, whose next bytes the first stream
+        // already fetched
+        assertNull(readAhead.read(1700, 800));
+        assertEquals(1, fetcher.fetches.size());
+    }
+
+    @Test
+    public void testDropWindows() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, FILE_BYTES);
+        readAhead.read(0, 1000);
+        readAhead.read(1000, 1000);
+        assertEquals(8192, readAhead.getHeldBytes());
+        assertEquals(8192, readAhead.dropWindows(1));
+        assertEquals(0, readAhead.getHeldBytes());
+        // The stream continues, fetching again
+        assertNull(readAhead.read(2000, 1000));
+        assertNotNull(readAhead.read(3000, 1000));
+    }
+
+    @Test
+    public void testConfigureOnce() {
+        ReadAhead.configureOnce(4096, 0);
+        assertFalse(ReadAhead.isEnabled());
+        ReadAhead.configureOnce(4096, 64 * 1024);
+        assertTrue(ReadAhead.isEnabled());
+        // A later task without read-ahead doesn't turn it off
+        ReadAhead.configureOnce(4096, 0);
+        assertTrue(ReadAhead.isEnabled());
+    }
+
+    @Test
+    public void testStopsAtEndOfFile() {
+        ReadAhead.configure(4096, 64 * 1024);
+        FakeFetcher fetcher = new FakeFetcher();
+        ReadAhead readAhead = new ReadAhead(fetcher, 3000);
+        readAhead.read(0, 1000);
+        readAhead.read(1000, 1000);
+        assertEquals(1000, fetcher.fetches.get(0)[1]);
+        assertNotNull(readAhead.read(2000, 1000));
+        assertEquals(1, fetcher.fetches.size());
+    }
+}
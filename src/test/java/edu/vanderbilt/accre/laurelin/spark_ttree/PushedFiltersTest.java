@@ -0,0 +1,90 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.spark.sql.execution.vectorized.OnHeapColumnVector;
+import org.apache.spark.sql.sources.And;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.IsNotNull;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+import org.apache.spark.sql.sources.Not;
+import org.apache.spark.sql.sources.Or;
+import org.apache.spark.sql.sources.StringStartsWith;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.junit.Test;
+
+public class PushedFiltersTest {
+    private static final StructType SCHEMA = new StructType()
+            .add("i", DataTypes.IntegerType)
+            .add("d", DataTypes.DoubleType)
+            .add("b", DataTypes.BooleanType)
+            .add("arr", DataTypes.createArrayType(DataTypes.IntegerType));
+
+    private Map<String, ColumnVector> getColumns() {
+        OnHeapColumnVector ints = new OnHeapColumnVector(6, DataTypes.IntegerType);
+        OnHeapColumnVector doubles = new OnHeapColumnVector(6, DataTypes.DoubleType);
+        OnHeapColumnVector bools = new OnHeapColumnVector(6, DataTypes.BooleanType);
+        double[] dvals = new double[] {-1.5, 0.0, -0.0, Double.NaN, 2.5, 10};
+        for (int i = 0; i < 6; i += 1) {
+            ints.putInt(i, i);
+            doubles.putDouble(i, dvals[i]);
+            bools.putBoolean(i, i % 2 == 0);
+        }
+        Map<String, ColumnVector> ret = new HashMap<String, ColumnVector>();
+        ret.put("i", ints);
+        ret.put("d", doubles);
+        ret.put("b", bools);
+        return ret;
+    }
+
+    private int[] select(Filter... filters) {
+        assertEquals(filters.length, PushedFilters.getSupported(filters, SCHEMA).length);
+        return PushedFilters.select(filters, getColumns(), 6);
+    }
+
+    @Test
+    public void testSupported() {
+        assertEquals(0, PushedFilters.getSupported(new Filter[] {
+            new StringStartsWith("i", "1"),
+            new EqualTo("arr", 1),
+            new EqualTo("missing", 1),
+            new And(new EqualTo("i", 1), new StringStartsWith("i", "1")),
+        }, SCHEMA).length);
+    }
+
+    @Test
+    public void testComparisons() {
+        assertArrayEquals(new int[] {3, 4, 5}, select(new GreaterThan("i", 2)));
+        assertArrayEquals(new int[] {0, 1, 2}, select(new LessThanOrEqual("i", 2)));
+        assertArrayEquals(new int[] {1, 4}, select(new In("i", new Object[] {1, 4, 7})));
+        assertArrayEquals(new int[] {0, 2, 4}, select(new EqualTo("b", true)));
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, select(new IsNotNull("i")));
+    }
+
+    @Test
+    public void testCombinations() {
+        assertArrayEquals(new int[] {2, 3}, select(new GreaterThan("i", 1), new LessThanOrEqual("i", 3)));
+        assertArrayEquals(new int[] {0, 5}, select(new Or(new EqualTo("i", 0), new GreaterThan("i", 4))));
+        assertArrayEquals(new int[] {0, 1, 2}, select(new Not(new GreaterThan("i", 2))));
+    }
+
+    @Test
+    public void testDoubles() {
+        // NaN sorts above everything in Spark
+        assertArrayEquals(new int[] {3, 5}, select(new GreaterThan("d", 5.0)));
+        // Spark versions disagree about -0.0, so it's never dropped
+        assertArrayEquals(new int[] {0, 1, 2}, select(new LessThanOrEqual("d", -0.0)));
+        assertArrayEquals(new int[] {1, 2}, select(new EqualTo("d", 0.0)));
+        // Mismatched literal types can't be decided, so nothing is dropped
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, select(new EqualTo("d", 1)));
+    }
+}
@@ -2,6 +2,7 @@ package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -15,10 +16,55 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.junit.Before;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import edu.vanderbilt.accre.laurelin.CountingFile;
+import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+import edu.vanderbilt.accre.laurelin.root_proxy.TFile;
+import edu.vanderbilt.accre.laurelin.root_proxy.TTree;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.IOFactory;
+import edu.vanderbilt.accre.laurelin.root_proxy.io.ROOTFile;
+
 public class SlimTBranchTest {
+    private static final String testPath = "testdata/uproot-small-flat-tree.root";
+    private TTree currTree;
+    private ROOTFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        TFile currFile = TFile.getFromFile(testPath);
+        currTree = new TTree(currFile.getProxy("tree"), currFile);
+        file = ROOTFile.getInputFile(testPath);
+    }
+
+    private interface BasketCheck {
+        void check(TBranch branch, int basketid) throws IOException;
+    }
+
+    /**
+     * Runs check against every basket of every branch in the test tree
+     */
+    private void forEachBasket(BasketCheck check) throws IOException {
+        for (TBranch branch: currTree.getBranches()) {
+            for (int i = 0; i < branch.getBasketCount(); i += 1) {
+                check.check(branch, i);
+            }
+        }
+    }
+
+    /**
+     * @return a fresh handle to the test file whose reads are counted
+     */
+    private static ROOTFile countedFile(CountingFile counter) throws IOException {
+        return ROOTFile.getInputFile(testPath, counter);
+    }
 
     @Test
     public void test() throws ClassNotFoundException, IOException, NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
@@ -64,6 +110,129 @@ public class SlimTBranchTest {
         assertEquals(3, end.getStoredBasketCount());
     }
 
+    @Test
+    public void testPrefetchPayload() throws IOException {
+        forEachBasket((branch, i) -> {
+            SlimTBasket direct = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i]);
+            SlimTBasket prefetched = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i]);
+            prefetched.prefetchPayload(file);
+            assertEquals(direct.getPayload(file), prefetched.getPayload(file));
+            // Prefetched bytes are only used once, later reads go to the file
+            assertEquals(direct.getPayload(file), prefetched.getPayload(file));
+        });
+    }
+
+    @Test
+    public void testCombinedKeyRead() throws IOException {
+        forEachBasket((branch, i) -> {
+            CountingFile counter = new CountingFile(IOFactory.openForRead(testPath));
+            ROOTFile countedFile = countedFile(counter);
+            SlimTBasket direct = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i]);
+            SlimTBasket combined = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i], branch.getBasketBytes()[i]);
+            assertEquals(direct.getPayload(file), combined.getPayload(countedFile));
+            // The key came with the payload
+            assertEquals(1, counter.getReads());
+            assertEquals(direct.getKeyLen(), combined.getKeyLen());
+            assertEquals(direct.getLast(), combined.getLast());
+            // ...but only once
+            assertEquals(direct.readRaw(file), combined.readRaw(countedFile));
+            assertEquals(2, counter.getReads());
+            // Bytes found in a cache carry the key too
+            SlimTBasket cached = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i], branch.getBasketBytes()[i]);
+            cached.initializeMetadata(file, direct.readRaw(file));
+            assertEquals(direct.getObjLen(), cached.getObjLen());
+            assertEquals(direct.getLast(), cached.getLast());
+        });
+    }
+
+    @Test
+    public void testMetadataReadsOnlyKey() throws IOException {
+        forEachBasket((branch, i) -> {
+            SlimTBasket direct = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i]);
+            SlimTBasket sized = SlimTBasket.makeLazyBasket(branch.getBasketSeek()[i], branch.getBasketBytes()[i]);
+            // Readers leave the key of a sized basket to the payload read...
+            assertFalse(direct.readsKeyWithPayload());
+            assertTrue(sized.readsKeyWithPayload());
+            // ...but one asked for explicitly doesn't drag the payload along
+            sized.initializeMetadata(file);
+            direct.initializeMetadata(file);
+            assertFalse(sized.readsKeyWithPayload());
+            assertEquals(direct.getKeyLen(), sized.getKeyLen());
+            CountingFile counter = new CountingFile(IOFactory.openForRead(testPath));
+            assertEquals(direct.readRaw(file), sized.readRaw(countedFile(counter)));
+            assertEquals(1, counter.getReads());
+        });
+    }
+
+    @Test
+    public void testEagerMetadataRoundTrip() throws IOException, ClassNotFoundException {
+        for (TBranch branch: currTree.getBranches()) {
+            SlimTBranch eager = roundTrip(SlimTBranch.getFromTBranch(branch, true));
+            SlimTBranch lazy = roundTrip(SlimTBranch.getFromTBranch(branch, false));
+            for (int i = 0; i < branch.getBasketCount(); i += 1) {
+                SlimTBasket eagerBasket = eager.getBasket(i);
+                SlimTBasket lazyBasket = lazy.getBasket(i);
+                assertTrue(eagerBasket.hasMetadata());
+                assertFalse(lazyBasket.hasMetadata());
+                lazyBasket.initializeMetadata(file);
+                assertEquals(lazyBasket.getKeyLen(), eagerBasket.getKeyLen());
+                assertEquals(lazyBasket.getCompressedLen(), eagerBasket.getCompressedLen());
+                assertEquals(lazyBasket.getObjLen(), eagerBasket.getObjLen());
+                assertEquals(lazyBasket.getLast(), eagerBasket.getLast());
+                assertEquals(lazyBasket.getPayload(file), eagerBasket.getPayload(file));
+            }
+        }
+    }
+
+    @Test
+    public void testCodec() throws IOException {
+        Map<String, SlimTBranch> branches = new HashMap<String, SlimTBranch>();
+        for (TBranch branch: currTree.getBranches()) {
+            boolean eager = (branches.size() % 2) == 0;
+            branches.put(branch.getName(), SlimTBranch.getFromTBranch(branch, eager));
+        }
+        SlimTBranch trimmed = new SlimTBranch("none", new long[] {0, 10, 22, 30, 41}, TBranch.ArrayDescriptor.newVarArray("counter", 10));
+        for (int i = 0; i < 4; i += 1) {
+            trimmed.addBasket(i, SlimTBasket.makeLazyBasket(1000 - i * 100, 50));
+        }
+        branches.put("trimmed", trimmed.copyAndTrim(10, 25));
+
+        Output output = new Output(4096, -1);
+        SlimTBranchCodec.write(output, branches);
+        Map<String, SlimTBranch> decoded = SlimTBranchCodec.read(new Input(output.toBytes()));
+        assertEquals(branches.keySet(), decoded.keySet());
+        for (String name: branches.keySet()) {
+            SlimTBranch before = branches.get(name);
+            SlimTBranch after = decoded.get(name);
+            assertEquals(before.getPath(), after.getPath());
+            assertEquals(before.getStoredBasketCount(), after.getStoredBasketCount());
+            if (before.getArrayDesc() == null) {
+                assertEquals(null, after.getArrayDesc());
+            } else {
+                assertEquals(before.getArrayDesc().isFixed(), after.getArrayDesc().isFixed());
+                assertEquals(before.getArrayDesc().getFixedLength(), after.getArrayDesc().getFixedLength());
+                assertEquals(before.getArrayDesc().getBranchName(), after.getArrayDesc().getBranchName());
+                assertEquals(before.getArrayDesc().getSkipBytes(), after.getArrayDesc().getSkipBytes());
+            }
+            for (int i = before.getBasketStart(); i < before.getBasketEnd(); i += 1) {
+                SlimTBasket a = before.getBasket(i);
+                SlimTBasket b = after.getBasket(i);
+                // Only the entry ranges of the stored baskets are shipped
+                assertEquals(before.getBasketEntryOffsets()[i], after.getBasketEntryOffsets()[i]);
+                assertEquals(before.getBasketEntryOffsets()[i + 1], after.getBasketEntryOffsets()[i + 1]);
+                assertEquals(a.getOffset(), b.getOffset());
+                assertEquals(a.getBasketBytes(), b.getBasketBytes());
+                assertEquals(a.hasMetadata(), b.hasMetadata());
+                if (a.hasMetadata()) {
+                    assertEquals(a.getKeyLen(), b.getKeyLen());
+                    assertEquals(a.getCompressedLen(), b.getCompressedLen());
+                    assertEquals(a.getObjLen(), b.getObjLen());
+                    assertEquals(a.getLast(), b.getLast());
+                }
+            }
+        }
+    }
+
     public SlimTBranch roundTrip(SlimTBranch val) throws IOException, ClassNotFoundException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ByteArrayInputStream bis;
@@ -2,6 +2,9 @@ package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import static edu.vanderbilt.accre.laurelin.Helpers.getBigTestDataIfExists;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -177,6 +180,24 @@ public class TTreeColumnVectorTest {
                                         null);
     }
 
+    @Test
+    public void getLazyScalarVec() {
+        byte[][] payload = {intToBytes(new Integer[] {0,1,2,3,4,5,6,7,8,9})};
+        int[] keyCount = new int[1];
+        SlimTBranchInterface branch = new SlimTBranchStub(payload, null, null, new long[]{0,10}, null, 0) {
+            @Override
+            public SlimTBasket getBasket(int basketid) {
+                keyCount[0] += 1;
+                return super.getBasket(basketid);
+            }
+        };
+        TTreeColumnVector vec = new TTreeColumnVector(DataTypes.IntegerType, SimpleType.Int32, Dtype.INT4, basketCache, 2, 8, branch, null, null, true);
+        assertFalse(vec.isMaterialized());
+        assertEquals(0, keyCount[0]);
+        assertArrayEquals(new int[] {2,3,4,5,6,7}, vec.getInts(0, 6));
+        assertTrue(vec.isMaterialized());
+    }
+
     @Test
     public void getJaggedArrayVec() {
         // Exhaustively test the entry start/stop
@@ -32,6 +32,42 @@ public class TTreeDataSourceIntegrationTest {
         assertEquals(100, df.count());
     }
 
+    @Test
+    public void testFilterPushdown() {
+        long[] counts = new long[2];
+        String[] settings = new String[] {"true", "false"};
+        for (int i = 0; i < 2; i += 1) {
+            Dataset<Row> df = spark
+                    .read()
+                    .format("root")
+                    .option("tree",  "tree")
+                    .option("filterPushdown", settings[i])
+                    .load("testdata/uproot-small-flat-tree.root");
+            counts[i] = df.select("Int32", "SliceFloat32")
+                    .filter("Int32 > 89 AND Int32 != 95")
+                    .count();
+        }
+        assertEquals(9, counts[0]);
+        assertEquals(counts[1], counts[0]);
+    }
+
+    @Test
+    public void testBroadcastMetadata() {
+        long[] sums = new long[2];
+        String[] settings = new String[] {"true", "false"};
+        for (int i = 0; i < 2; i += 1) {
+            Dataset<Row> df = spark
+                    .read()
+                    .format("root")
+                    .option("tree",  "tree")
+                    .option("broadcastMetadata", settings[i])
+                    .load("testdata/uproot-small-flat-tree.root");
+            sums[i] = df.select("Int32").groupBy().sum("Int32").first().getLong(0);
+        }
+        assertEquals(4950, sums[0]);
+        assertEquals(sums[1], sums[0]);
+    }
+
     @Test
     public void testLoadNestedDataFrame() {
         Dataset<Row> df = spark
@@ -14,16 +14,27 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkContext;
 import org.apache.spark.serializer.KryoSerializer;
 import org.apache.spark.serializer.SerializerInstance;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.Or;
 import org.apache.spark.sql.types.ArrayType;
 import org.apache.spark.sql.types.BooleanType;
 import org.apache.spark.sql.types.ByteType;
@@ -157,6 +168,18 @@ public class TTreeDataSourceUnitTest {
         }
     }
 
+    private static Object roundTrip(Object x) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutput out = new ObjectOutputStream(bos)) {
+            out.writeObject(x);
+        }
+        try (ObjectInput in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
     private static int getSerializedSize(Object x) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutput out = null;
@@ -204,6 +227,296 @@ public class TTreeDataSourceUnitTest {
         }
     }
 
+    @Test
+    public void testLazyDecode() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("lazyDecode", "true");
+        LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+        Root source = new Root();
+        Reader reader = source.createTestReader(opts, null, true);
+        List<Partition> partitions = reader.planBatchInputPartitions();
+        PartitionReader partitionReader = partitions.get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        TTreeColumnVector column = (TTreeColumnVector) batch.column(0);
+        assertFalse(column.isMaterialized());
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            assertEquals(i, column.getInt(i));
+        }
+        assertTrue(column.isMaterialized());
+    }
+
+    @Test
+    public void testSharedCounter() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        optmap.put("lazyDecode", "true");
+        LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+        Root source = new Root();
+        Reader reader = source.createTestReader(opts, null, true);
+        StructType schema = reader.readSchema();
+        reader.pruneColumns(new StructType(new StructField[] {schema.apply("SliceInt32")}));
+        List<Partition> partitions = reader.planBatchInputPartitions();
+        // The counter is shipped even though it wasn't selected
+        assertTrue(partitions.get(0).slimBranches.containsKey("N"));
+        PartitionReader partitionReader = partitions.get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        TTreeColumnVector column = (TTreeColumnVector) batch.column(0);
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            assertEquals(i % 10, column.getArray(i).numElements());
+        }
+        // Only the counter has been read so far
+        assertFalse(column.isMaterialized());
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            for (int j = 0; j < i % 10; j += 1) {
+                assertEquals(i, column.getArray(i).getInt(j));
+            }
+        }
+        assertTrue(column.isMaterialized());
+    }
+
+    @Test
+    public void testCompressedTier() throws IOException {
+        BasketCache basketCache = BasketCache.getCache();
+        basketCache.clear();
+        long compressedMisses = basketCache.getCompressedMissCount();
+        long compressedHits = basketCache.getCompressedHitCount();
+        long hits = basketCache.getHitCount();
+        try {
+            Map<String, String> optmap = new HashMap<String, String>();
+            optmap.put("path", "testdata/uproot-small-flat-tree.root");
+            optmap.put("tree",  "tree");
+            optmap.put("compressedTier", "true");
+            LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+            for (int pass = 0; pass < 2; pass += 1) {
+                Root source = new Root();
+                Reader reader = source.createTestReader(opts, null, true);
+                StructType schema = reader.readSchema();
+                reader.pruneColumns(new StructType(new StructField[] {schema.apply("Int32")}));
+                PartitionReader partitionReader = reader.planBatchInputPartitions().get(0).createPartitionReader();
+                assertTrue(partitionReader.next());
+                ColumnarBatch batch = partitionReader.get();
+                for (int i = 0; i < batch.numRows(); i += 1) {
+                    assertEquals(i, batch.column(0).getInt(i));
+                }
+                partitionReader.close();
+            }
+            // The first pass filled the compressed tier, the second was
+            // served from the decompressed one
+            assertTrue(basketCache.getCompressedMissCount() > compressedMisses);
+            assertEquals(compressedHits, basketCache.getCompressedHitCount());
+            assertTrue(basketCache.getHitCount() > hits);
+        } finally {
+            basketCache.setTiered(false);
+        }
+    }
+
+    /**
+     * Reads the given columns twice, the second time from the basket cache.
+     * The first column has to be Int32
+     *
+     * @param eager Whether the planner fills in the basket metadata
+     * @param counted Which profiled reads to count
+     * @param columns Columns to read
+     * @return Number of counted reads each pass made of the file after
+     *         planning
+     */
+    private int[] countExecutorReads(boolean eager, Predicate<Storage> counted, String... columns) throws IOException {
+        List<Storage> accum = Collections.synchronizedList(new LinkedList<Storage>());
+        IOProfile.getInstance().setCB(e -> {
+            accum.add(e.getStorage());
+            return 0;
+        });
+        BasketCache.getCache().clear();
+        // A copy no other test has opened, so its ROOTFile is created with
+        // the profiler on and none of its pages are cached
+        Path copy = Files.createTempFile("laurelin-metadata", ".root");
+        Files.copy(Paths.get("testdata/uproot-small-flat-tree.root"), copy, StandardCopyOption.REPLACE_EXISTING);
+        int[] ret = new int[2];
+        try {
+            Map<String, String> optmap = new HashMap<String, String>();
+            optmap.put("path", copy.toString());
+            optmap.put("tree",  "tree");
+            optmap.put("eagerBasketMetadata", Boolean.toString(eager));
+            LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+            for (int pass = 0; pass < 2; pass += 1) {
+                Root source = new Root();
+                Reader reader = source.createTestReader(opts, null, true);
+                StructType schema = reader.readSchema();
+                StructField[] fields = new StructField[columns.length];
+                for (int i = 0; i < columns.length; i += 1) {
+                    fields[i] = schema.apply(columns[i]);
+                }
+                reader.pruneColumns(new StructType(fields));
+                // Go through serialization like a real executor would
+                Partition partition = (Partition) roundTrip(reader.planBatchInputPartitions().get(0));
+                int planned = accum.size();
+                PartitionReader partitionReader = partition.createPartitionReader();
+                assertTrue(partitionReader.next());
+                ColumnarBatch batch = partitionReader.get();
+                for (int i = 0; i < batch.numRows(); i += 1) {
+                    assertEquals(i, batch.column(0).getInt(i));
+                }
+                partitionReader.close();
+                synchronized (accum) {
+                    for (Storage s: accum.subList(planned, accum.size())) {
+                        if (counted.test(s) && (s.len > 0)) {
+                            ret[pass] += 1;
+                        }
+                    }
+                }
+            }
+        } finally {
+            IOProfile.getInstance().setCB(null);
+            Files.delete(copy);
+        }
+        return ret;
+    }
+
+    /*
+     * Compares the reads made by executors with and without basket metadata
+     * from the planner
+     */
+    @Test
+    public void testEagerBasketMetadata() throws IOException {
+        // Every read made after planning, whether or not it was served by
+        // the page cache
+        Predicate<Storage> counted = s -> s.type != Storage.TypeEnum.BASKET;
+        int[] lazy = countExecutorReads(false, counted, "Int32");
+        int[] eager = countExecutorReads(true, counted, "Int32");
+        // Lazy baskets read their keys along with the payload, so the
+        // planner's metadata doesn't save any reads of uncached baskets
+        assertEquals(eager[0], lazy[0]);
+        // Every basket is cached, so there's nothing left to read
+        assertEquals(0, eager[1]);
+        assertTrue(eager[1] <= lazy[1]);
+    }
+
+    /*
+     * Baskets without metadata from the planner must still cost one request
+     * each, since their keys can be read along with the payloads
+     */
+    @Test
+    public void testLazyBasketReadOnce() throws IOException {
+        String[] columns = new String[] {"Int32", "Float64", "ArrayFloat32"};
+        TFile currFile = TFile.getFromFile("testdata/uproot-small-flat-tree.root");
+        TTree currTree = new TTree(currFile.getProxy("tree"), currFile);
+        int baskets = 0;
+        for (TBranch branch: currTree.getBranches(columns)) {
+            baskets += branch.getBasketCount();
+        }
+        // One request to the file per basket...
+        int[] lower = countExecutorReads(false, s -> s.type == Storage.TypeEnum.LOWER, columns);
+        assertEquals(baskets, lower[0]);
+        assertEquals(0, lower[1]);
+        // ...and no separate key reads served by the page cache either
+        int[] all = countExecutorReads(false, s -> s.type != Storage.TypeEnum.BASKET, columns);
+        assertEquals(baskets, all[0]);
+    }
+
+    @Test
+    public void testPackedPartitions() throws IOException {
+        // Three small files with the same tree
+        Path dir = Files.createTempDirectory("laurelin-pack");
+        List<String> quoted = new LinkedList<String>();
+        for (int i = 0; i < 3; i += 1) {
+            Path copy = dir.resolve("small-" + i + ".root");
+            Files.copy(Paths.get("testdata/uproot-small-flat-tree.root"), copy);
+            copy.toFile().deleteOnExit();
+            quoted.add("\"" + copy + "\"");
+        }
+        dir.toFile().deleteOnExit();
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("paths", "[" + String.join(", ", quoted) + "]");
+        optmap.put("tree",  "tree");
+        optmap.put("packTargetBytes", Long.toString(64 * 1024 * 1024));
+        LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+        Root source = new Root();
+        Reader reader = source.createTestReader(opts, null, true);
+        StructType schema = reader.readSchema();
+        reader.pruneColumns(new StructType(new StructField[] {schema.apply("Int32")}));
+        List<Partition> partitions = reader.planBatchInputPartitions();
+        assertEquals(1, partitions.size());
+        assertEquals(3, partitions.get(0).getMembers().size());
+        assertTrue(partitions.get(0).getEstimatedBytes() > 0);
+
+        Partition partition = (Partition) roundTrip(partitions.get(0));
+        SerializerInstance serializerInstance = new KryoSerializer(new SparkConf()).newInstance();
+        ClassTag<Partition> ct = scala.reflect.ClassTag$.MODULE$.apply(Partition.class);
+        Partition kryoPartition = serializerInstance.deserialize(serializerInstance.serialize(partitions.get(0), ct), ct);
+        assertEquals(3, kryoPartition.getMembers().size());
+
+        PartitionReader partitionReader = partition.createPartitionReader();
+        for (int file = 0; file < 3; file += 1) {
+            assertTrue(partitionReader.next());
+            ColumnarBatch batch = partitionReader.get();
+            assertEquals(100, batch.numRows());
+            for (int i = 0; i < batch.numRows(); i += 1) {
+                assertEquals(i, batch.column(0).getInt(i));
+            }
+        }
+        assertFalse(partitionReader.next());
+        partitionReader.close();
+
+        // Files bigger than the target get a task each
+        optmap.put("packTargetBytes", "1");
+        reader = source.createTestReader(LaurelinDSConfig.wrap(optmap), null, true);
+        assertEquals(3, reader.planBatchInputPartitions().size());
+    }
+
+    private ColumnarBatch readWithFilters(Filter[] filters, String... columns) throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+        Root source = new Root();
+        Reader reader = source.createTestReader(opts, null, true);
+        StructType schema = reader.readSchema();
+        assertEquals(filters.length, reader.pushFilters(filters).length);
+        StructField[] fields = new StructField[columns.length];
+        for (int i = 0; i < columns.length; i += 1) {
+            fields[i] = schema.apply(columns[i]);
+        }
+        reader.pruneColumns(new StructType(fields));
+        List<Partition> partitions = reader.planBatchInputPartitions();
+        assertEquals(1, partitions.size());
+        PartitionReader partitionReader = partitions.get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        return partitionReader.get();
+    }
+
+    @Test
+    public void testPushedFilters() throws IOException {
+        String[] columns = new String[] {"Int32", "Int64", "Float64", "SliceInt32"};
+        ColumnarBatch all = readWithFilters(new Filter[0], columns);
+        ColumnarBatch filtered = readWithFilters(new Filter[] {
+            new Or(new GreaterThanOrEqual("Int32", 95), new LessThan("Int32", 3))
+        }, columns);
+        assertEquals(100, all.numRows());
+        assertEquals(8, filtered.numRows());
+        int[] expected = new int[] {0, 1, 2, 95, 96, 97, 98, 99};
+        for (int i = 0; i < expected.length; i += 1) {
+            int row = expected[i];
+            assertEquals(all.column(0).getInt(row), filtered.column(0).getInt(i));
+            assertEquals(all.column(1).getLong(row), filtered.column(1).getLong(i));
+            assertEquals(all.column(2).getDouble(row), filtered.column(2).getDouble(i), 0.0);
+            assertEquals(all.column(3).getArray(row).numElements(), filtered.column(3).getArray(i).numElements());
+            for (int j = 0; j < all.column(3).getArray(row).numElements(); j += 1) {
+                assertEquals(all.column(3).getArray(row).getInt(j), filtered.column(3).getArray(i).getInt(j));
+            }
+        }
+    }
+
+    @Test
+    public void testPushedFiltersNoRows() throws IOException {
+        ColumnarBatch filtered = readWithFilters(new Filter[] {new EqualTo("Int32", -1)}, "Int32", "Int64");
+        assertEquals(0, filtered.numRows());
+    }
+
     @Test
     public void testMultipleBasketsForBigNano() throws IOException {
         String testPath = getBigTestDataIfExists("testdata/A2C66680-E3AA-E811-A854-1CC1DE192766.root");
@@ -311,6 +624,42 @@ public class TTreeDataSourceUnitTest {
         arr.getFloat(0);
     }
 
+    @Test
+    public void testKryoRegistrator() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        LaurelinDSConfig opts = LaurelinDSConfig.wrap(optmap);
+        Reader reader = new Reader(opts.paths(), opts, (SparkContext) null, (CollectionAccumulator<Storage>) null);
+        StructType schema = reader.readSchema();
+        reader.pushFilters(new Filter[] {new GreaterThanOrEqual("Int32", 90)});
+        reader.pruneColumns(new StructType(new StructField[] {schema.apply("Int32")}));
+        Partition partition = reader.planBatchInputPartitions().get(0);
+
+        SparkConf conf = new SparkConf();
+        conf.set("spark.kryo.registrator", LaurelinKryoRegistrator.class.getName());
+        conf.set("spark.kryo.registrationRequired", "true");
+        SerializerInstance serializerInstance = new KryoSerializer(conf).newInstance();
+        ClassTag<Partition> ct = scala.reflect.ClassTag$.MODULE$.apply(Partition.class);
+        ByteBuffer serializedPartition = serializerInstance.serialize(partition, ct);
+        int kryoSize = serializedPartition.remaining();
+        Partition kryoPartition = serializerInstance.deserialize(serializedPartition, ct);
+        Partition javaPartition = (Partition) roundTrip(partition);
+        int javaSize = getSerializedSize(partition);
+        assertTrue("Kryo " + kryoSize + " Java " + javaSize, kryoSize < javaSize);
+
+        for (Partition p: new Partition[] {kryoPartition, javaPartition}) {
+            assertEquals(partition.schema, p.schema);
+            assertEquals(partition.slimBranches.keySet(), p.slimBranches.keySet());
+            assertEquals(1, p.filters.length);
+            PartitionReader partitionReader = p.createPartitionReader();
+            assertTrue(partitionReader.next());
+            ColumnarBatch batch = partitionReader.get();
+            assertEquals(10, batch.numRows());
+            assertEquals(90, batch.column(0).getInt(0));
+        }
+    }
+
     /**
      * Ideally implements the same call order as the full-up spark test
      *  [TRACE] 17:24:35.974 e.v.a.l.Root - planbatchinputpartitions